@@ -0,0 +1,57 @@
+package com.ledger.lib.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.utils.ApduBuilder;
+
+/**
+ * Building of a BTC trusted input command and of a signing command, as sent for each input of a transaction
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ApduBuilderBenchmark {
+
+	@Param({ "44'/0'/0'/0/0", "44'/60'/0'/0/0/1/2/3/4/5" })
+	public String path;
+
+	private ApduBuilder builder;
+	private byte[] prevHash;
+	private byte[] lockTime;
+
+	@Setup
+	public void setup() {
+		builder = new ApduBuilder(null);
+		prevHash = new byte[32];
+		lockTime = new byte[4];
+	}
+
+	@Benchmark
+	public byte[] trustedInput() {
+		return builder.start(0xE0, 0x42, 0x80, 0x00)
+			.writeBytes(prevHash)
+			.writeUint32LE(1)
+			.writeVarint(25)
+			.toApdu();
+	}
+
+	@Benchmark
+	public byte[] sign() {
+		return builder.start(0xE0, 0x48, 0x00, 0x00)
+			.writePath(path)
+			.writeByte(0)
+			.writeBytes(lockTime)
+			.writeByte(0x01)
+			.toApdu();
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.ledger.lib.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.utils.BIP32Helper;
+
+/**
+ * Conversion of BIP 32 paths sent with each key related command
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BIP32HelperBenchmark {
+
+	@Param({ "44'/0'/0'", "44'/0'/0'/0/0", "44'/60'/0'/0/0/1/2/3/4/5" })
+	public String path;
+
+	@Benchmark
+	public byte[] splitPath() {
+		return BIP32Helper.splitPath(path);
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.ledger.lib.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.apps.btc.BtcTransaction;
+import com.ledger.lib.utils.SerializeHelper;
+import com.ledger.lib.utils.VarintUtils;
+
+/**
+ * Parsing and serialization of Bitcoin transactions spending P2PKH inputs, with and without witness
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BtcTransactionBenchmark {
+
+	private static final int SCRIPT_SIG_SIZE = 107;
+	private static final int SCRIPT_PUBKEY_SIZE = 25;
+	private static final int WITNESS_SIZE = 107;
+
+	@Param({ "1", "10", "100" })
+	public int inputCount;
+
+	@Param({ "false", "true" })
+	public boolean segwit;
+
+	private byte[] serializedTransaction;
+	private BtcTransaction transaction;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(inputCount);
+		int outputCount = 2;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SerializeHelper.writeUint32LE(out, 2);
+		if (segwit) {
+			out.write(0x00);
+			out.write(0x01);
+		}
+		VarintUtils.write(out, inputCount);
+		for (int i=0; i<inputCount; i++) {
+			SerializeHelper.writeBuffer(out, randomBytes(random, 32));
+			SerializeHelper.writeUint32LE(out, i);
+			byte[] script = (segwit ? new byte[0] : randomBytes(random, SCRIPT_SIG_SIZE));
+			VarintUtils.write(out, script.length);
+			SerializeHelper.writeBuffer(out, script);
+			SerializeHelper.writeUint32LE(out, 0xfffffffdL);
+		}
+		VarintUtils.write(out, outputCount);
+		for (int i=0; i<outputCount; i++) {
+			SerializeHelper.writeUint64LE(out, 100000 + i);
+			VarintUtils.write(out, SCRIPT_PUBKEY_SIZE);
+			SerializeHelper.writeBuffer(out, randomBytes(random, SCRIPT_PUBKEY_SIZE));
+		}
+		if (segwit) {
+			for (int i=0; i<inputCount; i++) {
+				SerializeHelper.writeBuffer(out, randomBytes(random, WITNESS_SIZE));
+			}
+		}
+		SerializeHelper.writeUint32LE(out, 0);
+		serializedTransaction = out.toByteArray();
+		transaction = new BtcTransaction(serializedTransaction);
+	}
+
+	private static byte[] randomBytes(Random random, int size) {
+		byte[] result = new byte[size];
+		random.nextBytes(result);
+		return result;
+	}
+
+	@Benchmark
+	public BtcTransaction parse() {
+		return new BtcTransaction(serializedTransaction);
+	}
+
+	@Benchmark
+	public byte[] serialize() {
+		return transaction.serialize(false, false);
+	}
+
+	@Benchmark
+	public byte[] serializeWithoutWitness() {
+		return transaction.serialize(false, true);
+	}
+
+	@Benchmark
+	public byte[] serializeOutputs() {
+		return transaction.serializeOutputs();
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.ledger.lib.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.apps.eth.Erc20Cache;
+import com.ledger.lib.apps.trx.TrxCache;
+
+/**
+ * Loading of the ERC 20, TRC 10 and Tron exchanges caches from the provisioning blobs shipped as raw resources
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheLoaderBenchmark {
+
+	private byte[] erc20;
+	private byte[] trc10;
+	private byte[] tronExchanges;
+
+	@Setup
+	public void setup() throws IOException {
+		erc20 = readResource("/erc20");
+		trc10 = readResource("/trc10");
+		tronExchanges = readResource("/tronexchanges");
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		InputStream in = CacheLoaderBenchmark.class.getResourceAsStream(name);
+		if (in == null) {
+			throw new IOException("Missing resource " + name);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public boolean loadErc20() {
+		Erc20Cache.loadCache(erc20);
+		return Erc20Cache.isProvisioned();
+	}
+
+	@Benchmark
+	public boolean loadTrc10() {
+		TrxCache.loadTrc10Cache(trc10);
+		return TrxCache.isProvisioned();
+	}
+
+	@Benchmark
+	public byte[] loadTronExchanges() {
+		TrxCache.loadExchangesCache(tronExchanges);
+		return TrxCache.lookupExchange(1L);
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.ledger.lib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.utils.Dump;
+
+/**
+ * Conversions between binary content and its hexadecimal representation, as done for logging and transaction lookups
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DumpBenchmark {
+
+	@Param({ "32", "260", "4096" })
+	public int size;
+
+	private byte[] data;
+	private String hex;
+
+	@Setup
+	public void setup() {
+		data = new byte[size];
+		new Random(size).nextBytes(data);
+		hex = Dump.dump(data);
+	}
+
+	@Benchmark
+	public String dump() {
+		return Dump.dump(data);
+	}
+
+	@Benchmark
+	public byte[] hexToBin() {
+		return Dump.hexToBin(hex);
+	}
+
+}
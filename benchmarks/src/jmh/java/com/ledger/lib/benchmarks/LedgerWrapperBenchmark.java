@@ -0,0 +1,65 @@
+package com.ledger.lib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.transport.LedgerWrapper;
+
+/**
+ * Framing of commands and reassembly of responses, for USB (64 bytes packets with channel) and BLE (MTU sized packets without channel)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LedgerWrapperBenchmark {
+
+	private static final int CHANNEL = 0x0101;
+
+	@Param({ "5", "64", "260", "1024" })
+	public int apduSize;
+
+	@Param({ "20", "64", "153" })
+	public int packetSize;
+
+	private byte[] apdu;
+	private byte[] wrappedChannel;
+	private byte[] wrapped;
+
+	@Setup
+	public void setup() {
+		apdu = new byte[apduSize];
+		new Random(apduSize).nextBytes(apdu);
+		wrappedChannel = LedgerWrapper.wrapCommandAPDU(CHANNEL, apdu, packetSize);
+		wrapped = LedgerWrapper.wrapCommandAPDU(apdu, packetSize);
+	}
+
+	@Benchmark
+	public byte[] wrapWithChannel() {
+		return LedgerWrapper.wrapCommandAPDU(CHANNEL, apdu, packetSize);
+	}
+
+	@Benchmark
+	public byte[] wrap() {
+		return LedgerWrapper.wrapCommandAPDU(apdu, packetSize);
+	}
+
+	@Benchmark
+	public byte[] unwrapWithChannel() {
+		return LedgerWrapper.unwrapResponseAPDU(CHANNEL, wrappedChannel, packetSize);
+	}
+
+	@Benchmark
+	public byte[] unwrap() {
+		return LedgerWrapper.unwrapResponseAPDU(wrapped, packetSize);
+	}
+
+}
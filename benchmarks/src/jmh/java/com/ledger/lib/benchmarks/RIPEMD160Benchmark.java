@@ -0,0 +1,56 @@
+package com.ledger.lib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.utils.RIPEMD160Digest;
+
+/**
+ * RIPEMD-160 hashing, used on each public key to compute Bitcoin addresses and redeem scripts
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RIPEMD160Benchmark {
+
+	@Param({ "32", "1024", "65536" })
+	public int size;
+
+	private byte[] data;
+	private byte[] hash;
+	private RIPEMD160Digest digest;
+
+	@Setup
+	public void setup() {
+		data = new byte[size];
+		new Random(size).nextBytes(data);
+		hash = new byte[20];
+		digest = new RIPEMD160Digest();
+	}
+
+	@Benchmark
+	public byte[] digestReused() {
+		digest.update(data, 0, data.length);
+		digest.doFinal(hash, 0);
+		return hash;
+	}
+
+	@Benchmark
+	public byte[] digestNew() {
+		byte[] result = new byte[20];
+		RIPEMD160Digest newDigest = new RIPEMD160Digest();
+		newDigest.update(data, 0, data.length);
+		newDigest.doFinal(result, 0);
+		return result;
+	}
+
+}
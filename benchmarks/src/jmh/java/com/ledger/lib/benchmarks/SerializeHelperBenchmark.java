@@ -0,0 +1,88 @@
+package com.ledger.lib.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.apps.common.WalletAddress;
+import com.ledger.lib.utils.SerializeHelper;
+
+/**
+ * Serialization primitives used to build commands and parse responses
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializeHelperBenchmark {
+
+	@Param({ "34", "42", "62" })
+	public int addressLength;
+
+	private byte[] buffer;
+	private byte[] walletAddress;
+	private String address;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(addressLength);
+		buffer = new byte[8];
+		random.nextBytes(buffer);
+		StringBuilder addressBuilder = new StringBuilder(addressLength);
+		for (int i=0; i<addressLength; i++) {
+			addressBuilder.append((char)('a' + random.nextInt(26)));
+		}
+		address = addressBuilder.toString();
+		byte[] publicKey = new byte[65];
+		byte[] chainCode = new byte[32];
+		random.nextBytes(publicKey);
+		random.nextBytes(chainCode);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(publicKey.length);
+		SerializeHelper.writeBuffer(out, publicKey);
+		out.write(addressLength);
+		SerializeHelper.writeBuffer(out, SerializeHelper.stringToByteArray(address));
+		SerializeHelper.writeBuffer(out, chainCode);
+		walletAddress = out.toByteArray();
+	}
+
+	@Benchmark
+	public long readUint32() {
+		return SerializeHelper.readUint32BE(buffer, 0) + SerializeHelper.readUint32LE(buffer, 4);
+	}
+
+	@Benchmark
+	public byte[] writeIntegers() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(2 + 4 + 4 + 8 + 8);
+		SerializeHelper.writeUint16BE(out, 0x1234);
+		SerializeHelper.writeUint32BE(out, 0x12345678L);
+		SerializeHelper.writeUint32LE(out, 0x12345678L);
+		SerializeHelper.writeUint64BE(out, 0x123456789abcdefL);
+		SerializeHelper.writeUint64LE(out, 0x123456789abcdefL);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] stringToByteArray() {
+		return SerializeHelper.stringToByteArray(address);
+	}
+
+	@Benchmark
+	public String readString() {
+		return SerializeHelper.readString(walletAddress, 1 + 65 + 1, addressLength);
+	}
+
+	@Benchmark
+	public WalletAddress readWalletAddress() {
+		return SerializeHelper.readWalletAddress(walletAddress);
+	}
+
+}
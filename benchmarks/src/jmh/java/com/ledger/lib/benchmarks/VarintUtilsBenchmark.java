@@ -0,0 +1,50 @@
+package com.ledger.lib.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.ledger.lib.utils.VarintUtils;
+
+/**
+ * Encoding and decoding of variable integers of each size
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VarintUtilsBenchmark {
+
+	@Param({ "252", "65535", "4294967295" })
+	public long value;
+
+	private byte[] encoded;
+
+	@Setup
+	public void setup() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		VarintUtils.write(out, value);
+		encoded = out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] write() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(9);
+		VarintUtils.write(out, value);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public long read() {
+		return VarintUtils.read(new ByteArrayInputStream(encoded));
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.ledger.lib;
+
+import com.ledger.lib.utils.SW;
+
+/**
+ * \brief Exception returned when the Status Word returned by a device call was not expected
+ *
+ * getInstance returns a shared instance without stack trace for the Status Words received when probing a device for an
+ * application or an instruction. Other Status Words report real failures and get their own instance with a stack trace.
+ * Shared instances shall not be modified (suppressed exceptions or stack trace), their cause can't be set
+ */
+public class SWException extends LedgerException {
+
+  private static final SWException[] cachedExceptions = {
+    new SharedSWException(SW.SW_CLA_NOT_SUPPORTED),
+    new SharedSWException(SW.SW_INS_NOT_SUPPORTED),
+    new SharedSWException(SW.SW_INCORRECT_P1_P2)
+  };
+
+  private int sw;
+
+  public SWException(int sw) {
+    super(LedgerException.ExceptionReason.APPLICATION_ERROR, "Invalid status " + Integer.toHexString(sw));
+    this.sw = sw;
+  }
+
+  /**
+   * \brief Shared instance, not capturing the stack when created
+   */
+  private static class SharedSWException extends SWException {
+
+    private static final long serialVersionUID = 1L;
+
+    SharedSWException(int sw) {
+      super(sw);
+      // Lock the cause, initCause failing afterwards
+      initCause(null);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return getReason() + " " + SWException.class.getName() + ": " + getMessage();
+    }
+
+  }
+
+  /**
+   * Return an exception for a Status Word, shared and without stack trace if the Status Word is a common probe result
+   * @param sw Status Word
+   * @return exception
+   */
+  public static SWException getInstance(int sw) {
+    for (SWException exception : cachedExceptions) {
+      if (exception.sw == sw) {
+        return exception;
+      }
+    }
+    return new SWException(sw);
+  }
+
+  public int getSW() {
+    return sw;
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.ledger.lib;
+
+/**
+ * \brief Exception returned when an APDU is sent to the wrong device application
+ */
+public class WrongApplicationException extends LedgerException {
+
+  private static final WrongApplicationException cachedException = new SharedWrongApplicationException();
+
+  private String expectedApplication;
+
+  public WrongApplicationException() {
+    super(LedgerException.ExceptionReason.APPLICATION_ERROR, "Wrong device application selected");
+  }
+
+  /**
+   * \brief Shared instance, not capturing the stack when created
+   */
+  private static class SharedWrongApplicationException extends WrongApplicationException {
+
+    private static final long serialVersionUID = 1L;
+
+    SharedWrongApplicationException() {
+      // Lock the cause, initCause failing afterwards
+      initCause(null);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return getReason() + " " + WrongApplicationException.class.getName() + ": " + getMessage();
+    }
+
+  }
+
+  /**
+   * Return a shared instance without stack trace, for an application rejecting a command. The shared instance shall not be
+   * modified (suppressed exceptions or stack trace), its cause can't be set
+   * @return exception
+   */
+  public static WrongApplicationException getInstance() {
+    return cachedException;
+  }
+
+  public WrongApplicationException(String expectedApplication) {
+    super(LedgerException.ExceptionReason.APPLICATION_ERROR, "Wrong device application selected, expected " + expectedApplication);
+    this.expectedApplication = expectedApplication;
+  }
+
+  public String getExpectedApplication() {
+  	return expectedApplication;
+  }
+
+}
@@ -1,10 +1,9 @@
 package com.ledger.lib.apps;
 
-import java.util.Arrays;
-
 import com.ledger.lib.LedgerException;
 import com.ledger.lib.WrongApplicationException;
 import com.ledger.lib.transport.LedgerDevice;
+import com.ledger.lib.utils.ApduBuilder;
 import com.ledger.lib.utils.ApduExchange;
 import com.ledger.lib.utils.SW;
 import com.ledger.lib.utils.SerializeHelper;
@@ -68,6 +67,7 @@ public class LedgerApplication {
   private static final int NATIVE_WALLET_ID_FORMAT = 1;
 
   protected LedgerDevice device;
+  private final ApduBuilder builder;
 
   /**
    * Constructor
@@ -75,6 +75,20 @@ public class LedgerApplication {
    */
   public LedgerApplication(LedgerDevice device) {    
     this.device = device;
+    builder = new ApduBuilder(device);
+  }
+
+  /**
+   * Start a command on the builder owned by this application, bound to its device. The previous command shall have been
+   * exchanged, the application building one command at a time
+   * @param cla APDU CLA
+   * @param ins APDU INS
+   * @param p1 APDU P1
+   * @param p2 APDU P2
+   * @return builder
+   */
+  protected ApduBuilder startApdu(int cla, int ins, int p1, int p2) {
+    return builder.start(cla, ins, p1, p2);
   }
 
   /** 
@@ -94,20 +108,18 @@ public class LedgerApplication {
   public byte[] getWalletID() throws LedgerException {
     ApduExchange.ApduResponse response = ApduExchange.exchangeApdu(device, CLA_COMMON_SDK, INS_GET_WALLET_ID_NATIVE, 0, 0);    
     if (response.getSW() == SW.SW_OK) {
-      byte[] responseData = response.getResponse();
-      if (responseData[0] != NATIVE_WALLET_ID_FORMAT) {
+      if (response.getByte(0) != NATIVE_WALLET_ID_FORMAT) {
         throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "Unsupported Wallet ID format");
       }
-      int idLength = (int)(responseData[1] & 0xff);
-      return Arrays.copyOfRange(responseData, 2, idLength + 2);
+      int idLength = (response.getByte(1) & 0xff);
+      return response.copyData(2, idLength);
     }    
     response = ApduExchange.exchangeApdu(device, CLA_COMMON_SDK, INS_GET_WALLET_ID, 0, 0);    
     if (response.getSW() == SW.SW_OK) {
-      byte[] responseData = response.getResponse();
-      return Arrays.copyOfRange(responseData, 0, responseData.length - 2);
+      return response.copyData();
     }
     else {
-      throw new WrongApplicationException();
+      throw WrongApplicationException.getInstance();
     }
   }
 
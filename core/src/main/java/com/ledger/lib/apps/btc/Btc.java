@@ -14,10 +14,9 @@ import com.ledger.lib.transport.LedgerDevice;
 import com.ledger.lib.apps.LedgerApplication;
 import com.ledger.lib.apps.common.WalletAddress;
 import com.ledger.lib.apps.common.ECDSADeviceSignature;
-import com.ledger.lib.utils.BIP32Helper;
+import com.ledger.lib.utils.ApduBuilder;
 import com.ledger.lib.utils.ApduExchange;
 import com.ledger.lib.utils.SerializeHelper;
-import com.ledger.lib.utils.VarintUtils;
 import com.ledger.lib.utils.RIPEMD160Digest;
 import com.ledger.lib.utils.Dump;
 
@@ -130,19 +129,38 @@ public class Btc extends LedgerApplication {
    * @returns APDU data
    */
   private ApduExchange.ApduResponse exchangeApduSplit(LedgerDevice device, int cla, int ins, int p1, int p2, byte[] data) throws LedgerException {
+    return exchangeApduSplitConcatenated(device, cla, ins, p1, p2, data, NULL_SCRIPT);
+  }
+
+  /**
+   * Exchange a TX related APDU for the BTC app, splitting the concatenation of two data blobs into smaller chunks
+   * @param device device to exchange the APDU with
+   * @param cla APDU CLA
+   * @param ins APDU INS
+   * @param p1 APDU P1
+   * @param p2 APDU P2
+   * @param data first data blob to exchange
+   * @param data2 data blob to exchange following the first one
+   * @returns APDU data
+   */
+  private ApduExchange.ApduResponse exchangeApduSplitConcatenated(LedgerDevice device, int cla, int ins, int p1, int p2, byte[] data, byte[] data2) throws LedgerException {
     int offset = 0;
+    int totalLength = data.length + data2.length;
     ApduExchange.ApduResponse response = null;
-    while (offset != data.length) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      int blockSize = (offset + MAX_BLOCK_SIZE > data.length ? data.length - offset : MAX_BLOCK_SIZE);
-      out.write(Arrays.copyOfRange(data, offset, offset + blockSize), 0, blockSize);
-      response = ApduExchange.exchangeApdu(device, cla, 
-        ins, 
-        p1,
-        p2,
-        out.toByteArray());
+    while (offset != totalLength) {
+      int blockSize = (offset + MAX_BLOCK_SIZE > totalLength ? totalLength - offset : MAX_BLOCK_SIZE);
+      int end = offset + blockSize;
+      ApduBuilder apdu = startApdu(cla, ins, p1, p2);
+      if (offset < data.length) {
+        apdu.writeBytes(data, offset, Math.min(end, data.length) - offset);
+      }
+      if (end > data.length) {
+        int offset2 = Math.max(offset, data.length) - data.length;
+        apdu.writeBytes(data2, offset2, end - data.length - offset2);
+      }
+      response = apdu.exchange();
       response.checkSW();
-      offset += blockSize;
+      offset = end;
     }
     return response;
   }
@@ -163,17 +181,12 @@ public class Btc extends LedgerApplication {
     int maxBlockSize = MAX_BLOCK_SIZE - data2.length;
     ApduExchange.ApduResponse response = null;
     while (offset != data.length) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
       int blockSize = (offset + maxBlockSize > data.length ? data.length - offset : maxBlockSize);
-      out.write(Arrays.copyOfRange(data, offset, offset + blockSize), 0, blockSize);
+      ApduBuilder apdu = startApdu(cla, ins, p1, p2).writeBytes(data, offset, blockSize);
       if ((offset + blockSize) == data.length) {
-        out.write(data2, 0, data2.length);
+        apdu.writeBytes(data2);
       }
-      response = ApduExchange.exchangeApdu(device, cla, 
-        ins, 
-        p1,
-        p2,
-        out.toByteArray());
+      response = apdu.exchange();
       response.checkSW();
       offset += blockSize;
     }
@@ -190,49 +203,46 @@ public class Btc extends LedgerApplication {
 
   private TXInput getTrustedInput(BtcTransaction transaction, long index) throws LedgerException {
     ApduExchange.ApduResponse response;
-    ByteArrayOutputStream data = new ByteArrayOutputStream();
     // Header
-    SerializeHelper.writeUint32BE(data, index);
-    SerializeHelper.writeBuffer(data, transaction.getVersion());
-    VarintUtils.write(data, transaction.getInputs().size());
-    response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_FIRST_BLOCK, 0, data.toByteArray());
+    response = startApdu(BTC_CLA, INS_GET_TRUSTED_INPUT, P1_FIRST_BLOCK, 0)
+      .writeUint32BE(index)
+      .writeBytes(transaction.getVersion())
+      .writeVarint(transaction.getInputs().size())
+      .exchange();
     response.checkSW();
     // Each input
     for (BtcTransaction.BtcInput input : transaction.getInputs()) {
-      data = new ByteArrayOutputStream();
-      SerializeHelper.writeBuffer(data, input.getPrevHash());
-      SerializeHelper.writeUint32LE(data, input.getPrevIndex());
-      VarintUtils.write(data, input.getScript().length);
-      response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, data.toByteArray());
+      response = startApdu(BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0)
+        .writeBytes(input.getPrevHash())
+        .writeUint32LE(input.getPrevIndex())
+        .writeVarint(input.getScript().length)
+        .exchange();
       response.checkSW();
-      data = new ByteArrayOutputStream();
-      SerializeHelper.writeBuffer(data, input.getScript());
-      exchangeApduSplit(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, data.toByteArray(), input.getSequence());      
+      exchangeApduSplit(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, input.getScript(), input.getSequence());      
     }
     // Number of outputs
-    data = new ByteArrayOutputStream();
-    VarintUtils.write(data, transaction.getOutputs().size());
-    response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, data.toByteArray());
+    response = startApdu(BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0)
+      .writeVarint(transaction.getOutputs().size())
+      .exchange();
     response.checkSW();
     // Each output
     for (BtcTransaction.BtcOutput output : transaction.getOutputs()) {
-      data = new ByteArrayOutputStream();
-      SerializeHelper.writeBuffer(data, output.getAmount());
-      VarintUtils.write(data, output.getScript().length);
-      response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, data.toByteArray());
+      response = startApdu(BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0)
+        .writeBytes(output.getAmount())
+        .writeVarint(output.getScript().length)
+        .exchange();
       response.checkSW();
-      data = new ByteArrayOutputStream();
-      SerializeHelper.writeBuffer(data, output.getScript());
-      response = exchangeApduSplit(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, data.toByteArray());            
+      response = exchangeApduSplit(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, output.getScript());            
       response.checkSW();
     }
     // Locktime
     response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_GET_TRUSTED_INPUT, P1_NEXT_BLOCK, 0, transaction.getLockTime());    
     response.checkSW();
-    return new TXInput(InputType.INPUT_TRUSTED, Arrays.copyOfRange(response.getResponse(), 0, response.getResponse().length - 2));
+    return new TXInput(InputType.INPUT_TRUSTED, response.copyData());
   }  
 
-  private byte[] getTXHash(BtcTransaction transaction) throws LedgerException {
+  // Digests are shared by all calls, hashing is serialized so that the same instance can be used from several threads
+  private synchronized byte[] getTXHash(BtcTransaction transaction) throws LedgerException {
     byte[] serializedTx = transaction.serialize(false, true);
     byte[] digest = sha256.digest(serializedTx);
     digest = sha256.digest(digest);
@@ -301,7 +311,7 @@ public class Btc extends LedgerApplication {
     return out.toByteArray();
   }
 
-  private byte[] hashPublicKey(byte[] publicKey) throws LedgerException {
+  private synchronized byte[] hashPublicKey(byte[] publicKey) throws LedgerException {
     byte[] hash160 = new byte[20];
     byte[] hashedPublicKey = sha256.digest(publicKey);
     ripemd160.update(hashedPublicKey, 0, hashedPublicKey.length);
@@ -362,42 +372,40 @@ public class Btc extends LedgerApplication {
       }
     }
     */
-    ByteArrayOutputStream data = new ByteArrayOutputStream();
-    SerializeHelper.writeBuffer(data, transaction.getVersion());
-    VarintUtils.write(data, transaction.getInputs().size());
     int p2 = (newTransaction ? (segwit ? P2_NEW_TX_SEGWIT : P2_NEW_TX) : (continueSegwit ? P2_CONTINUE_TX_SEGWIT : P2_CONTINUE_TX));
-    response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_HASH_INPUT_START, P1_FIRST_BLOCK, p2, data.toByteArray());
+    response = startApdu(BTC_CLA, INS_HASH_INPUT_START, P1_FIRST_BLOCK, p2)
+      .writeBytes(transaction.getVersion())
+      .writeVarint(transaction.getInputs().size())
+      .exchange();
     response.checkSW();
     long currentIndex = 0;
     for (BtcTransaction.BtcInput currentInput : transaction.getInputs()) {
       TXInput deviceInput = usedInputList[(int)currentIndex];
       byte[] script = (currentIndex == inputIndex ? redeemScript : NULL_SCRIPT);
-      data = new ByteArrayOutputStream();
+      ApduBuilder apdu = startApdu(BTC_CLA, INS_HASH_INPUT_START, P1_NEXT_BLOCK, 0);
       switch(deviceInput.getInputType()) {
         case INPUT_TRUSTED:
-          data.write(TAG_INPUT_TRUSTED);
-          data.write(deviceInput.getValue().length);
+          apdu.writeByte(TAG_INPUT_TRUSTED);
+          apdu.writeByte(deviceInput.getValue().length);
           break;
         case INPUT_WITNESS:
-          data.write(TAG_INPUT_WITNESS);
+          apdu.writeByte(TAG_INPUT_WITNESS);
           break;
       }
-      SerializeHelper.writeBuffer(data, deviceInput.getValue());
-      VarintUtils.write(data, script.length);
-      response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_HASH_INPUT_START, P1_NEXT_BLOCK, 0, data.toByteArray());
+      response = apdu.writeBytes(deviceInput.getValue())
+        .writeVarint(script.length)
+        .exchange();
       response.checkSW();
-      data = new ByteArrayOutputStream();
-      SerializeHelper.writeBuffer(data, script);
-      SerializeHelper.writeBuffer(data, currentInput.getSequence());
-      response = exchangeApduSplit(device, BTC_CLA, INS_HASH_INPUT_START, P1_NEXT_BLOCK, 0, data.toByteArray());            
+      response = exchangeApduSplitConcatenated(device, BTC_CLA, INS_HASH_INPUT_START, P1_NEXT_BLOCK, 0, script, currentInput.getSequence());
       response.checkSW();      
       currentIndex++;
     }
   }
 
   private void provideOutputFullChangePath(String bip32Path) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
-    ApduExchange.ApduResponse response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_HASH_INPUT_FINALIZE_FULL, P1_CHANGE_OUTPUT, 0, convertedPath);
+    ApduExchange.ApduResponse response = startApdu(BTC_CLA, INS_HASH_INPUT_FINALIZE_FULL, P1_CHANGE_OUTPUT, 0)
+      .writePath(bip32Path)
+      .exchange();
     response.checkSW();
   }
 
@@ -405,30 +413,27 @@ public class Btc extends LedgerApplication {
     int offset = 0;
     ApduExchange.ApduResponse response = null;
     while (offset != output.length) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
       int blockSize = (offset + MAX_BLOCK_SIZE > output.length ? output.length - offset : MAX_BLOCK_SIZE);
-      out.write(Arrays.copyOfRange(output, offset, offset + blockSize), 0, blockSize);
-      response = ApduExchange.exchangeApdu(device, BTC_CLA, 
+      response = startApdu(BTC_CLA, 
         INS_HASH_INPUT_FINALIZE_FULL, 
         ((offset + blockSize) == output.length ? P1_LAST_OUTPUT : P1_MORE_OUTPUT),
-        0,
-        out.toByteArray());
+        0)
+        .writeBytes(output, offset, blockSize)
+        .exchange();
       response.checkSW();
       offset += blockSize;
     }    
   }
 
   private byte[] signTransaction(BtcTransaction transaction, String bip32Path) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
-    ApduExchange.ApduResponse response = null;
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    SerializeHelper.writeBuffer(out, convertedPath);
-    out.write(0);
-    SerializeHelper.writeBuffer(out, transaction.getLockTime());
-    out.write(SIGHASH_ALL);
-    response = ApduExchange.exchangeApdu(device, BTC_CLA, INS_HASH_SIGN, 0, 0, out.toByteArray());
+    ApduExchange.ApduResponse response = startApdu(BTC_CLA, INS_HASH_SIGN, 0, 0)
+      .writePath(bip32Path)
+      .writeByte(0)
+      .writeBytes(transaction.getLockTime())
+      .writeByte(SIGHASH_ALL)
+      .exchange();
     response.checkSW();
-    byte[] signature = Arrays.copyOfRange(response.getResponse(), 0, response.getResponse().length - 2);
+    byte[] signature = response.copyData();
     signature[0] &= 0xF0;
     return signature;
   }
@@ -442,7 +447,6 @@ public class Btc extends LedgerApplication {
    * @return information about the address
    */
   public WalletAddress getWalletAddress(String bip32Path, boolean verify, AddressFormat format) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
     int p2 = P2_LEGACY_ADDRESS;
     switch(format) {
       case LEGACY:
@@ -455,11 +459,12 @@ public class Btc extends LedgerApplication {
         p2 = P2_SEGWIT_NATIVE;
         break;
     }
-    ApduExchange.ApduResponse response = ApduExchange.exchangeApdu(device, BTC_CLA, 
+    ApduExchange.ApduResponse response = startApdu(BTC_CLA, 
       INS_GET_WALLET_PUBLIC_KEY, 
       (verify ? P1_DISPLAY : P1_NO_DISPLAY),
-      p2,
-      convertedPath);
+      p2)
+      .writePath(bip32Path)
+      .exchange();
     response.checkSW();
     return SerializeHelper.readWalletAddress(response.getResponse());
   }  
@@ -651,36 +656,31 @@ public class Btc extends LedgerApplication {
    * @return ECDSA signature of the message
    */
   public ECDSADeviceSignature signMessage(String bip32Path, byte[] message) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
     ApduExchange.ApduResponse response = null;
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
     int offset = 0;
     while (offset != message.length) {
-      out = new ByteArrayOutputStream();
+      ApduBuilder apdu = startApdu(BTC_CLA, 
+        INS_SIGN_MESSAGE, 
+        P1_SIGN_MESSAGE_PREPARE,
+        (offset == 0 ? P2_SIGN_MESSAGE_PREPARE_FIRST : P2_SIGN_MESSAGE_PREPARE_NEXT));
       if (offset == 0) {
-        SerializeHelper.writeBuffer(out, convertedPath);
-        SerializeHelper.writeUint16BE(out, message.length);
+        apdu.writePath(bip32Path);
+        apdu.writeUint16BE(message.length);
       }
-      int maxBlockSize = MAX_BLOCK_SIZE - out.size();
+      int maxBlockSize = MAX_BLOCK_SIZE - apdu.getDataLength();
       int blockSize = (offset + maxBlockSize > message.length ? message.length - offset : maxBlockSize);
-      out.write(Arrays.copyOfRange(message, offset, offset + blockSize), 0, blockSize);
-      response = ApduExchange.exchangeApdu(device, BTC_CLA, 
-        INS_SIGN_MESSAGE, 
-        P1_SIGN_MESSAGE_PREPARE,
-        (offset == 0 ? P2_SIGN_MESSAGE_PREPARE_FIRST : P2_SIGN_MESSAGE_PREPARE_NEXT),
-        out.toByteArray());
+      response = apdu.writeBytes(message, offset, blockSize).exchange();
       response.checkSW();
       offset += blockSize;
     }
-    out = new ByteArrayOutputStream();
-    out.write(0);
-    response = ApduExchange.exchangeApdu(device, BTC_CLA, 
+    response = startApdu(BTC_CLA, 
       INS_SIGN_MESSAGE, 
       P1_SIGN_MESSAGE_SIGN,
-      0,
-      out.toByteArray());
+      0)
+      .writeByte(0)
+      .exchange();
     response.checkSW();
-    byte[] signatureResponse = Arrays.copyOfRange(response.getResponse(), 0, response.getResponse().length - 2);
+    byte[] signatureResponse = response.copyData();
     return new ECDSADeviceSignature(signatureResponse[0] - 0x30, signatureResponse);
   }
 }
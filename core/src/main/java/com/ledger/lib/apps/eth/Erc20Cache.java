@@ -2,18 +2,10 @@ package com.ledger.lib.apps.eth;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.BufferedInputStream;
-
-import android.content.Context;
-import android.content.res.Resources;
 
 import com.ledger.lib.utils.SerializeHelper;
 import com.ledger.lib.utils.Dump;
 import com.ledger.lib.LedgerException;
-import com.ledger.lib.R;
 
 /**
  * Cache Erc20 tokens information
@@ -32,6 +24,8 @@ public class Erc20Cache {
 
 	/**
 	 * Load the cache following a provided provisioning lob
+	 * 
+	 * On Android, the internal provisioning blob is loaded with Erc20CacheResources.loadCacheInternal
 	 * @param blob provisioning blob
 	 */
 	public static void loadCache(byte[] blob) throws LedgerException {
@@ -50,26 +44,6 @@ public class Erc20Cache {
 		}
 	}
 
-	/**
-	 * Load the cache following the internal provisioning blob
-	 * @param context application context
-	 */
-	public static void loadCacheInternal(Context context) throws LedgerException {
-		try {
-			BufferedInputStream is = new BufferedInputStream(context.getResources().openRawResource(R.raw.erc20));
-			byte[] data = new byte[is.available()];
-			int offset = 0;
-			while (offset != data.length) {
-				int dataRead = is.read(data, offset, data.length - offset);
-				offset += dataRead;
-			}
-			loadCache(data);
-		}
-		catch(IOException e) {
-			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e);
-		}
-	}
-
 	/**
 	 * Look up a given contract address in the ERC 20 cache
 	 * @param address address to look up
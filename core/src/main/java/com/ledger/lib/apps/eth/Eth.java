@@ -1,14 +1,11 @@
 package com.ledger.lib.apps.eth;
 
-import java.util.Arrays;
-import java.io.ByteArrayOutputStream;
-
 import com.ledger.lib.LedgerException;
 import com.ledger.lib.transport.LedgerDevice;
 import com.ledger.lib.apps.LedgerApplication;
 import com.ledger.lib.apps.common.WalletAddress;
 import com.ledger.lib.apps.common.ECDSADeviceSignature;
-import com.ledger.lib.utils.BIP32Helper;
+import com.ledger.lib.utils.ApduBuilder;
 import com.ledger.lib.utils.ApduExchange;
 import com.ledger.lib.utils.SerializeHelper;
 
@@ -92,44 +89,39 @@ public class Eth extends LedgerApplication {
    * @return information about the address
    */
   public WalletAddress getWalletAddress(String bip32Path, boolean verify) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
-    ApduExchange.ApduResponse response = ApduExchange.exchangeApdu(device, ETH_CLA, 
+    ApduExchange.ApduResponse response = startApdu(ETH_CLA, 
       INS_GET_PUBLIC_ADDRESS, 
       (verify ? P1_DISPLAY : P1_NO_DISPLAY),
-      P2_CHAINCODE,
-      convertedPath);
+      P2_CHAINCODE)
+      .writePath(bip32Path)
+      .exchange();
     response.checkSW();
     return SerializeHelper.readWalletAddress(response.getResponse());
   }  
 
   private ECDSADeviceSignature signMessageOrTransaction(int ins, String bip32Path, byte[] rawTransaction, boolean signMsg) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
     int offset = 0;
-    int extra = (signMsg ? 4 : 0);
     ApduExchange.ApduResponse response = null;
     while (offset != rawTransaction.length) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      int maxBlockSize = (offset == 0 ? MAX_BLOCK_SIZE - convertedPath.length - extra : MAX_BLOCK_SIZE);
-      int blockSize = (offset + maxBlockSize > rawTransaction.length ? rawTransaction.length - offset : maxBlockSize);
+      ApduBuilder apdu = startApdu(ETH_CLA, 
+        ins, 
+        (offset == 0 ? P1_FIRST_BLOCK : P1_NEXT_BLOCK),
+        0);
       if (offset == 0) {
-        out.write(convertedPath, 0, convertedPath.length);
+        apdu.writePath(bip32Path);
         if (signMsg) {
-          SerializeHelper.writeUint32BE(out, rawTransaction.length);
+          apdu.writeUint32BE(rawTransaction.length);
         }
       }
-      out.write(Arrays.copyOfRange(rawTransaction, offset, offset + blockSize), 0, blockSize);
-      response = ApduExchange.exchangeApdu(device, ETH_CLA, 
-        ins, 
-        (offset == 0 ? P1_FIRST_BLOCK : P1_NEXT_BLOCK),
-        0,
-        out.toByteArray());
+      int maxBlockSize = MAX_BLOCK_SIZE - apdu.getDataLength();
+      int blockSize = (offset + maxBlockSize > rawTransaction.length ? rawTransaction.length - offset : maxBlockSize);
+      response = apdu.writeBytes(rawTransaction, offset, blockSize).exchange();
       response.checkSW();
       offset += blockSize;
     }
-    byte[] responseData = response.getResponse();
-    return new ECDSADeviceSignature((responseData[0] & 0xff), 
-      Arrays.copyOfRange(responseData, 1, 1 + 32),
-      Arrays.copyOfRange(responseData, 1 + 32, 1 + 32 + 32));    
+    return new ECDSADeviceSignature((response.getByte(0) & 0xff), 
+      response.copyData(1, 32),
+      response.copyData(1 + 32, 32));    
   }
 
 
@@ -1,8 +1,6 @@
 package com.ledger.lib.apps.trx;
 
-import java.util.Arrays;
 import java.util.Vector;
-import java.io.ByteArrayOutputStream;
 
 import com.ledger.lib.LedgerException;
 import com.ledger.lib.transport.LedgerDevice;
@@ -10,7 +8,7 @@ import com.ledger.lib.apps.LedgerApplication;
 import com.ledger.lib.apps.common.WalletAddress;
 import com.ledger.lib.apps.common.ECDSADeviceSignature;
 import com.ledger.lib.utils.SW;
-import com.ledger.lib.utils.BIP32Helper;
+import com.ledger.lib.utils.ApduBuilder;
 import com.ledger.lib.utils.ApduExchange;
 import com.ledger.lib.utils.SerializeHelper;
 
@@ -110,12 +108,12 @@ public class Trx extends LedgerApplication {
    * @return information about the address
    */
   public WalletAddress getWalletAddress(String bip32Path, boolean verify) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
-    ApduExchange.ApduResponse response = ApduExchange.exchangeApdu(device, TRX_CLA, 
+    ApduExchange.ApduResponse response = startApdu(TRX_CLA, 
       INS_GET_PUBLIC_ADDRESS, 
       (verify ? P1_DISPLAY : P1_NO_DISPLAY),
-      P2_CHAINCODE,
-      convertedPath);
+      P2_CHAINCODE)
+      .writePath(bip32Path)
+      .exchange();
     response.checkSW();
     return SerializeHelper.readWalletAddress(response.getResponse());
   }  
@@ -148,19 +146,19 @@ public class Trx extends LedgerApplication {
    * @return ECDSA signature of the transaction
    */
   public ECDSADeviceSignature signInfoTransaction(String bip32Path, byte[] rawTransaction, Vector<byte[]> provisioningData) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
     int offset = 0;
     ApduExchange.ApduResponse response = null;
     // Send the TX
     while (offset != rawTransaction.length) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
       int p1;
-      int maxBlockSize = (offset == 0 ? MAX_BLOCK_SIZE - convertedPath.length : MAX_BLOCK_SIZE);
-      int blockSize = (offset + maxBlockSize > rawTransaction.length ? rawTransaction.length - offset : maxBlockSize);
+      // P1 depends on the block size, set once the data is written
+      ApduBuilder apdu = startApdu(TRX_CLA, INS_SIGN_TRANSACTION, 0, 0);
       if (offset == 0) {
-        out.write(convertedPath, 0, convertedPath.length);
+        apdu.writePath(bip32Path);
       }
-      out.write(Arrays.copyOfRange(rawTransaction, offset, offset + blockSize), 0, blockSize);
+      int maxBlockSize = MAX_BLOCK_SIZE - apdu.getDataLength();
+      int blockSize = (offset + maxBlockSize > rawTransaction.length ? rawTransaction.length - offset : maxBlockSize);
+      apdu.writeBytes(rawTransaction, offset, blockSize);
       if (offset == 0) {
         if (((offset + blockSize) == rawTransaction.length) && 
           ((provisioningData == null) || (provisioningData.size() == 0))) {
@@ -179,11 +177,7 @@ public class Trx extends LedgerApplication {
           p1 = P1_NEXT_BLOCK;
         }
       }
-      response = ApduExchange.exchangeApdu(device, TRX_CLA, 
-        INS_SIGN_TRANSACTION, 
-        p1,
-        0,
-        out.toByteArray());
+      response = apdu.setP1(p1).exchange();
       if (response.getSW() == SW.SW_INCORRECT_P1_P2) {
         // Most legitimate reason to receive this here
         throw new CustomContractNotEnabledException();
@@ -209,10 +203,9 @@ public class Trx extends LedgerApplication {
         response.checkSW();
       }
     }    
-    byte[] responseData = response.getResponse();
-    return new ECDSADeviceSignature((responseData[64] & 0xff), 
-      Arrays.copyOfRange(responseData, 0, 0 + 32),
-      Arrays.copyOfRange(responseData, 0 + 32, 0 + 32 + 32));    
+    return new ECDSADeviceSignature((response.getByte(64) & 0xff), 
+      response.copyData(0, 32),
+      response.copyData(32, 32));    
   }
 
   /**
@@ -222,30 +215,26 @@ public class Trx extends LedgerApplication {
    * @return ECDSA signature of the message
    */
   public ECDSADeviceSignature signPersonalMessage(String bip32Path, byte[] message) throws LedgerException {
-    byte[] convertedPath = BIP32Helper.splitPath(bip32Path);
     int offset = 0;
     ApduExchange.ApduResponse response = null;
     while (offset != message.length) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      int maxBlockSize = (offset == 0 ? MAX_BLOCK_SIZE - convertedPath.length - 4 : MAX_BLOCK_SIZE);
-      int blockSize = (offset + maxBlockSize > message.length ? message.length - offset : maxBlockSize);
-      if (offset == 0) {
-        out.write(convertedPath, 0, convertedPath.length);
-        SerializeHelper.writeUint32BE(out, message.length);
-      }
-      out.write(Arrays.copyOfRange(message, offset, offset + blockSize), 0, blockSize);
-      response = ApduExchange.exchangeApdu(device, TRX_CLA,
+      ApduBuilder apdu = startApdu(TRX_CLA,
         INS_SIGN_PERSONAL_MESSAGE, 
         (offset == 0 ? P1_FIRST_BLOCK : P1_NEXT_BLOCK),
-        0,
-        out.toByteArray());
+        0);
+      if (offset == 0) {
+        apdu.writePath(bip32Path);
+        apdu.writeUint32BE(message.length);
+      }
+      int maxBlockSize = MAX_BLOCK_SIZE - apdu.getDataLength();
+      int blockSize = (offset + maxBlockSize > message.length ? message.length - offset : maxBlockSize);
+      response = apdu.writeBytes(message, offset, blockSize).exchange();
       response.checkSW();
       offset += blockSize;
     }
-    byte[] responseData = response.getResponse();
-    return new ECDSADeviceSignature((responseData[64] & 0xff), 
-      Arrays.copyOfRange(responseData, 0, 0 + 32),
-      Arrays.copyOfRange(responseData, 0 + 32, 0 + 32 + 32));    
+    return new ECDSADeviceSignature((response.getByte(64) & 0xff), 
+      response.copyData(0, 32),
+      response.copyData(32, 32));    
   }
 
   /**
@@ -2,18 +2,10 @@ package com.ledger.lib.apps.trx;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.BufferedInputStream;
-
-import android.content.Context;
-import android.content.res.Resources;
 
 import com.ledger.lib.utils.SerializeHelper;
 import com.ledger.lib.utils.Dump;
 import com.ledger.lib.LedgerException;
-import com.ledger.lib.R;
 
 /**
  * Cache Tron signed information
@@ -49,6 +41,8 @@ public class TrxCache {
 
 	/**
 	 * Load the TRC 10 cache following a provided provisioning blob
+	 * 
+	 * On Android, the internal provisioning blobs are loaded with TrxCacheResources.loadCacheInternal
 	 * @param blob provisioning blob
 	 */
 	public static void loadTrc10Cache(byte[] blob) throws LedgerException {
@@ -63,31 +57,6 @@ public class TrxCache {
 		loadCache(cacheExchanges, blob);
 	}
 
-	private static byte[] readResource(Context context, int id) {
-		try {
-			BufferedInputStream is = new BufferedInputStream(context.getResources().openRawResource(id));
-			byte[] data = new byte[is.available()];
-			int offset = 0;
-			while (offset != data.length) {
-				int dataRead = is.read(data, offset, data.length - offset);
-				offset += dataRead;
-			}
-			return data;
-		}
-		catch(IOException e) {
-			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e);
-		}		
-	}
-
-	/**
-	 * Load the caches following the internal provisioning blob
-	 * @param context application context
-	 */
-	public static void loadCacheInternal(Context context) throws LedgerException {
-		loadTrc10Cache(readResource(context, R.raw.trc10));
-		loadExchangesCache(readResource(context, R.raw.tronexchanges));
-	}
-
 	/**
 	 * Look up a given TRC 10 ID in the cache
 	 * @param id id to look up
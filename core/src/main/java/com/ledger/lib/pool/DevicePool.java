@@ -0,0 +1,422 @@
+package com.ledger.lib.pool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.apps.LedgerApplication;
+import com.ledger.lib.transport.DeadlineException;
+import com.ledger.lib.transport.LedgerDevice;
+import com.ledger.lib.transport.LedgerDeviceSession;
+import com.ledger.lib.transport.LedgerFuture;
+import com.ledger.lib.utils.Dump;
+import com.ledger.lib.utils.Log;
+
+/**
+ * \brief Pool of opened devices, dispatching operations to idle devices holding the expected seed
+ *
+ * Devices are grouped by wallet ID, which is unique for a given seed. An operation is submitted for a wallet ID and run on the
+ * first idle device of this group, with an exclusive ownership of the device. If all devices of the group are busy, operations
+ * are queued in submission order and run as soon as a device is done, so that throughput grows with the number of devices
+ * holding the same seed.
+ *
+ * A device is evicted from the pool when an operation or a health check fails with a communication error, or when it is no
+ * longer opened. Deadline expirations and cancellations (DeadlineException) and errors returned by the device application
+ * keep the device in the pool. Operations still queued for a wallet ID fail when its last device is evicted
+ *
+ * The application running on each device shall answer the common wallet ID commands
+ */
+public class DevicePool {
+
+	private static final String LOG_STRING = "DevicePool";
+	private static final String THREAD_NAME = "DevicePool";
+
+	private static class PooledDevice {
+
+		private final LedgerDevice device;
+		private String walletId;
+		private boolean busy;
+		private boolean evicted;
+
+		PooledDevice(LedgerDevice device, String walletId) {
+			this.device = device;
+			this.walletId = walletId;
+		}
+
+	}
+
+	private static class Group {
+
+		private final ArrayList<PooledDevice> devices = new ArrayList<PooledDevice>();
+		private final ArrayDeque<Job<?>> pending = new ArrayDeque<Job<?>>();
+
+	}
+
+	private static class Job<T> {
+
+		private final LedgerDeviceSession.Operation<T> operation;
+		private final LedgerFuture<T> future;
+
+		Job(LedgerDeviceSession.Operation<T> operation) {
+			this.operation = operation;
+			future = new LedgerFuture<T>();
+		}
+
+		/**
+		 * Run the job on a device
+		 * @return the communication error raised by the device, or null
+		 */
+		LedgerException run(LedgerDevice device) {
+			if (future.isDone()) {
+				return null;
+			}
+			try {
+				future.complete(operation.run(device));
+			}
+			catch(LedgerException e) {
+				future.fail(e);
+				if (isCommunicationError(e)) {
+					return e;
+				}
+			}
+			catch(Throwable e) {
+				future.fail(new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e));
+			}
+			return null;
+		}
+
+	}
+
+	private final Object lock = new Object();
+	private final HashMap<String, Group> groups;
+	private final HashMap<LedgerDevice, PooledDevice> devices;
+	private final Executor executor;
+
+	/**
+	 * Constructor
+	 * @param executor executor running the operations, providing at least one thread per device to scale with the number of devices
+	 */
+	public DevicePool(Executor executor) {
+		this.executor = executor;
+		groups = new HashMap<String, Group>();
+		devices = new HashMap<LedgerDevice, PooledDevice>();
+	}
+
+	/**
+	 * Constructor running the operations on a dedicated thread per busy device
+	 */
+	public DevicePool() {
+		this(createExecutor());
+	}
+
+	private static ExecutorService createExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Check if an error means the device stopped answering, rather than a caller interrupting the call or the application
+	 * rejecting a command
+	 */
+	private static boolean isCommunicationError(LedgerException e) {
+		return (e.getReason() == LedgerException.ExceptionReason.IO_ERROR) && !(e instanceof DeadlineException);
+	}
+
+	private static String getWalletId(LedgerDevice device) throws LedgerException {
+		return Dump.dump(new LedgerApplication(device).getWalletID());
+	}
+
+	/**
+	 * Add a device to the pool, opening it if needed and reading its wallet ID
+	 * @param device device to add, only used through the pool afterwards
+	 * @return wallet ID of the device
+	 */
+	public byte[] addDevice(LedgerDevice device) throws LedgerException {
+		if (!device.isOpened()) {
+			device.open();
+		}
+		String walletId = getWalletId(device);
+		PooledDevice pooledDevice = new PooledDevice(device, walletId);
+		synchronized(lock) {
+			if (devices.containsKey(device)) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Device already in the pool");
+			}
+			devices.put(device, pooledDevice);
+			getGroup(walletId).devices.add(pooledDevice);
+			pooledDevice.busy = true;
+		}
+		release(pooledDevice);
+		return Dump.hexToBin(walletId);
+	}
+
+	/**
+	 * Remove a device from the pool, once its current operation is done. The device is not closed
+	 * @param device device to remove
+	 * @return true if the device was in the pool
+	 */
+	public boolean removeDevice(LedgerDevice device) {
+		PooledDevice pooledDevice;
+		synchronized(lock) {
+			pooledDevice = devices.get(device);
+			if (pooledDevice == null) {
+				return false;
+			}
+			evict(pooledDevice);
+		}
+		return true;
+	}
+
+	private Group getGroup(String walletId) {
+		Group group = groups.get(walletId);
+		if (group == null) {
+			group = new Group();
+			groups.put(walletId, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Remove a device from its group, failing the queued operations of the group if it was the last device. Called with the lock held
+	 */
+	private void evict(PooledDevice pooledDevice) {
+		if (pooledDevice.evicted) {
+			return;
+		}
+		pooledDevice.evicted = true;
+		devices.remove(pooledDevice.device);
+		Group group = groups.get(pooledDevice.walletId);
+		group.devices.remove(pooledDevice);
+		if (group.devices.isEmpty()) {
+			groups.remove(pooledDevice.walletId);
+			Job<?> job;
+			while ((job = group.pending.poll()) != null) {
+				job.future.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "No device left for this wallet"));
+			}
+		}
+	}
+
+	/**
+	 * Queue an operation on a device holding the given seed
+	 * @param walletId wallet ID of the seed, as returned by getWalletID
+	 * @param operation operation to run with an exclusive ownership of a device
+	 * @return future completed with the result of the operation
+	 */
+	public <T> LedgerFuture<T> submit(byte[] walletId, LedgerDeviceSession.Operation<T> operation) {
+		Job<T> job = new Job<T>(operation);
+		PooledDevice pooledDevice = null;
+		synchronized(lock) {
+			Group group = groups.get(Dump.dump(walletId));
+			if (group == null) {
+				job.future.fail(new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "No device for this wallet"));
+				return job.future;
+			}
+			for (PooledDevice candidate : group.devices) {
+				if (!candidate.busy) {
+					pooledDevice = candidate;
+					pooledDevice.busy = true;
+					break;
+				}
+			}
+			if (pooledDevice == null) {
+				group.pending.add(job);
+				return job.future;
+			}
+		}
+		start(pooledDevice, job);
+		return job.future;
+	}
+
+	/**
+	 * Run an operation on a device holding the given seed, blocking until it completes
+	 * @param walletId wallet ID of the seed, as returned by getWalletID
+	 * @param operation operation to run with an exclusive ownership of a device
+	 * @return result of the operation
+	 */
+	public <T> T execute(byte[] walletId, LedgerDeviceSession.Operation<T> operation) throws LedgerException {
+		return submit(walletId, operation).await(Long.MAX_VALUE);
+	}
+
+	private void start(final PooledDevice pooledDevice, final Job<?> job) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				runJobs(pooledDevice, job);
+			}
+		});
+	}
+
+	/**
+	 * Run a job then the jobs queued for the same wallet on a busy device, until none is left
+	 */
+	private void runJobs(PooledDevice pooledDevice, Job<?> job) {
+		while (job != null) {
+			LedgerException error = job.run(pooledDevice.device);
+			if ((error != null) || !pooledDevice.device.isOpened()) {
+				Log.d(LOG_STRING, "Evicting device after a communication error " + error);
+				synchronized(lock) {
+					evict(pooledDevice);
+				}
+				closeQuietly(pooledDevice.device);
+				return;
+			}
+			job = next(pooledDevice);
+		}
+	}
+
+	/**
+	 * Return the next job queued for a busy device, or mark it idle
+	 */
+	private Job<?> next(PooledDevice pooledDevice) {
+		synchronized(lock) {
+			if (pooledDevice.evicted) {
+				return null;
+			}
+			Job<?> job = groups.get(pooledDevice.walletId).pending.poll();
+			if (job == null) {
+				pooledDevice.busy = false;
+			}
+			return job;
+		}
+	}
+
+	/**
+	 * Start the jobs queued for the group of a busy device, or mark it idle
+	 */
+	private void release(PooledDevice pooledDevice) {
+		Job<?> job = next(pooledDevice);
+		if (job != null) {
+			start(pooledDevice, job);
+		}
+	}
+
+	private static void closeQuietly(LedgerDevice device) {
+		try {
+			device.close();
+		}
+		catch(LedgerException e) {
+		}
+	}
+
+	/**
+	 * Check all idle devices, reading their wallet ID. Devices failing to answer or no longer opened are evicted, and devices
+	 * whose seed changed are moved to their new group. Devices whose application rejects the wallet ID commands are kept in
+	 * their group. Busy devices are checked by their current operation
+	 * @return number of devices evicted
+	 */
+	public int checkHealth() {
+		List<PooledDevice> idleDevices = new ArrayList<PooledDevice>();
+		synchronized(lock) {
+			for (PooledDevice pooledDevice : devices.values()) {
+				if (!pooledDevice.busy) {
+					pooledDevice.busy = true;
+					idleDevices.add(pooledDevice);
+				}
+			}
+		}
+		int evicted = 0;
+		for (PooledDevice pooledDevice : idleDevices) {
+			String walletId = null;
+			boolean failed = !pooledDevice.device.isOpened();
+			if (!failed) {
+				try {
+					walletId = getWalletId(pooledDevice.device);
+				}
+				catch(LedgerException e) {
+					Log.d(LOG_STRING, "Health check failed " + e);
+					failed = (isCommunicationError(e) || !pooledDevice.device.isOpened());
+					// The application can't tell its seed, the device stays in its group
+					walletId = pooledDevice.walletId;
+				}
+			}
+			if (failed) {
+				synchronized(lock) {
+					evict(pooledDevice);
+				}
+				closeQuietly(pooledDevice.device);
+				evicted++;
+				continue;
+			}
+			if (!walletId.equals(pooledDevice.walletId)) {
+				synchronized(lock) {
+					if (pooledDevice.evicted) {
+						continue;
+					}
+					evict(pooledDevice);
+					pooledDevice.evicted = false;
+					pooledDevice.walletId = walletId;
+					devices.put(pooledDevice.device, pooledDevice);
+					getGroup(walletId).devices.add(pooledDevice);
+				}
+			}
+			release(pooledDevice);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Return the wallet IDs of the seeds held by the devices of the pool
+	 * @return list of wallet IDs
+	 */
+	public List<byte[]> getWalletIds() {
+		List<byte[]> result = new ArrayList<byte[]>();
+		synchronized(lock) {
+			for (String walletId : groups.keySet()) {
+				result.add(Dump.hexToBin(walletId));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the devices holding a given seed
+	 * @param walletId wallet ID of the seed
+	 * @return list of devices, busy or idle
+	 */
+	public List<LedgerDevice> getDevices(byte[] walletId) {
+		List<LedgerDevice> result = new ArrayList<LedgerDevice>();
+		synchronized(lock) {
+			Group group = groups.get(Dump.dump(walletId));
+			if (group != null) {
+				for (PooledDevice pooledDevice : group.devices) {
+					result.add(pooledDevice.device);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of devices in the pool
+	 * @return number of devices
+	 */
+	public int getDeviceCount() {
+		synchronized(lock) {
+			return devices.size();
+		}
+	}
+
+	/**
+	 * Return the number of operations waiting for a device holding a given seed
+	 * @param walletId wallet ID of the seed
+	 * @return number of queued operations
+	 */
+	public int getPendingCount(byte[] walletId) {
+		synchronized(lock) {
+			Group group = groups.get(Dump.dump(walletId));
+			return (group != null ? group.pending.size() : 0);
+		}
+	}
+
+}
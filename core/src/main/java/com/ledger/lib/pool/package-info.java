@@ -0,0 +1,4 @@
+/**
+ * \brief Scheduling of operations across several connected Ledger devices
+ */
+package com.ledger.lib.pool;
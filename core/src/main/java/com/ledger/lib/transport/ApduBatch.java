@@ -0,0 +1,240 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.ApduExchange;
+import com.ledger.lib.utils.SW;
+
+/**
+ * \brief Result of a batch of APDUs exchanged back to back with a device
+ *
+ * The APDUs of a batch are encoded by the caller before the batch is exchanged, and sent one after the other with
+ * exchangeInto, all responses being received into a single buffer allocated once for the batch and sized from the maximum
+ * response size of each command. The batch stops at the first response whose Status Word is not accepted by its command, the
+ * following commands not being sent
+ *
+ * The batch is not framed as a whole : each APDU is still framed by the transport (HID reports, BLE chunks, TCP length
+ * prefix) when it is exchanged, as a Ledger device only receives a command once the previous response was read. A batch
+ * saves the per-command allocations and scheduling, not the round trips
+ *
+ * A batch is not atomic : a device shared with other callers shall be owned by the batch until it completes, which is the
+ * case of LedgerDeviceSession.exchangeBatch
+ */
+public class ApduBatch {
+
+	/** Maximum size of a response to a short APDU, including the Status Word */
+	public static final int MAX_RESPONSE_SIZE = 256 + 2;
+
+	private static final int[] SW_OK_ONLY = { SW.SW_OK };
+
+	/**
+	 * \brief Command of a batch, encoded once and reusable across batches
+	 */
+	public static class Command {
+
+		private final ByteBuffer apdu;
+		private final int[] acceptedSW;
+		private final int maxResponseSize;
+
+		/**
+		 * Create a command only accepting SW_OK
+		 * @param apdu APDU to send, not copied
+		 */
+		public Command(byte[] apdu) {
+			this(apdu, SW_OK_ONLY);
+		}
+
+		/**
+		 * Create a command accepting a list of Status Words, whose response size is given by the Le of the APDU if any
+		 * @param apdu APDU to send, not copied
+		 * @param acceptedSW list of accepted Status Word
+		 */
+		public Command(byte[] apdu, int[] acceptedSW) {
+			this(apdu, acceptedSW, getMaxResponseSize(apdu));
+		}
+
+		/**
+		 * Create a command accepting a list of Status Words, with a known maximum response size
+		 * @param apdu APDU to send, not copied
+		 * @param acceptedSW list of accepted Status Word
+		 * @param maxResponseSize maximum size of the response including the Status Word, at most MAX_RESPONSE_SIZE
+		 * @throw LedgerException if the response size is invalid
+		 */
+		public Command(byte[] apdu, int[] acceptedSW, int maxResponseSize) throws LedgerException {
+			if ((maxResponseSize < 2) || (maxResponseSize > MAX_RESPONSE_SIZE)) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid response size " + maxResponseSize);
+			}
+			this.apdu = ByteBuffer.wrap(apdu);
+			this.acceptedSW = acceptedSW;
+			this.maxResponseSize = maxResponseSize;
+		}
+
+		/**
+		 * Return the response size given by the Le of a short APDU, or MAX_RESPONSE_SIZE if the APDU has no Le
+		 */
+		private static int getMaxResponseSize(byte[] apdu) {
+			int le;
+			if (apdu.length == 5) {
+				le = apdu[4] & 0xff;
+			}
+			else
+			if ((apdu.length > 5) && (apdu.length == 5 + (apdu[4] & 0xff) + 1)) {
+				le = apdu[apdu.length - 1] & 0xff;
+			}
+			else {
+				return MAX_RESPONSE_SIZE;
+			}
+			return (le == 0 ? 256 : le) + 2;
+		}
+
+		boolean accepts(int sw) {
+			for (int accepted : acceptedSW) {
+				if (sw == accepted) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+	private final int count;
+	private final ByteBuffer responses;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final int[] statusWords;
+	private int executed;
+	private int failedIndex;
+
+	private ApduBatch(List<Command> commands) {
+		count = commands.size();
+		int size = 0;
+		for (Command command : commands) {
+			size += command.maxResponseSize;
+		}
+		responses = ByteBuffer.allocate(size);
+		offsets = new int[count];
+		lengths = new int[count];
+		statusWords = new int[count];
+		failedIndex = -1;
+	}
+
+	/**
+	 * Exchange a batch of commands with a device, stopping at the first Status Word not accepted. The device shall be
+	 * owned by the caller until the batch completes
+	 * @param device device to exchange the commands with
+	 * @param commands commands to exchange, in order
+	 * @return result of the batch
+	 * @throw LedgerException if a communication error occurs
+	 */
+	public static ApduBatch exchange(LedgerDevice device, List<Command> commands) throws LedgerException {
+		ApduBatch batch = new ApduBatch(commands);
+		for (int i=0; i<batch.count; i++) {
+			Command command = commands.get(i);
+			command.apdu.clear();
+			int offset = batch.responses.position();
+			batch.responses.limit(offset + command.maxResponseSize);
+			int length = LedgerDevices.exchangeInto(device, command.apdu, batch.responses);
+			if (length < 2) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Truncated response");
+			}
+			int sw = ((batch.responses.get(offset + length - 2) & 0xff) << 8) | (batch.responses.get(offset + length - 1) & 0xff);
+			batch.offsets[i] = offset;
+			batch.lengths[i] = length;
+			batch.statusWords[i] = sw;
+			batch.executed++;
+			if (!command.accepts(sw)) {
+				batch.failedIndex = i;
+				break;
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Return the number of commands in the batch
+	 * @return number of commands
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the number of commands exchanged, including the failed command
+	 * @return number of commands exchanged
+	 */
+	public int getExecutedCount() {
+		return executed;
+	}
+
+	/**
+	 * Check if all commands were exchanged and accepted
+	 * @return true if the batch completed
+	 */
+	public boolean isComplete() {
+		return (failedIndex < 0);
+	}
+
+	/**
+	 * Return the index of the command whose Status Word was not accepted
+	 * @return index of the failed command, or -1 if the batch completed
+	 */
+	public int getFailedIndex() {
+		return failedIndex;
+	}
+
+	/**
+	 * Return the Status Word which stopped the batch
+	 * @return Status Word of the failed command, or SW_OK if the batch completed
+	 */
+	public int getFailedSW() {
+		return (failedIndex >= 0 ? statusWords[failedIndex] : SW.SW_OK);
+	}
+
+	/**
+	 * Return the Status Word of an exchanged command
+	 * @param index index of the command
+	 * @return Status Word
+	 */
+	public int getSW(int index) throws LedgerException {
+		checkIndex(index);
+		return statusWords[index];
+	}
+
+	/**
+	 * Wrap the response of an exchanged command, without copying it
+	 * @param index index of the command
+	 * @param result response wrapping the command response, reused by the caller
+	 * @return result
+	 */
+	public ApduExchange.ApduResponse getResponse(int index, ApduExchange.ApduResponse result) throws LedgerException {
+		checkIndex(index);
+		return result.wrap(responses, offsets[index], lengths[index]);
+	}
+
+	/**
+	 * Return the response of the last exchanged command, usually holding the result of a multi-APDU flow
+	 * @return response data and Status Word
+	 */
+	public ApduExchange.ApduResponse getLastResponse() throws LedgerException {
+		return getResponse(executed - 1, new ApduExchange.ApduResponse());
+	}
+
+	/**
+	 * Throw the exception matching the Status Word which stopped the batch, if any
+	 */
+	public void checkSW() throws LedgerException {
+		if (failedIndex >= 0) {
+			throw ApduExchange.getSWException(statusWords[failedIndex]);
+		}
+	}
+
+	private void checkIndex(int index) throws LedgerException {
+		if ((index < 0) || (index >= executed)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Command " + index + " was not exchanged");
+		}
+	}
+
+}
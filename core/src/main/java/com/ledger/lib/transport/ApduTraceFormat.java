@@ -0,0 +1,23 @@
+package com.ledger.lib.transport;
+
+/**
+ * Layout of the APDU trace files written by LedgerDeviceRecorder and read by LedgerDeviceReplay
+ *
+ * All values are big endian. The file starts with a header (magic, format version), followed by one record per exchange :
+ * timestamp of the command (nanoseconds since the epoch, 8 bytes), time taken by the device to answer (nanoseconds, 8 bytes),
+ * command length (4 bytes), response length (4 bytes, -1 if the exchange failed), command, response.
+ *
+ * The file is preallocated while recording, a zero command length marking the end of the records
+ */
+final class ApduTraceFormat {
+
+	static final int MAGIC = 0x4C545243; // LTRC
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 8 + 8 + 4 + 4;
+	static final int FAILED_EXCHANGE = -1;
+
+	private ApduTraceFormat() {
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Expose a blocking Ledger device through the asynchronous exchange interface
+ *
+ * Exchanges are run on the provided executor. Several devices can share the same executor if it provides enough threads.
+ */
+public class AsyncDeviceAdapter implements AsyncLedgerDevice, ExtendedLedgerDevice {
+
+	private LedgerDevice device;
+	private Executor executor;
+
+	/**
+	 * Constructor
+	 * @param device blocking device to use
+	 * @param executor executor running the blocking exchanges
+	 */
+	public AsyncDeviceAdapter(LedgerDevice device, Executor executor) {
+		this.device = device;
+		this.executor = executor;
+	}
+
+	/**
+	 * Return an asynchronous interface to a device, wrapping it only if it is not natively asynchronous
+	 * @param device device to use
+	 * @param executor executor running the blocking exchanges if the device is not natively asynchronous
+	 * @return asynchronous interface to the device
+	 */
+	public static AsyncLedgerDevice wrap(LedgerDevice device, Executor executor) {
+		if (device instanceof AsyncLedgerDevice) {
+			return (AsyncLedgerDevice)device;
+		}
+		return new AsyncDeviceAdapter(device, executor);
+	}
+
+	@Override
+	public LedgerFuture<byte[]> exchangeAsync(final byte[] apdu) {
+		final LedgerFuture<byte[]> future = new LedgerFuture<byte[]>();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isDone()) {
+					return;
+				}
+				try {
+					future.complete(device.exchange(apdu));
+				}
+				catch(LedgerException e) {
+					future.fail(e);
+				}
+				catch(Throwable e) {
+					future.fail(new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e));
+				}
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public void open() throws LedgerException {
+		device.open();
+	}
+
+	@Override
+	public byte[] exchange(byte[] apdu) throws LedgerException {
+		return device.exchange(apdu);
+	}
+
+	@Override
+	public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+		return LedgerDevices.exchange(device, apdu, deadline);
+	}
+
+	@Override
+	public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+		return LedgerDevices.exchangeInto(device, command, response);
+	}
+
+	@Override
+	public void close() throws LedgerException {
+		device.close();
+	}
+
+	@Override
+	public void setDebug(boolean debugFlag) {
+		device.setDebug(debugFlag);
+	}
+
+	@Override
+	public void setExchangeListener(ExchangeListener listener) {
+		LedgerDevices.setExchangeListener(device, listener);
+	}
+
+	@Override
+	public boolean isOpened() {
+		return device.isOpened();
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.ledger.lib.transport;
+
+/**
+ * \brief Interface implemented by a Ledger device communication class able to exchange APDUs without blocking the caller
+ */
+public interface AsyncLedgerDevice extends LedgerDevice {
+
+  /**
+   * Exchange an APDU with the device without blocking. Only one exchange can be in progress at a time.
+   * @param apdu APDU to send to the device
+   * @return future completed with the response to the APDU including the Status Word
+   */
+	public LedgerFuture<byte[]> exchangeAsync(byte[] apdu);
+
+}
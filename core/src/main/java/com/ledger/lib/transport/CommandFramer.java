@@ -0,0 +1,215 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Split a command into packets to be sent over the chosen bearer, one packet at a time
+ *
+ * The framed size is known as soon as the command is set, and each packet header and payload slice is written
+ * directly into a buffer provided by the caller, so that a transport can reuse a single packet buffer
+*/
+public class CommandFramer {
+	private static final int TAG_APDU = 0x05;
+
+	private int channel;
+	private boolean hasChannel;
+	private int headerSize;
+	private byte[] command;
+	private int commandOffset;
+	private int commandEnd;
+	private int packetSize;
+	private int packetCount;
+	private int sequenceIdx;
+
+	/**
+	 * Create a framer for a bearer including channel information
+	 * @param channel dummy channel to use
+	 */
+	public CommandFramer(int channel) {
+		this(channel, true);
+	}
+
+	/**
+	 * Create a framer for a bearer without channel information
+	 */
+	public CommandFramer() {
+		this(0, false);
+	}
+
+	private CommandFramer(int channel, boolean hasChannel) {
+		this.channel = channel;
+		this.hasChannel = hasChannel;
+		this.headerSize = (hasChannel ? 7 : 5);
+	}
+
+	/**
+	 * Change the channel used for the next commands
+	 * @param channel channel to use
+	 */
+	public void setChannel(int channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Compute the number of packets needed to send a command
+	 * @param commandLength length of the command
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @param hasChannel set to true if this bearer includes channel information
+	 * @return number of packets
+	 */
+	public static int getPacketCount(int commandLength, int packetSize, boolean hasChannel) throws LedgerException {
+		int headerSize = (hasChannel ? 7 : 5);
+		if (packetSize <= headerSize) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Can't handle Ledger framing with less than " + (headerSize + 1) + " bytes for the report");
+		}
+		int firstBlockSize = packetSize - headerSize;
+		int nextBlockSize = firstBlockSize + 2;
+		if (commandLength <= firstBlockSize) {
+			return 1;
+		}
+		return 1 + (commandLength - firstBlockSize + nextBlockSize - 1) / nextBlockSize;
+	}
+
+	/**
+	 * Set the command to split. The command buffer is not copied and shall not be modified until all packets are produced
+	 * @param command buffer containing the command to send
+	 * @param offset offset to the command in the buffer
+	 * @param length length of the command
+	 * @param packetSize maximum size of a packet for this bearer
+	 */
+	public void start(byte[] command, int offset, int length, int packetSize) throws LedgerException {
+		if (length > 0xffff) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Command too long");
+		}
+		this.packetCount = getPacketCount(length, packetSize, hasChannel);
+		this.command = command;
+		this.commandOffset = offset;
+		this.commandEnd = offset + length;
+		this.packetSize = packetSize;
+		this.sequenceIdx = 0;
+	}
+
+	/**
+	 * Set the command to split
+	 * @param command command to send
+	 * @param packetSize maximum size of a packet for this bearer
+	 */
+	public void start(byte[] command, int packetSize) throws LedgerException {
+		start(command, 0, command.length, packetSize);
+	}
+
+	/**
+	 * Return the number of packets needed to send the current command
+	 * @return number of packets
+	 */
+	public int getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Return the size of the current command once framed, each packet being padded to the packet size
+	 * @return framed size
+	 */
+	public int getFramedSize() {
+		return packetCount * packetSize;
+	}
+
+	/**
+	 * Check if packets are still to be produced for the current command
+	 * @return true if another packet is available
+	 */
+	public boolean hasNextPacket() {
+		return (command != null) && (sequenceIdx < packetCount);
+	}
+
+	/**
+	 * Return the length of the next packet, padding excluded
+	 * @return length of the next packet
+	 */
+	public int getNextPacketLength() throws LedgerException {
+		if (!hasNextPacket()) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "No more packets to frame");
+		}
+		int maxBlockSize = packetSize - headerSize + (sequenceIdx == 0 ? 0 : 2);
+		int blockSize = (commandEnd - commandOffset > maxBlockSize ? maxBlockSize : commandEnd - commandOffset);
+		return packetSize - maxBlockSize + blockSize;
+	}
+
+	/**
+	 * Write the next packet into a buffer. Padding is not written.
+	 * @param packet buffer to write the packet to, with at least packetSize bytes available from the given offset
+	 * @param offset offset to write the packet to
+	 * @return length of the packet written
+	 */
+	public int nextPacket(byte[] packet, int offset) throws LedgerException {
+		if (!hasNextPacket()) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "No more packets to frame");
+		}
+		int start = offset;
+		if (hasChannel) {
+			packet[offset++] = (byte)(channel >> 8);
+			packet[offset++] = (byte)channel;
+		}
+		packet[offset++] = TAG_APDU;
+		packet[offset++] = (byte)(sequenceIdx >> 8);
+		packet[offset++] = (byte)sequenceIdx;
+		int maxBlockSize = packetSize - headerSize + 2;
+		if (sequenceIdx == 0) {
+			int commandLength = commandEnd - commandOffset;
+			packet[offset++] = (byte)(commandLength >> 8);
+			packet[offset++] = (byte)commandLength;
+			maxBlockSize -= 2;
+		}
+		int blockSize = (commandEnd - commandOffset > maxBlockSize ? maxBlockSize : commandEnd - commandOffset);
+		System.arraycopy(command, commandOffset, packet, offset, blockSize);
+		commandOffset += blockSize;
+		offset += blockSize;
+		sequenceIdx++;
+		if (sequenceIdx == packetCount) {
+			command = null;
+		}
+		return offset - start;
+	}
+
+	/**
+	 * Write the next packet into a buffer at its current position. Padding is not written.
+	 * @param packet buffer to write the packet to, with at least packetSize bytes remaining
+	 * @return length of the packet written
+	 */
+	public int nextPacket(ByteBuffer packet) throws LedgerException {
+		if (packet.hasArray()) {
+			int length = nextPacket(packet.array(), packet.arrayOffset() + packet.position());
+			packet.position(packet.position() + length);
+			return length;
+		}
+		if (!hasNextPacket()) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "No more packets to frame");
+		}
+		int start = packet.position();
+		if (hasChannel) {
+			packet.put((byte)(channel >> 8));
+			packet.put((byte)channel);
+		}
+		packet.put((byte)TAG_APDU);
+		packet.put((byte)(sequenceIdx >> 8));
+		packet.put((byte)sequenceIdx);
+		int maxBlockSize = packetSize - headerSize + 2;
+		if (sequenceIdx == 0) {
+			int commandLength = commandEnd - commandOffset;
+			packet.put((byte)(commandLength >> 8));
+			packet.put((byte)commandLength);
+			maxBlockSize -= 2;
+		}
+		int blockSize = (commandEnd - commandOffset > maxBlockSize ? maxBlockSize : commandEnd - commandOffset);
+		packet.put(command, commandOffset, blockSize);
+		commandOffset += blockSize;
+		sequenceIdx++;
+		if (sequenceIdx == packetCount) {
+			command = null;
+		}
+		return packet.position() - start;
+	}
+
+}
@@ -0,0 +1,239 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Time limit and cancellation signal of a call to a device
+ *
+ * A deadline is passed to each exchange of a call, possibly spanning several APDUs. Exchanges fail with a DeadlineException once
+ * the deadline expires or once it is cancelled from another thread. Transports register a cancellation listener to abort their
+ * pending wait immediately.
+ *
+ * An exchange interrupted by a deadline leaves the transport resynchronized : the late response of the interrupted command is
+ * drained and never returned to the next exchange. Devices only implementing LedgerDevice can't be interrupted, the deadline
+ * being checked before each of their exchanges.
+ *
+ * Application classes (Btc, Eth, Trx ...) use a deadline when created on the device returned by bind. The deadline is then
+ * checked before each APDU of their multi-APDU calls. Such an application object is only usable until the deadline expires,
+ * callers create one per call, for example new Btc(Deadline.after(timeoutMS).bind(device))
+ */
+public class Deadline {
+
+	private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private final long deadline;
+	private volatile boolean cancelled;
+	private List<Runnable> listeners;
+
+	private Deadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Create a deadline expiring after a given time
+	 * @param timeoutMS time before expiration (in milliseconds), 0 or less for an already expired deadline
+	 * @return deadline
+	 */
+	public static Deadline after(long timeoutMS) {
+		if (timeoutMS <= 0) {
+			return new Deadline(System.nanoTime());
+		}
+		return new Deadline(System.nanoTime() + timeoutMS * 1000000L);
+	}
+
+	/**
+	 * Create a deadline never expiring, which can only be cancelled
+	 * @return deadline
+	 */
+	public static Deadline none() {
+		return new Deadline(NO_DEADLINE);
+	}
+
+	/**
+	 * Cancel the calls using this deadline. Pending exchanges fail as soon as possible
+	 */
+	public void cancel() {
+		List<Runnable> currentListeners;
+		synchronized(this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			currentListeners = listeners;
+			listeners = null;
+		}
+		if (currentListeners != null) {
+			for (Runnable listener : currentListeners) {
+				listener.run();
+			}
+		}
+	}
+
+	/**
+	 * Check if the deadline was cancelled
+	 * @return true if cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Check if the deadline expired
+	 * @return true if expired
+	 */
+	public boolean isExpired() {
+		return (deadline != NO_DEADLINE) && (System.nanoTime() - deadline >= 0);
+	}
+
+	/**
+	 * Check if the deadline has a time limit
+	 * @return true if the deadline expires
+	 */
+	public boolean hasTimeLimit() {
+		return (deadline != NO_DEADLINE);
+	}
+
+	/**
+	 * Return the time left before expiration
+	 * @return remaining time (in nanoseconds), 0 if expired, Long.MAX_VALUE if the deadline never expires
+	 */
+	public long getRemainingNanos() {
+		if (deadline == NO_DEADLINE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, deadline - System.nanoTime());
+	}
+
+	/**
+	 * Return the time left before expiration, rounded up
+	 * @return remaining time (in milliseconds), 0 if expired, Long.MAX_VALUE if the deadline never expires
+	 */
+	public long getRemainingMillis() {
+		if (deadline == NO_DEADLINE) {
+			return Long.MAX_VALUE;
+		}
+		return (getRemainingNanos() + 999999L) / 1000000L;
+	}
+
+	/**
+	 * Throw if the deadline was cancelled or expired
+	 * @throw DeadlineException if the deadline was cancelled or expired
+	 */
+	public void check() throws LedgerException {
+		if (cancelled) {
+			throw new DeadlineException("Cancelled");
+		}
+		if (isExpired()) {
+			throw new DeadlineException("Timeout");
+		}
+	}
+
+	/**
+	 * Block the calling thread until a given time, or until the deadline expires or is cancelled
+	 * @param endTime time to wait for, as given by System.nanoTime
+	 * @throw LedgerException if the deadline expired or was cancelled before the end time
+	 */
+	public void parkUntil(long endTime) throws LedgerException {
+		final Thread thread = Thread.currentThread();
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				LockSupport.unpark(thread);
+			}
+		};
+		addCancellationListener(listener);
+		try {
+			long remaining;
+			while ((remaining = endTime - System.nanoTime()) > 0) {
+				check();
+				LockSupport.parkNanos(Math.min(remaining, getRemainingNanos()));
+			}
+		}
+		finally {
+			removeCancellationListener(listener);
+		}
+	}
+
+	/**
+	 * Register a listener called once when the deadline is cancelled, immediately if already cancelled. The listener can be called
+	 * from any thread and shall not block
+	 * @param listener listener to call
+	 */
+	public void addCancellationListener(Runnable listener) {
+		synchronized(this) {
+			if (!cancelled) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Unregister a cancellation listener
+	 * @param listener listener to remove
+	 */
+	public synchronized void removeCancellationListener(Runnable listener) {
+		if (listeners != null) {
+			listeners.remove(listener);
+		}
+	}
+
+	/**
+	 * Return a view of a device exchanging all APDUs with this deadline, to create short-lived application objects for a call
+	 * @param device device to use
+	 * @return device using this deadline
+	 */
+	public LedgerDevice bind(final LedgerDevice device) {
+		return new ExtendedLedgerDevice() {
+			@Override
+			public void open() throws LedgerException {
+				device.open();
+			}
+
+			@Override
+			public byte[] exchange(byte[] apdu) throws LedgerException {
+				return LedgerDevices.exchange(device, apdu, Deadline.this);
+			}
+
+			@Override
+			public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+				return LedgerDevices.exchange(device, apdu, deadline);
+			}
+
+			@Override
+			public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+				return ExchangeBuffers.exchangeInto(this, command, response);
+			}
+
+			@Override
+			public void close() throws LedgerException {
+				device.close();
+			}
+
+			@Override
+			public void setDebug(boolean debugFlag) {
+				device.setDebug(debugFlag);
+			}
+
+			@Override
+			public void setExchangeListener(ExchangeListener listener) {
+				LedgerDevices.setExchangeListener(device, listener);
+			}
+
+			@Override
+			public boolean isOpened() {
+				return device.isOpened();
+			}
+		};
+	}
+
+}
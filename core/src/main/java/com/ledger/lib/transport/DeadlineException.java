@@ -0,0 +1,19 @@
+package com.ledger.lib.transport;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Exception returned when a call is interrupted because its deadline expired or it was cancelled
+ *
+ * The reason is IO_ERROR, as for other interrupted exchanges. Unlike a communication error, it does not mean the device stopped
+ * answering : the transport is left usable, unless it closed the device because it could not be resynchronized
+ */
+public class DeadlineException extends LedgerException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineException(String details) {
+		super(LedgerException.ExceptionReason.IO_ERROR, details);
+	}
+
+}
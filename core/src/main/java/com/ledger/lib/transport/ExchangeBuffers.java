@@ -0,0 +1,68 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Helpers for devices exchanging commands and responses held in buffers
+ *
+ * Devices which can't send a command from a buffer or receive a response into a buffer implement exchangeInto on top of
+ * exchange with these helpers, the command being only copied if it does not cover a whole array. The USB and BLE transports
+ * frame and reassemble in place, and only use them for direct buffers
+ */
+public class ExchangeBuffers {
+
+	/**
+	 * Return the command held between the position and the limit of a buffer, moving the position to the limit
+	 * @param command buffer holding the command
+	 * @return backing array of the buffer if the command covers it entirely, otherwise a copy of the command
+	 */
+	public static byte[] getCommand(ByteBuffer command) {
+		int length = command.remaining();
+		if (command.hasArray() && (command.arrayOffset() + command.position() == 0) && (command.array().length == length)) {
+			command.position(command.limit());
+			return command.array();
+		}
+		byte[] result = new byte[length];
+		command.get(result);
+		return result;
+	}
+
+	/**
+	 * Write a response at the position of a buffer, moving the position past the response
+	 * @param response response including the Status Word
+	 * @param target buffer to write the response to
+	 * @return length of the response
+	 * @throw LedgerException if the buffer is too small
+	 */
+	public static int putResponse(byte[] response, ByteBuffer target) throws LedgerException {
+		checkResponseSize(response.length, target);
+		target.put(response);
+		return response.length;
+	}
+
+	/**
+	 * Check that a response fits in a buffer
+	 * @param length length of the response including the Status Word
+	 * @param target buffer to write the response to
+	 * @throw LedgerException if the buffer is too small
+	 */
+	public static void checkResponseSize(int length, ByteBuffer target) throws LedgerException {
+		if (target.remaining() < length) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Response buffer too small for " + length + " bytes");
+		}
+	}
+
+	/**
+	 * Exchange a command held in a buffer through the exchange method of a device
+	 * @param device device to exchange the command with
+	 * @param command buffer holding the command between its position and its limit
+	 * @param response buffer receiving the response at its position
+	 * @return length of the response including the Status Word
+	 */
+	public static int exchangeInto(LedgerDevice device, ByteBuffer command, ByteBuffer response) throws LedgerException {
+		return putResponse(device.exchange(getCommand(command)), response);
+	}
+
+}
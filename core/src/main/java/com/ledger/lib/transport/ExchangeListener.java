@@ -0,0 +1,17 @@
+package com.ledger.lib.transport;
+
+/**
+ * \brief Listener notified by a Ledger device at the end of each APDU exchange
+ *
+ * The listener is called on the thread completing the exchange, before the response is returned to the caller, so it shall
+ * return quickly. The metrics object is reused by the device for the next exchange and shall not be kept
+ */
+public interface ExchangeListener {
+
+	/**
+	 * Called when an exchange completes or fails
+	 * @param metrics metrics of the exchange, only valid during the call
+	 */
+	public void onExchange(ExchangeMetrics metrics);
+
+}
@@ -0,0 +1,276 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * \brief Timings and sizes of a single APDU exchange, filled by the transport
+ *
+ * The exchange time is split into three phases adding up to the total time :
+ *
+ * Framing : time spent by the host splitting the command into transport fragments
+ *
+ * Transmit : time spent sending the command fragments to the device
+ *
+ * Device : time from the end of the transmission until the complete response is received, including the device processing
+ * and the user confirmation if any
+ *
+ * A transport owns one instance, reused for each exchange, so that no allocation is done when metrics are collected
+ */
+public class ExchangeMetrics {
+
+	/** Status Word reported for a failed exchange */
+	public static final int NO_STATUS_WORD = -1;
+
+	private String transport;
+	private int cla;
+	private int ins;
+	private int statusWord;
+	private int commandBytes;
+	private int responseBytes;
+	private int commandFragments;
+	private int responseFragments;
+	private long startTime;
+	private long sentTime;
+	private long endTime;
+	private long framingNanos;
+	private boolean failed;
+
+	/**
+	 * Constructor
+	 * @param transport name of the transport reporting the metrics
+	 */
+	public ExchangeMetrics(String transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Start measuring a new exchange
+	 * @param apdu command sent to the device
+	 */
+	public void start(byte[] apdu) {
+		start(apdu, 0, apdu.length);
+	}
+
+	/**
+	 * Start measuring a new exchange
+	 * @param apdu buffer holding the command sent to the device
+	 * @param offset offset to the command in the buffer
+	 * @param length length of the command
+	 */
+	public void start(byte[] apdu, int offset, int length) {
+		start(length > 0 ? apdu[offset] & 0xff : 0, length > 1 ? apdu[offset + 1] & 0xff : 0, length);
+	}
+
+	/**
+	 * Start measuring a new exchange
+	 * @param command buffer holding the command sent to the device between its position and its limit
+	 */
+	public void start(ByteBuffer command) {
+		int position = command.position();
+		int length = command.remaining();
+		start(length > 0 ? command.get(position) & 0xff : 0, length > 1 ? command.get(position + 1) & 0xff : 0, length);
+	}
+
+	private void start(int cla, int ins, int length) {
+		startTime = System.nanoTime();
+		sentTime = 0;
+		endTime = 0;
+		framingNanos = 0;
+		this.cla = cla;
+		this.ins = ins;
+		commandBytes = length;
+		responseBytes = 0;
+		commandFragments = 0;
+		responseFragments = 0;
+		statusWord = NO_STATUS_WORD;
+		failed = false;
+	}
+
+	/**
+	 * Account time spent framing the command
+	 * @param nanos framing time (in nanoseconds)
+	 */
+	public void addFraming(long nanos) {
+		framingNanos += nanos;
+	}
+
+	/**
+	 * Account command fragments sent to the device
+	 * @param count number of fragments
+	 */
+	public void addCommandFragments(int count) {
+		commandFragments += count;
+	}
+
+	/**
+	 * Account a response fragment received from the device
+	 */
+	public void addResponseFragment() {
+		responseFragments++;
+	}
+
+	/**
+	 * Mark the end of the command transmission. Only the first call is taken into account
+	 */
+	public void sent() {
+		if (sentTime == 0) {
+			sentTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Mark the successful end of the exchange
+	 * @param response response received, including the Status Word
+	 */
+	public void complete(byte[] response) {
+		complete(response, 0, response.length);
+	}
+
+	/**
+	 * Mark the successful end of the exchange
+	 * @param response buffer holding the response received
+	 * @param offset offset to the response in the buffer
+	 * @param length length of the response, including the Status Word
+	 */
+	public void complete(byte[] response, int offset, int length) {
+		end();
+		responseBytes = length;
+		if (length >= 2) {
+			statusWord = ((response[offset + length - 2] & 0xff) << 8) | (response[offset + length - 1] & 0xff);
+		}
+	}
+
+	/**
+	 * Mark the successful end of the exchange
+	 * @param response buffer holding the response received
+	 * @param offset offset to the response in the buffer
+	 * @param length length of the response, including the Status Word
+	 */
+	public void complete(ByteBuffer response, int offset, int length) {
+		end();
+		responseBytes = length;
+		if (length >= 2) {
+			statusWord = ((response.get(offset + length - 2) & 0xff) << 8) | (response.get(offset + length - 1) & 0xff);
+		}
+	}
+
+	/**
+	 * Mark the failure of the exchange
+	 */
+	public void fail() {
+		end();
+		failed = true;
+	}
+
+	private void end() {
+		endTime = System.nanoTime();
+		if (sentTime == 0) {
+			sentTime = endTime;
+		}
+	}
+
+	/**
+	 * Return the name of the transport reporting the metrics
+	 * @return transport name
+	 */
+	public String getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Return the CLA of the command
+	 * @return command CLA
+	 */
+	public int getCla() {
+		return cla;
+	}
+
+	/**
+	 * Return the INS of the command
+	 * @return command INS
+	 */
+	public int getIns() {
+		return ins;
+	}
+
+	/**
+	 * Return the Status Word of the response
+	 * @return Status Word, or NO_STATUS_WORD if the exchange failed
+	 */
+	public int getStatusWord() {
+		return statusWord;
+	}
+
+	/**
+	 * Check if the exchange failed before a response was received
+	 * @return true if the exchange failed
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Return the size of the command
+	 * @return command size (in bytes)
+	 */
+	public int getCommandBytes() {
+		return commandBytes;
+	}
+
+	/**
+	 * Return the size of the response, including the Status Word
+	 * @return response size (in bytes)
+	 */
+	public int getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * Return the number of transport fragments sent for the command
+	 * @return number of fragments sent
+	 */
+	public int getCommandFragments() {
+		return commandFragments;
+	}
+
+	/**
+	 * Return the number of transport fragments received for the response
+	 * @return number of fragments received
+	 */
+	public int getResponseFragments() {
+		return responseFragments;
+	}
+
+	/**
+	 * Return the time spent framing the command
+	 * @return framing time (in nanoseconds)
+	 */
+	public long getFramingNanos() {
+		return framingNanos;
+	}
+
+	/**
+	 * Return the time spent sending the command, framing excluded
+	 * @return transmit time (in nanoseconds)
+	 */
+	public long getTransmitNanos() {
+		return Math.max(0, sentTime - startTime - framingNanos);
+	}
+
+	/**
+	 * Return the time spent waiting for the response once the command was sent
+	 * @return device time (in nanoseconds)
+	 */
+	public long getDeviceNanos() {
+		return endTime - sentTime;
+	}
+
+	/**
+	 * Return the total time of the exchange
+	 * @return total time (in nanoseconds)
+	 */
+	public long getTotalNanos() {
+		return endTime - startTime;
+	}
+
+}
@@ -0,0 +1,13 @@
+package com.ledger.lib.transport;
+
+/**
+ * \brief Priority class of an operation queued on a shared device, from the most to the least urgent
+ */
+public enum ExchangePriority {
+	/** Operation waited for by the user, such as a signature */
+	INTERACTIVE,
+	/** Default priority */
+	NORMAL,
+	/** Background operation, such as an address synchronization */
+	BULK
+}
@@ -0,0 +1,185 @@
+package com.ledger.lib.transport;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of the operations waiting for a shared device, one FIFO queue per priority class
+ *
+ * The most urgent class is served first, unless the oldest operation of a less urgent class has waited more than the starvation
+ * threshold, in which case it is served first. Starved operations are never served twice in a row while more urgent ones are
+ * waiting, so that urgent operations keep being served at least every other operation under a sustained load. Operations are
+ * never interrupted, the device switching to another class only between two operations
+ */
+class ExchangeScheduler {
+
+	private static final long DEFAULT_STARVATION_THRESHOLD_MS = 2000;
+
+	private static class Entry {
+
+		private final Runnable task;
+		private final long enqueueTime;
+
+		Entry(Runnable task) {
+			this.task = task;
+			enqueueTime = System.nanoTime();
+		}
+
+	}
+
+	private final ArrayDeque<Entry>[] queues;
+	private final int[] maxDepths;
+	private final LatencyHistogram[] waitTimes;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private volatile long starvationThreshold;
+	private long starvedDispatches;
+	private boolean lastDispatchStarved;
+	private int size;
+	private boolean shutdown;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	ExchangeScheduler() {
+		int classes = ExchangePriority.values().length;
+		queues = new ArrayDeque[classes];
+		maxDepths = new int[classes];
+		waitTimes = new LatencyHistogram[classes];
+		for (int i=0; i<classes; i++) {
+			queues[i] = new ArrayDeque<Entry>();
+			waitTimes[i] = new LatencyHistogram();
+		}
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		starvationThreshold = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STARVATION_THRESHOLD_MS);
+	}
+
+	/**
+	 * Queue an operation
+	 * @param task operation to run
+	 * @param priority priority class of the operation
+	 * @return false if the scheduler is shut down
+	 */
+	boolean add(Runnable task, ExchangePriority priority) {
+		lock.lock();
+		try {
+			if (shutdown) {
+				return false;
+			}
+			ArrayDeque<Entry> queue = queues[priority.ordinal()];
+			queue.add(new Entry(task));
+			if (queue.size() > maxDepths[priority.ordinal()]) {
+				maxDepths[priority.ordinal()] = queue.size();
+			}
+			size++;
+			notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for the next operation to run
+	 * @return operation to run, or null once the scheduler is shut down and all operations were taken
+	 */
+	Runnable take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (size == 0) {
+				if (shutdown) {
+					return null;
+				}
+				notEmpty.await();
+			}
+			long now = System.nanoTime();
+			int selected = -1;
+			int starved = -1;
+			long oldest = 0;
+			for (int i=0; i<queues.length; i++) {
+				Entry head = queues[i].peek();
+				if (head == null) {
+					continue;
+				}
+				if (selected < 0) {
+					selected = i;
+				}
+				long waited = now - head.enqueueTime;
+				if ((waited >= starvationThreshold) && (waited > oldest)) {
+					starved = i;
+					oldest = waited;
+				}
+			}
+			if ((starved >= 0) && (starved != selected) && !lastDispatchStarved) {
+				selected = starved;
+				starvedDispatches++;
+				lastDispatchStarved = true;
+			}
+			else {
+				lastDispatchStarved = false;
+			}
+			Entry entry = queues[selected].poll();
+			size--;
+			waitTimes[selected].record(now - entry.enqueueTime);
+			return entry.task;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting operations, the queued operations being still returned by take
+	 */
+	void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	void setStarvationThreshold(long thresholdMS) {
+		starvationThreshold = TimeUnit.MILLISECONDS.toNanos(thresholdMS);
+	}
+
+	int getDepth(ExchangePriority priority) {
+		lock.lock();
+		try {
+			return queues[priority.ordinal()].size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	int getMaxDepth(ExchangePriority priority) {
+		lock.lock();
+		try {
+			return maxDepths[priority.ordinal()];
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	LatencyHistogram getWaitTime(ExchangePriority priority) {
+		return waitTimes[priority.ordinal()];
+	}
+
+	long getStarvedDispatches() {
+		lock.lock();
+		try {
+			return starvedDispatches;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+}
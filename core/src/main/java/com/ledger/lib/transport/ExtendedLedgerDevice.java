@@ -0,0 +1,42 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Interface implemented by a Ledger device communication class supporting the extended exchange features
+ *
+ * The features are kept out of LedgerDevice so that existing implementations keep compiling. Callers holding a LedgerDevice
+ * use them through LedgerDevices, which falls back to the LedgerDevice methods for other implementations
+ */
+public interface ExtendedLedgerDevice extends LedgerDevice {
+
+  /**
+   * Exchange an APDU with the device, blocking until the answer is received, the deadline expires or is cancelled. The default
+   * timeout of the transport is not applied. A late response to an interrupted exchange is never returned by the next exchange
+   * @param apdu APDU to send to the device
+   * @param deadline deadline of the exchange
+   * @return response to the APDU including the Status Word
+   * @throw LedgerException if a communication error occurs, or DeadlineException if the deadline expired or was cancelled
+   */
+	public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException;
+
+  /**
+   * Exchange an APDU held in a buffer with the device, writing the response into a buffer provided by the caller. This method
+   * is blocking as exchange, and lets transports avoid copying the command and allocating the response
+   * @param command buffer holding the APDU between its position and its limit, the position being moved to the limit
+   * @param response buffer receiving the response including the Status Word at its position, the position being moved past
+   * the response
+   * @return length of the response including the Status Word
+   * @throw LedgerException if a communication error occurs, or INVALID_PARAMETER if the response buffer is too small
+   */
+	public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException;
+
+	/**
+	 * Set the listener notified with the metrics of each exchange, replacing the current one
+	 * @param listener listener to notify, or null to stop reporting metrics
+	 */
+	public void setExchangeListener(ExchangeListener listener);
+
+}
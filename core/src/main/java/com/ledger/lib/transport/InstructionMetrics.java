@@ -0,0 +1,169 @@
+package com.ledger.lib.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * \brief Aggregated metrics of the exchanges sharing the same CLA and INS
+ *
+ * All counters are lock free and can be read while exchanges are recorded
+ */
+public class InstructionMetrics {
+
+	/** CLA or INS of the metrics aggregating all instructions */
+	public static final int ALL = -1;
+
+	private final int cla;
+	private final int ins;
+	private final LatencyHistogram total;
+	private final LatencyHistogram framing;
+	private final LatencyHistogram transmit;
+	private final LatencyHistogram device;
+	private final AtomicLong commandBytes;
+	private final AtomicLong responseBytes;
+	private final AtomicLong commandFragments;
+	private final AtomicLong responseFragments;
+	private final AtomicLong failures;
+	private final AtomicLong statusErrors;
+	private volatile int lastStatusWord;
+
+	InstructionMetrics(int cla, int ins) {
+		this.cla = cla;
+		this.ins = ins;
+		total = new LatencyHistogram();
+		framing = new LatencyHistogram();
+		transmit = new LatencyHistogram();
+		device = new LatencyHistogram();
+		commandBytes = new AtomicLong();
+		responseBytes = new AtomicLong();
+		commandFragments = new AtomicLong();
+		responseFragments = new AtomicLong();
+		failures = new AtomicLong();
+		statusErrors = new AtomicLong();
+		lastStatusWord = ExchangeMetrics.NO_STATUS_WORD;
+	}
+
+	void record(ExchangeMetrics metrics) {
+		total.record(metrics.getTotalNanos());
+		framing.record(metrics.getFramingNanos());
+		transmit.record(metrics.getTransmitNanos());
+		device.record(metrics.getDeviceNanos());
+		commandBytes.addAndGet(metrics.getCommandBytes());
+		responseBytes.addAndGet(metrics.getResponseBytes());
+		commandFragments.addAndGet(metrics.getCommandFragments());
+		responseFragments.addAndGet(metrics.getResponseFragments());
+		if (metrics.isFailed()) {
+			failures.incrementAndGet();
+		}
+		else {
+			if (metrics.getStatusWord() != 0x9000) {
+				statusErrors.incrementAndGet();
+			}
+			lastStatusWord = metrics.getStatusWord();
+		}
+	}
+
+	/**
+	 * Return the CLA of the aggregated exchanges
+	 * @return CLA, or ALL
+	 */
+	public int getCla() {
+		return cla;
+	}
+
+	/**
+	 * Return the INS of the aggregated exchanges
+	 * @return INS, or ALL
+	 */
+	public int getIns() {
+		return ins;
+	}
+
+	/**
+	 * Return the histogram of the total exchange time
+	 * @return histogram
+	 */
+	public LatencyHistogram getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the histogram of the command framing time
+	 * @return histogram
+	 */
+	public LatencyHistogram getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Return the histogram of the command transmit time
+	 * @return histogram
+	 */
+	public LatencyHistogram getTransmit() {
+		return transmit;
+	}
+
+	/**
+	 * Return the histogram of the time waiting for the device response
+	 * @return histogram
+	 */
+	public LatencyHistogram getDevice() {
+		return device;
+	}
+
+	/**
+	 * Return the number of command bytes sent
+	 * @return number of bytes
+	 */
+	public long getCommandBytes() {
+		return commandBytes.get();
+	}
+
+	/**
+	 * Return the number of response bytes received, including the Status Words
+	 * @return number of bytes
+	 */
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+
+	/**
+	 * Return the number of transport fragments sent
+	 * @return number of fragments
+	 */
+	public long getCommandFragments() {
+		return commandFragments.get();
+	}
+
+	/**
+	 * Return the number of transport fragments received
+	 * @return number of fragments
+	 */
+	public long getResponseFragments() {
+		return responseFragments.get();
+	}
+
+	/**
+	 * Return the number of exchanges failing before a response was received
+	 * @return number of failed exchanges
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Return the number of responses with a Status Word other than 9000
+	 * @return number of responses
+	 */
+	public long getStatusErrors() {
+		return statusErrors.get();
+	}
+
+	/**
+	 * Return the Status Word of the last response received
+	 * @return Status Word, or ExchangeMetrics.NO_STATUS_WORD if no response was received
+	 */
+	public int getLastStatusWord() {
+		return lastStatusWord;
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.ledger.lib.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * \brief Lock free histogram of durations
+ *
+ * Values are counted in logarithmic buckets, each power of two being split into 4 buckets, giving a relative precision
+ * better than 25% over the whole range of values. Recording never allocates nor locks, and can be done concurrently
+ * with reads
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		buckets = new AtomicLongArray(BUCKET_COUNT);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	private static int getBucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowerBound = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	/**
+	 * Record a duration
+	 * @param nanos duration to record (in nanoseconds), negative values being counted as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(getBucketIndex(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long currentMax = max.get();
+		while ((nanos > currentMax) && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Return the number of recorded durations
+	 * @return number of durations
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Return the sum of all recorded durations
+	 * @return total duration (in nanoseconds)
+	 */
+	public long getTotalNanos() {
+		return total.get();
+	}
+
+	/**
+	 * Return the largest recorded duration
+	 * @return maximum duration (in nanoseconds)
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * Return the average recorded duration
+	 * @return mean duration (in nanoseconds), 0 if nothing was recorded
+	 */
+	public long getMeanNanos() {
+		long currentCount = count.get();
+		return (currentCount != 0 ? total.get() / currentCount : 0);
+	}
+
+	/**
+	 * Return an upper bound of the duration below which a given percentage of the recorded durations fall
+	 * @param percentile percentage, between 0 and 100
+	 * @return duration (in nanoseconds), 0 if nothing was recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long currentCount = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			currentCount += buckets.get(i);
+		}
+		if (currentCount == 0) {
+			return 0;
+		}
+		long threshold = (long)Math.ceil(currentCount * Math.min(Math.max(percentile, 0), 100) / 100);
+		if (threshold == 0) {
+			threshold = 1;
+		}
+		long seen = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= threshold) {
+				return Math.min(getBucketUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+}
@@ -0,0 +1,24 @@
+package com.ledger.lib.transport;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Callback notified when an asynchronous operation on a device completes
+ *
+ * Callbacks can be invoked from a transport thread (such as the GATT callback thread) and shall not block
+ */
+public interface LedgerCallback<T> {
+
+	/**
+	 * Called when the operation completed successfully
+	 * @param result result of the operation
+	 */
+	public void onSuccess(T result);
+
+	/**
+	 * Called when the operation failed
+	 * @param exception reason of the failure
+	 */
+	public void onFailure(LedgerException exception);
+
+}
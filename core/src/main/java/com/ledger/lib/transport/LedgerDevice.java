@@ -14,7 +14,8 @@ public interface LedgerDevice {
 	public void open() throws LedgerException;
 
   /**
-   * Exchange an APDU with the device. This method is blocking until the answer is received or an exception is thrown
+   * Exchange an APDU with the device. This method is blocking until the answer is received or an exception is thrown, the wait
+   * being limited by the default timeout of the transport
    * @param apdu APDU to send to the device
    * @return response to the APDU including the Status Word
    * @throw LedgerException if a communication error occurs
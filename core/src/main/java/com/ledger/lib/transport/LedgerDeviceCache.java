@@ -0,0 +1,294 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.SW;
+
+/**
+ * \brief Decorator caching the responses of read-only commands, which don't change until the running application changes
+ *
+ * Only commands whose CLA and INS are allowed are cached, by default the application name and version and the wallet ID. A
+ * response is cached for the whole command (CLA, INS, P1, P2 and data) if its Status Word is SW_OK, and served again without
+ * reaching the device
+ *
+ * The dashboard, Bitcoin, Ethereum and Tron commands share the E0 CLA, so that a given E0 instruction is a different command
+ * depending on the running application. They are not cached by default : an application started or exited from the device
+ * itself is not seen by the cache until a command is rejected, the cached application name being stale until then. Callers
+ * may allow E0 commands with addCommand, for example the Ethereum / Tron application configuration, when applications are
+ * only started and exited through this device
+ *
+ * The cache is invalidated when an application is launched or exited, when a command is rejected by the running application
+ * (a WrongApplicationException Status Word), when an exchange fails, and when the device is opened or closed
+ *
+ * One cache shall be used per connection to a device, for example by creating a LedgerDeviceSession on it. Exchanges served
+ * from the cache are reported to the exchange listener with the LedgerDeviceCache transport name, without fragments
+ */
+public class LedgerDeviceCache implements ExtendedLedgerDevice {
+
+	private static final int MAX_ENTRIES = 16;
+	private static final String LOG_STRING = "LedgerDeviceCache";
+
+	private static final int CLA_COMMON_SDK = 0xB0;
+	private static final int INS_GET_APP_NAME_AND_VERSION = 0x01;
+	private static final int INS_GET_WALLET_ID_NATIVE = 0x02;
+	private static final int INS_GET_WALLET_ID = 0x04;
+	private static final int INS_EXIT = 0xA7;
+	private static final int CLA_BOLOS = 0xE0;
+	private static final int INS_RUN_APP = 0xD8;
+
+	private final LedgerDevice device;
+	private final BitSet commands;
+	private final byte[][] keys;
+	private final byte[][] responses;
+	private final Object lock;
+	private final ExchangeMetrics metrics;
+	private volatile ExchangeListener exchangeListener;
+	private int count;
+	private int next;
+	private int generation;
+	private long hits;
+	private long misses;
+	private long invalidations;
+
+	/** Class constructor caching the default read-only commands
+	 * @param device device to cache the responses of
+	 */
+	public LedgerDeviceCache(LedgerDevice device) {
+		this.device = device;
+		commands = new BitSet(0x10000);
+		keys = new byte[MAX_ENTRIES][];
+		responses = new byte[MAX_ENTRIES][];
+		lock = new Object();
+		metrics = new ExchangeMetrics(LOG_STRING);
+		addCommand(CLA_COMMON_SDK, INS_GET_APP_NAME_AND_VERSION);
+		addCommand(CLA_COMMON_SDK, INS_GET_WALLET_ID_NATIVE);
+		addCommand(CLA_COMMON_SDK, INS_GET_WALLET_ID);
+	}
+
+	/**
+	 * Allow the responses of a command to be cached. The command shall have no side effect and return the same response
+	 * as long as the running application doesn't change
+	 * @param cla command CLA
+	 * @param ins command INS
+	 */
+	public void addCommand(int cla, int ins) {
+		synchronized(lock) {
+			commands.set(((cla & 0xff) << 8) | (ins & 0xff));
+		}
+	}
+
+	/**
+	 * Discard all cached responses
+	 */
+	public void invalidate() {
+		synchronized(lock) {
+			Arrays.fill(keys, null);
+			Arrays.fill(responses, null);
+			count = 0;
+			next = 0;
+			generation++;
+			invalidations++;
+		}
+	}
+
+	@Override
+	public void open() throws LedgerException {
+		invalidate();
+		device.open();
+	}
+
+	@Override
+	public byte[] exchange(byte[] apdu) throws LedgerException {
+		return exchangeCached(apdu, null);
+	}
+
+	@Override
+	public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+		return exchangeCached(apdu, deadline);
+	}
+
+	@Override
+	public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+		return ExchangeBuffers.exchangeInto(this, command, response);
+	}
+
+	/**
+	 * Serve a command from the cache if possible, otherwise exchange it with the device and update the cache
+	 * @param deadline deadline of the exchange, or null to use the default timeout of the device
+	 */
+	private byte[] exchangeCached(byte[] apdu, Deadline deadline) throws LedgerException {
+		boolean cacheable = false;
+		int currentGeneration;
+		byte[] cachedResponse = null;
+		synchronized(lock) {
+			if (apdu.length >= 4) {
+				int instruction = ((apdu[0] & 0xff) << 8) | (apdu[1] & 0xff);
+				cacheable = commands.get(instruction);
+				if (cacheable) {
+					int index = find(apdu);
+					if (index >= 0) {
+						hits++;
+						cachedResponse = responses[index].clone();
+					}
+					else {
+						misses++;
+					}
+				}
+			}
+			currentGeneration = generation;
+		}
+		if (cachedResponse != null) {
+			notifyHit(apdu, cachedResponse);
+			return cachedResponse;
+		}
+		byte[] response;
+		try {
+			response = (deadline != null ? LedgerDevices.exchange(device, apdu, deadline) : device.exchange(apdu));
+		}
+		catch(LedgerException e) {
+			// The device may have been disconnected or be in an unknown state
+			invalidate();
+			throw e;
+		}
+		if (changesApplication(apdu) || isWrongApplication(response)) {
+			invalidate();
+		}
+		else
+		if (cacheable && isSuccessful(response)) {
+			store(apdu, response, currentGeneration);
+		}
+		return response;
+	}
+
+	/**
+	 * Report a response served from the cache to the exchange listener
+	 */
+	private void notifyHit(byte[] apdu, byte[] response) {
+		ExchangeListener listener = exchangeListener;
+		if (listener == null) {
+			return;
+		}
+		synchronized(metrics) {
+			metrics.start(apdu);
+			metrics.sent();
+			metrics.complete(response);
+			listener.onExchange(metrics);
+		}
+	}
+
+	private int find(byte[] apdu) {
+		for (int i=0; i<count; i++) {
+			if (Arrays.equals(keys[i], apdu)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void store(byte[] apdu, byte[] response, int responseGeneration) {
+		synchronized(lock) {
+			// Drop a response received while the cache was invalidated
+			if ((responseGeneration != generation) || (find(apdu) >= 0)) {
+				return;
+			}
+			keys[next] = apdu.clone();
+			responses[next] = response.clone();
+			next = (next + 1) % MAX_ENTRIES;
+			if (count < MAX_ENTRIES) {
+				count++;
+			}
+		}
+	}
+
+	private static boolean changesApplication(byte[] apdu) {
+		if (apdu.length < 2) {
+			return false;
+		}
+		int cla = apdu[0] & 0xff;
+		int ins = apdu[1] & 0xff;
+		return ((cla == CLA_BOLOS) && (ins == INS_RUN_APP)) || ((cla == CLA_COMMON_SDK) && (ins == INS_EXIT));
+	}
+
+	private static int getSW(byte[] response) {
+		if (response.length < 2) {
+			return 0;
+		}
+		return ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+	}
+
+	private static boolean isSuccessful(byte[] response) {
+		return (getSW(response) == SW.SW_OK);
+	}
+
+	private static boolean isWrongApplication(byte[] response) {
+		int sw = getSW(response);
+		return (sw == SW.SW_CLA_NOT_SUPPORTED) || (sw == SW.SW_INS_NOT_SUPPORTED) || (sw == SW.SW_INCORRECT_P1_P2);
+	}
+
+	/**
+	 * Return the number of commands served from the cache
+	 * @return number of hits
+	 */
+	public long getHits() {
+		synchronized(lock) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Return the number of cacheable commands which had to be exchanged with the device
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		synchronized(lock) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Return the number of times the cache was invalidated
+	 * @return number of invalidations
+	 */
+	public long getInvalidations() {
+		synchronized(lock) {
+			return invalidations;
+		}
+	}
+
+	/**
+	 * Return the ratio of cacheable commands served from the cache
+	 * @return hit rate between 0 and 1, 0 if no cacheable command was exchanged
+	 */
+	public double getHitRate() {
+		synchronized(lock) {
+			long total = hits + misses;
+			return (total != 0 ? (double)hits / total : 0);
+		}
+	}
+
+	@Override
+	public void close() throws LedgerException {
+		invalidate();
+		device.close();
+	}
+
+	@Override
+	public void setDebug(boolean debugFlag) {
+		device.setDebug(debugFlag);
+	}
+
+	@Override
+	public void setExchangeListener(ExchangeListener listener) {
+		exchangeListener = listener;
+		LedgerDevices.setExchangeListener(device, listener);
+	}
+
+	@Override
+	public boolean isOpened() {
+		return device.isOpened();
+	}
+
+}
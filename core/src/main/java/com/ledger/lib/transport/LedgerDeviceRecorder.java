@@ -0,0 +1,204 @@
+package com.ledger.lib.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Decorator recording each command and response exchanged with a device into an append-only trace file
+ *
+ * The trace is written through a memory mapped region of the file, grown by doubling its size when full, so that recording
+ * doesn't add a system call per exchange. Records are appended to an existing trace, which can then be served back by
+ * LedgerDeviceReplay
+ *
+ * The trace is completed (flushed and truncated to the recorded size) when the device is closed
+ */
+public class LedgerDeviceRecorder implements ExtendedLedgerDevice {
+
+  private static final int INITIAL_MAPPING_SIZE = 64 * 1024;
+
+  private LedgerDevice device;
+  private File traceFile;
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private long epochNanos;
+  private long baseNanos;
+
+  /** Class constructor
+   * @param device device to record exchanges with
+   * @param traceFile trace file, created if it doesn't exist
+   */
+  public LedgerDeviceRecorder(LedgerDevice device, File traceFile) {
+    this.device = device;
+    this.traceFile = traceFile;
+  }
+
+  @Override
+  public void open() throws LedgerException {
+    if (channel == null) {
+      openTrace();
+    }
+    device.open();
+  }
+
+  @Override
+  public byte[] exchange(byte[] apdu) throws LedgerException {
+    return exchangeRecorded(apdu, null);
+  }
+
+  @Override
+  public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+    return exchangeRecorded(apdu, deadline);
+  }
+
+  @Override
+  public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+    return ExchangeBuffers.exchangeInto(this, command, response);
+  }
+
+  /**
+   * Exchange an APDU with the recorded device and record it
+   * @param deadline deadline of the exchange, or null to use the default timeout of the device
+   */
+  private synchronized byte[] exchangeRecorded(byte[] apdu, Deadline deadline) throws LedgerException {
+    long start = System.nanoTime();
+    byte[] response = null;
+    try {
+      response = (deadline != null ? LedgerDevices.exchange(device, apdu, deadline) : device.exchange(apdu));
+      return response;
+    }
+    finally {
+      if (channel != null) {
+        record(start, System.nanoTime(), apdu, response);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws LedgerException {
+    try {
+      device.close();
+    }
+    finally {
+      closeTrace();
+    }
+  }
+
+  @Override
+  public void setDebug(boolean debugFlag) {
+    device.setDebug(debugFlag);
+  }
+
+  @Override
+  public void setExchangeListener(ExchangeListener listener) {
+    LedgerDevices.setExchangeListener(device, listener);
+  }
+
+  @Override
+  public boolean isOpened() {
+    return device.isOpened();
+  }
+
+  private synchronized void openTrace() throws LedgerException {
+    try {
+      file = new RandomAccessFile(traceFile, "rw");
+      channel = file.getChannel();
+      long size = channel.size();
+      map(Math.max(size, INITIAL_MAPPING_SIZE));
+      if (size == 0) {
+        buffer.putInt(ApduTraceFormat.MAGIC);
+        buffer.putInt(ApduTraceFormat.VERSION);
+      }
+      else {
+        if ((size < ApduTraceFormat.HEADER_SIZE) || (buffer.getInt() != ApduTraceFormat.MAGIC) || (buffer.getInt() != ApduTraceFormat.VERSION)) {
+          throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid trace file " + traceFile);
+        }
+        skipRecords();
+      }
+    }
+    catch(IOException e) {
+      closeTrace();
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    catch(LedgerException e) {
+      closeTrace();
+      throw e;
+    }
+    epochNanos = System.currentTimeMillis() * 1000000L;
+    baseNanos = System.nanoTime();
+  }
+
+  private void skipRecords() {
+    while (buffer.remaining() >= ApduTraceFormat.RECORD_HEADER_SIZE) {
+      int recordStart = buffer.position();
+      buffer.position(recordStart + 16);
+      int commandLength = buffer.getInt();
+      int responseLength = buffer.getInt();
+      if (commandLength == 0) {
+        buffer.position(recordStart);
+        return;
+      }
+      int recordEnd = buffer.position() + commandLength + Math.max(responseLength, 0);
+      if (recordEnd > buffer.limit()) {
+        throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Truncated trace file " + traceFile);
+      }
+      buffer.position(recordEnd);
+    }
+  }
+
+  private void map(long size) throws IOException {
+    int position = (buffer != null ? buffer.position() : 0);
+    if (buffer != null) {
+      buffer.force();
+    }
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.position(position);
+  }
+
+  private void record(long start, long end, byte[] apdu, byte[] response) throws LedgerException {
+    int responseLength = (response != null ? response.length : ApduTraceFormat.FAILED_EXCHANGE);
+    int recordSize = ApduTraceFormat.RECORD_HEADER_SIZE + apdu.length + Math.max(responseLength, 0);
+    try {
+      if (buffer.remaining() < recordSize) {
+        map(Math.max((long)buffer.capacity() * 2, (long)buffer.position() + recordSize));
+      }
+    }
+    catch(IOException e) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    buffer.putLong(epochNanos + (start - baseNanos));
+    buffer.putLong(end - start);
+    buffer.putInt(apdu.length);
+    buffer.putInt(responseLength);
+    buffer.put(apdu);
+    if (response != null) {
+      buffer.put(response);
+    }
+  }
+
+  private synchronized void closeTrace() throws LedgerException {
+    try {
+      if (buffer != null) {
+        buffer.force();
+        channel.truncate(buffer.position());
+      }
+      if (file != null) {
+        file.close();
+      }
+    }
+    catch(IOException e) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    finally {
+      buffer = null;
+      channel = null;
+      file = null;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package com.ledger.lib.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ledger.lib.utils.Log;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.Dump;
+
+/**
+ * \brief Device serving back the responses of a trace file recorded by LedgerDeviceRecorder
+ *
+ * Each command has to match the next recorded command, the recorded response (or failure) being returned. When replaying at the
+ * recorded timing, each response is returned once the time taken by the recorded device has elapsed, otherwise it is returned
+ * immediately, isolating the time spent by the host
+ *
+ * The trace is read through a read only memory mapping of the file
+ */
+public class LedgerDeviceReplay implements ExtendedLedgerDevice {
+
+  private static final String LOG_STRING = "LedgerDeviceReplay";
+
+  private File traceFile;
+  private boolean recordedTiming;
+  private MappedByteBuffer buffer;
+  private long exchangeCount;
+  private ExchangeMetrics metrics;
+  private volatile ExchangeListener exchangeListener;
+  private boolean debug;
+
+  /** Class constructor
+   * @param traceFile trace file to replay
+   * @param recordedTiming true to answer at the recorded timing, false to answer as fast as possible
+   */
+  public LedgerDeviceReplay(File traceFile, boolean recordedTiming) {
+    this.traceFile = traceFile;
+    this.recordedTiming = recordedTiming;
+    metrics = new ExchangeMetrics(LOG_STRING);
+  }
+
+  @Override
+  public synchronized void open() throws LedgerException {
+    if (buffer != null) {
+      Log.d(LOG_STRING, "Already opened");
+      return;
+    }
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(traceFile, "r");
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    }
+    catch(IOException e) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    finally {
+      try {
+        if (file != null) {
+          file.close();
+        }
+      }
+      catch(IOException e) {
+      }
+    }
+    if ((buffer.remaining() < ApduTraceFormat.HEADER_SIZE) || (buffer.getInt() != ApduTraceFormat.MAGIC) || (buffer.getInt() != ApduTraceFormat.VERSION)) {
+      buffer = null;
+      throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid trace file " + traceFile);
+    }
+    exchangeCount = 0;
+  }
+
+  @Override
+  public byte[] exchange(byte[] apdu) throws LedgerException {
+    return exchange(apdu, null);
+  }
+
+  /**
+   * Replay the next exchange. The recorded exchange is consumed even if the deadline expires while waiting for the recorded timing
+   * @param apdu APDU to send to the device
+   * @param deadline deadline of the exchange, or null to wait without time limit
+   * @return recorded response
+   */
+  @Override
+  public synchronized byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+    metrics.start(apdu);
+    metrics.sent();
+    byte[] response;
+    try {
+      response = replay(apdu, deadline);
+    }
+    catch(LedgerException e) {
+      metrics.fail();
+      notifyExchange();
+      throw e;
+    }
+    metrics.complete(response);
+    notifyExchange();
+    return response;
+  }
+
+  @Override
+  public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+    return ExchangeBuffers.exchangeInto(this, command, response);
+  }
+
+  private void notifyExchange() {
+    ExchangeListener listener = exchangeListener;
+    if (listener != null) {
+      listener.onExchange(metrics);
+    }
+  }
+
+  private byte[] replay(byte[] apdu, Deadline deadline) throws LedgerException {
+    if (buffer == null) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened");
+    }
+    if (deadline != null) {
+      deadline.check();
+    }
+    long start = System.nanoTime();
+    if (debug) {
+      Log.d(LOG_STRING, "=> " + Dump.dump(apdu));
+    }
+    int commandLength = 0;
+    if (buffer.remaining() >= ApduTraceFormat.RECORD_HEADER_SIZE) {
+      commandLength = buffer.getInt(buffer.position() + 8 + 8);
+    }
+    if (commandLength == 0) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "End of trace after " + exchangeCount + " exchanges");
+    }
+    buffer.getLong();
+    long duration = buffer.getLong();
+    buffer.getInt();
+    int responseLength = buffer.getInt();
+    byte[] command = new byte[commandLength];
+    buffer.get(command);
+    if (!Arrays.equals(command, apdu)) {
+      buffer.position(buffer.position() - commandLength - ApduTraceFormat.RECORD_HEADER_SIZE);
+      throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER,
+        "Command " + exchangeCount + " differs from the trace, expected " + Dump.dump(command));
+    }
+    byte[] response = null;
+    if (responseLength != ApduTraceFormat.FAILED_EXCHANGE) {
+      response = new byte[responseLength];
+      buffer.get(response);
+    }
+    exchangeCount++;
+    if (recordedTiming) {
+      long end = start + duration;
+      if (deadline != null) {
+        deadline.parkUntil(end);
+      }
+      else {
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(remaining);
+        }
+      }
+    }
+    if (response == null) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Recorded exchange failure");
+    }
+    if (debug) {
+      Log.d(LOG_STRING, "<= " + Dump.dump(response));
+    }
+    return response;
+  }
+
+  /**
+   * Return the number of exchanges replayed since the device was opened
+   * @return number of exchanges
+   */
+  public synchronized long getExchangeCount() {
+    return exchangeCount;
+  }
+
+  @Override
+  public synchronized void close() throws LedgerException {
+    buffer = null;
+  }
+
+  @Override
+  public void setDebug(boolean debugFlag) {
+    this.debug = debugFlag;
+  }
+
+  @Override
+  public void setExchangeListener(ExchangeListener listener) {
+    this.exchangeListener = listener;
+  }
+
+  @Override
+  public synchronized boolean isOpened() {
+    return (buffer != null);
+  }
+}
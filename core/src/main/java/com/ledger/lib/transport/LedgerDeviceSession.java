@@ -0,0 +1,604 @@
+package com.ledger.lib.transport;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Share a single Ledger device between several components, serializing all exchanges on a dedicated thread
+ *
+ * All exchanges with the wrapped device are run by a single session thread. Operations are queued by priority class, each
+ * class being served in submission order so that callers of the same class are served fairly. A single exchange is submitted
+ * with exchange or exchangeAsync. A multi-APDU operation (such as a trusted
+ * input computation or a transaction signature) shall keep exclusive ownership of the device until it completes, otherwise
+ * the APDUs of another caller would corrupt its state on the device. This can be done in two ways :
+ *
+ * submit or execute run an Operation on the session thread, the operation exchanging directly with the device
+ *
+ * beginTransaction waits for the exclusive ownership of the device and returns a Transaction, a device usable from the caller
+ * thread whose exchanges are run on the session thread until the transaction is closed. Transactions shall always be closed,
+ * other callers being blocked meanwhile : use them in a try / finally block, or a try-with-resources statement
+ *
+ * While a thread owns a transaction, the session device itself can't be used from that thread, its exchanges waiting for the
+ * end of the transaction. Such calls (exchange, execute, submit, beginTransaction ...) fail with an INVALID_PARAMETER
+ * LedgerException instead of deadlocking, submit returning a failed future. The transaction shall be used instead
+ *
+ * Application classes (Btc, Eth, Trx ...) can be created on the session or on a transaction. Calls made on an application
+ * created on the session are only safe as long as they exchange a single APDU
+ *
+ * The most urgent priority class is always served first, but an operation or a transaction is never interrupted, the device
+ * switching to another class only between two operations. An operation waiting for longer than the starvation threshold is
+ * served before more urgent ones, so that background work always progresses
+ */
+public class LedgerDeviceSession implements AsyncLedgerDevice, ExtendedLedgerDevice {
+
+	/**
+	 * \brief Multi-APDU operation run with an exclusive ownership of the device
+	 */
+	public interface Operation<T> {
+
+		/**
+		 * Run the operation on the session thread
+		 * @param device device to exchange with, owned by the operation until it returns
+		 * @return result of the operation
+		 */
+		public T run(LedgerDevice device) throws LedgerException;
+
+	}
+
+	/**
+	 * \brief Exclusive ownership of the session device, used from the owner thread
+	 *
+	 * The transaction is not opened nor closed with the device : close releases the ownership and leaves the device opened. It
+	 * shall be closed in a finally block, the session being blocked until then
+	 */
+	public class Transaction implements ExtendedLedgerDevice, Closeable {
+
+		private final BlockingQueue<Runnable> requests;
+		private final LedgerFuture<Void> acquired;
+		private volatile boolean closed;
+
+		Transaction() {
+			requests = new LinkedBlockingQueue<Runnable>();
+			acquired = new LedgerFuture<Void>();
+		}
+
+		void run() {
+			if (!acquired.complete(null)) {
+				// Abandoned while waiting
+				return;
+			}
+			for (;;) {
+				Runnable request;
+				try {
+					request = requests.take();
+				}
+				catch(InterruptedException e) {
+					closed = true;
+					failRequests();
+					return;
+				}
+				if (request == END_TRANSACTION) {
+					return;
+				}
+				request.run();
+			}
+		}
+
+		private void failRequests() {
+			Runnable request;
+			while ((request = requests.poll()) != null) {
+				if (request instanceof Request) {
+					((Request<?>)request).future.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Transaction interrupted"));
+				}
+			}
+		}
+
+		@Override
+		public void open() throws LedgerException {
+			exchangeInTransaction(new Operation<Void>() {
+				@Override
+				public Void run(LedgerDevice device) throws LedgerException {
+					device.open();
+					return null;
+				}
+			});
+		}
+
+		@Override
+		public byte[] exchange(final byte[] apdu) throws LedgerException {
+			return exchangeInTransaction(new Operation<byte[]>() {
+				@Override
+				public byte[] run(LedgerDevice device) throws LedgerException {
+					return device.exchange(apdu);
+				}
+			});
+		}
+
+		@Override
+		public byte[] exchange(final byte[] apdu, final Deadline deadline) throws LedgerException {
+			return exchangeInTransaction(new Operation<byte[]>() {
+				@Override
+				public byte[] run(LedgerDevice device) throws LedgerException {
+					return LedgerDevices.exchange(device, apdu, deadline);
+				}
+			}, deadline);
+		}
+
+		@Override
+		public int exchangeInto(final ByteBuffer command, final ByteBuffer response) throws LedgerException {
+			return exchangeInTransaction(new Operation<Integer>() {
+				@Override
+				public Integer run(LedgerDevice device) throws LedgerException {
+					return LedgerDevices.exchangeInto(device, command, response);
+				}
+			});
+		}
+
+		/**
+		 * Exchange a batch of commands back to back on the session thread, stopping at the first Status Word not accepted
+		 * @param commands commands to exchange, in order
+		 * @return result of the batch
+		 */
+		public ApduBatch exchangeBatch(final List<ApduBatch.Command> commands) throws LedgerException {
+			return exchangeInTransaction(new Operation<ApduBatch>() {
+				@Override
+				public ApduBatch run(LedgerDevice device) throws LedgerException {
+					return ApduBatch.exchange(device, commands);
+				}
+			});
+		}
+
+		private <T> T exchangeInTransaction(Operation<T> operation) throws LedgerException {
+			return exchangeInTransaction(operation, null);
+		}
+
+		private <T> T exchangeInTransaction(Operation<T> operation, Deadline deadline) throws LedgerException {
+			if (closed) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Transaction is closed");
+			}
+			if (isSessionThread()) {
+				return operation.run(device);
+			}
+			Request<T> request = new Request<T>(operation, device);
+			requests.add(request);
+			return await(request.future, deadline);
+		}
+
+		/**
+		 * Release the exclusive ownership of the device. The transaction can't be used afterwards
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			transactionOwner = null;
+			requests.add(END_TRANSACTION);
+		}
+
+		@Override
+		public void setDebug(boolean debugFlag) {
+			device.setDebug(debugFlag);
+		}
+
+		@Override
+		public void setExchangeListener(ExchangeListener listener) {
+			LedgerDevices.setExchangeListener(device, listener);
+		}
+
+		@Override
+		public boolean isOpened() {
+			return !closed && device.isOpened();
+		}
+
+	}
+
+	private static class Request<T> implements Runnable {
+
+		private final Operation<T> operation;
+		private final LedgerFuture<T> future;
+		private final LedgerDevice device;
+
+		Request(Operation<T> operation, LedgerDevice device) {
+			this.operation = operation;
+			this.device = device;
+			future = new LedgerFuture<T>();
+		}
+
+		@Override
+		public void run() {
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.complete(operation.run(device));
+			}
+			catch(LedgerException e) {
+				future.fail(e);
+			}
+			catch(Throwable e) {
+				future.fail(new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e));
+			}
+		}
+
+	}
+
+	private static final Runnable END_TRANSACTION = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	private static final String THREAD_NAME = "LedgerDeviceSession";
+
+	private final LedgerDevice device;
+	private final ExchangeScheduler scheduler;
+	private final Thread sessionThread;
+	private volatile Thread transactionOwner;
+
+	/**
+	 * Constructor
+	 * @param device device to share, only used through the session afterwards
+	 */
+	public LedgerDeviceSession(LedgerDevice device) {
+		this.device = device;
+		scheduler = new ExchangeScheduler();
+		sessionThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (;;) {
+					Runnable task;
+					try {
+						task = scheduler.take();
+					}
+					catch(InterruptedException e) {
+						return;
+					}
+					if (task == null) {
+						return;
+					}
+					task.run();
+				}
+			}
+		}, THREAD_NAME);
+		sessionThread.setDaemon(true);
+		sessionThread.start();
+	}
+
+	private boolean isSessionThread() {
+		return (Thread.currentThread() == sessionThread);
+	}
+
+	private boolean isTransactionOwner() {
+		return (Thread.currentThread() == transactionOwner);
+	}
+
+	/**
+	 * Wait for a queued operation, abandoning it if the deadline expires or is cancelled before it runs
+	 * @param deadline deadline of the wait, or null to wait without time limit
+	 */
+	private static <T> T await(final LedgerFuture<T> future, Deadline deadline) throws LedgerException {
+		if (deadline == null) {
+			return future.await(Long.MAX_VALUE);
+		}
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				future.cancel(false);
+			}
+		};
+		deadline.addCancellationListener(listener);
+		try {
+			return future.await(deadline.getRemainingMillis());
+		}
+		catch(LedgerException e) {
+			future.cancel(false);
+			throw e;
+		}
+		finally {
+			deadline.removeCancellationListener(listener);
+		}
+	}
+
+	/**
+	 * Queue an operation run with an exclusive ownership of the device. The future fails immediately if the calling thread owns
+	 * a transaction, as the operation would only run once the transaction is closed
+	 * @param operation operation to run
+	 * @param priority priority class of the operation
+	 * @return future completed with the result of the operation
+	 */
+	public <T> LedgerFuture<T> submit(Operation<T> operation, ExchangePriority priority) {
+		Request<T> request = new Request<T>(operation, device);
+		if (isTransactionOwner()) {
+			request.future.fail(new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Device owned by a transaction of the calling thread"));
+		}
+		else
+		if (!scheduler.add(request, priority)) {
+			request.future.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Session is shut down"));
+		}
+		return request.future;
+	}
+
+	/**
+	 * Queue an operation run with an exclusive ownership of the device, with a normal priority
+	 * @param operation operation to run
+	 * @return future completed with the result of the operation
+	 */
+	public <T> LedgerFuture<T> submit(Operation<T> operation) {
+		return submit(operation, ExchangePriority.NORMAL);
+	}
+
+	/**
+	 * Run an operation with an exclusive ownership of the device, blocking until it completes. The operation is run directly
+	 * if called from an operation already owning the device
+	 * @param operation operation to run
+	 * @param priority priority class of the operation
+	 * @return result of the operation
+	 */
+	public <T> T execute(Operation<T> operation, ExchangePriority priority) throws LedgerException {
+		if (isSessionThread()) {
+			return operation.run(device);
+		}
+		return submit(operation, priority).await(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Run an operation with an exclusive ownership of the device and a normal priority, blocking until it completes
+	 * @param operation operation to run
+	 * @return result of the operation
+	 */
+	public <T> T execute(Operation<T> operation) throws LedgerException {
+		return execute(operation, ExchangePriority.NORMAL);
+	}
+
+	/**
+	 * Wait for the exclusive ownership of the device. The transaction shall be closed by the caller in a finally block
+	 * @param timeoutMS maximum time to wait for the device (in milliseconds)
+	 * @param priority priority class of the transaction
+	 * @return transaction owning the device, to be closed once done
+	 */
+	public Transaction beginTransaction(long timeoutMS, ExchangePriority priority) throws LedgerException {
+		if (isSessionThread()) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Transactions can't be started from an operation");
+		}
+		if (isTransactionOwner()) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Device owned by a transaction of the calling thread");
+		}
+		final Transaction transaction = new Transaction();
+		boolean queued = scheduler.add(new Runnable() {
+			@Override
+			public void run() {
+				transaction.run();
+			}
+		}, priority);
+		if (!queued) {
+			throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Session is shut down");
+		}
+		try {
+			transaction.acquired.await(timeoutMS);
+		}
+		catch(LedgerException e) {
+			transaction.acquired.cancel(false);
+			if (!transaction.acquired.isCancelled()) {
+				// Acquired while timing out
+				transaction.close();
+			}
+			throw e;
+		}
+		transactionOwner = Thread.currentThread();
+		return transaction;
+	}
+
+	/**
+	 * Wait for the exclusive ownership of the device with a normal priority
+	 * @param timeoutMS maximum time to wait for the device (in milliseconds)
+	 * @return transaction owning the device, to be closed once done
+	 */
+	public Transaction beginTransaction(long timeoutMS) throws LedgerException {
+		return beginTransaction(timeoutMS, ExchangePriority.NORMAL);
+	}
+
+	/**
+	 * Wait for the exclusive ownership of the device with a normal priority, without time limit
+	 * @return transaction owning the device, to be closed once done
+	 */
+	public Transaction beginTransaction() throws LedgerException {
+		return beginTransaction(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Stop the session thread once all queued operations are done. The device is not closed
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Set the time after which a waiting operation is served before more urgent ones
+	 * @param thresholdMS starvation threshold (in milliseconds)
+	 */
+	public void setStarvationThreshold(long thresholdMS) {
+		scheduler.setStarvationThreshold(thresholdMS);
+	}
+
+	/**
+	 * Return the number of operations currently waiting in a priority class
+	 * @param priority priority class
+	 * @return number of queued operations
+	 */
+	public int getQueueDepth(ExchangePriority priority) {
+		return scheduler.getDepth(priority);
+	}
+
+	/**
+	 * Return the largest number of operations that waited at the same time in a priority class
+	 * @param priority priority class
+	 * @return maximum number of queued operations
+	 */
+	public int getMaxQueueDepth(ExchangePriority priority) {
+		return scheduler.getMaxDepth(priority);
+	}
+
+	/**
+	 * Return the histogram of the time spent by the operations of a priority class waiting for the device
+	 * @param priority priority class
+	 * @return histogram of the waiting times
+	 */
+	public LatencyHistogram getWaitTime(ExchangePriority priority) {
+		return scheduler.getWaitTime(priority);
+	}
+
+	/**
+	 * Return the number of operations served before more urgent ones because they waited longer than the starvation threshold
+	 * @return number of operations
+	 */
+	public long getStarvedDispatches() {
+		return scheduler.getStarvedDispatches();
+	}
+
+	/**
+	 * Exchange an APDU without blocking
+	 * @param apdu APDU to send to the device
+	 * @param priority priority class of the exchange
+	 * @return future completed with the response to the APDU including the Status Word
+	 */
+	public LedgerFuture<byte[]> exchangeAsync(final byte[] apdu, ExchangePriority priority) {
+		return submit(new Operation<byte[]>() {
+			@Override
+			public byte[] run(LedgerDevice device) throws LedgerException {
+				return device.exchange(apdu);
+			}
+		}, priority);
+	}
+
+	@Override
+	public LedgerFuture<byte[]> exchangeAsync(byte[] apdu) {
+		return exchangeAsync(apdu, ExchangePriority.NORMAL);
+	}
+
+	@Override
+	public void open() throws LedgerException {
+		execute(new Operation<Void>() {
+			@Override
+			public Void run(LedgerDevice device) throws LedgerException {
+				device.open();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public byte[] exchange(final byte[] apdu) throws LedgerException {
+		return execute(new Operation<byte[]>() {
+			@Override
+			public byte[] run(LedgerDevice device) throws LedgerException {
+				return device.exchange(apdu);
+			}
+		});
+	}
+
+	@Override
+	public int exchangeInto(final ByteBuffer command, final ByteBuffer response) throws LedgerException {
+		return execute(new Operation<Integer>() {
+			@Override
+			public Integer run(LedgerDevice device) throws LedgerException {
+				return LedgerDevices.exchangeInto(device, command, response);
+			}
+		});
+	}
+
+	/**
+	 * Exchange an APDU, blocking until the answer is received. The exchange is abandoned if the deadline expires or is cancelled
+	 * while it is queued, and interrupted if it expires or is cancelled while running
+	 * @param apdu APDU to send to the device
+	 * @param deadline deadline of the exchange
+	 * @param priority priority class of the exchange
+	 * @return response to the APDU including the Status Word
+	 */
+	public byte[] exchange(final byte[] apdu, final Deadline deadline, ExchangePriority priority) throws LedgerException {
+		Operation<byte[]> operation = new Operation<byte[]>() {
+			@Override
+			public byte[] run(LedgerDevice device) throws LedgerException {
+				return LedgerDevices.exchange(device, apdu, deadline);
+			}
+		};
+		if (isSessionThread()) {
+			return operation.run(device);
+		}
+		return await(submit(operation, priority), deadline);
+	}
+
+	@Override
+	public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+		return exchange(apdu, deadline, ExchangePriority.NORMAL);
+	}
+
+	/**
+	 * Exchange a batch of commands back to back as a single operation, stopping at the first Status Word not accepted. The
+	 * commands are framed by the caller and no other exchange is interleaved with the batch
+	 * @param commands commands to exchange, in order
+	 * @return result of the batch, reporting the command which failed if any
+	 */
+	public ApduBatch exchangeBatch(final List<ApduBatch.Command> commands) throws LedgerException {
+		return execute(new Operation<ApduBatch>() {
+			@Override
+			public ApduBatch run(LedgerDevice device) throws LedgerException {
+				return ApduBatch.exchange(device, commands);
+			}
+		});
+	}
+
+	/**
+	 * Exchange a batch of commands back to back as a single operation within a deadline. The batch is abandoned if the
+	 * deadline expires or is cancelled while it is queued, and interrupted between or during exchanges otherwise
+	 * @param commands commands to exchange, in order
+	 * @param deadline deadline of the whole batch
+	 * @param priority priority class of the batch
+	 * @return result of the batch, reporting the command which failed if any
+	 */
+	public ApduBatch exchangeBatch(final List<ApduBatch.Command> commands, final Deadline deadline, ExchangePriority priority) throws LedgerException {
+		Operation<ApduBatch> operation = new Operation<ApduBatch>() {
+			@Override
+			public ApduBatch run(LedgerDevice device) throws LedgerException {
+				return ApduBatch.exchange(deadline.bind(device), commands);
+			}
+		};
+		if (isSessionThread()) {
+			return operation.run(device);
+		}
+		return await(submit(operation, priority), deadline);
+	}
+
+	@Override
+	public void close() throws LedgerException {
+		execute(new Operation<Void>() {
+			@Override
+			public Void run(LedgerDevice device) throws LedgerException {
+				device.close();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void setDebug(boolean debugFlag) {
+		device.setDebug(debugFlag);
+	}
+
+	@Override
+	public void setExchangeListener(ExchangeListener listener) {
+		LedgerDevices.setExchangeListener(device, listener);
+	}
+
+	@Override
+	public boolean isOpened() {
+		return device.isOpened();
+	}
+
+}
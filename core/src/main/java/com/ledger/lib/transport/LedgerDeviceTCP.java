@@ -0,0 +1,488 @@
+package com.ledger.lib.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import com.ledger.lib.utils.Log;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.Dump;
+
+/**
+ * \brief Communication class with a Ledger device emulated by Speculos, reached through its APDU TCP socket
+ *
+ * Each command is sent prefixed by its length on 4 bytes (big endian). Each response is received prefixed by the length of its
+ * data on 4 bytes (big endian), the Status Word following the data not being included in this length
+ *
+ * The socket is used in non blocking mode, all waits being bounded by the configured timeouts. Buffers are reused across exchanges,
+ * only the returned response is allocated. exchangeInto sends the command from the caller buffer with a gathering write and
+ * reads the response straight into the caller buffer, without any copy or allocation
+ *
+ * If an exchange times out or is cancelled once its command was sent, the late response is drained at the beginning of the next
+ * exchange. The connection is only closed if a command could not be sent entirely or if the stream is corrupted
+ *
+ * Speculos listens for APDUs on port 9999 by default (--apdu-port option)
+ */
+public class LedgerDeviceTCP implements ExtendedLedgerDevice {
+
+  /** Default Speculos APDU host */
+  public static final String DEFAULT_HOST = "127.0.0.1";
+  /** Default Speculos APDU port */
+  public static final int DEFAULT_PORT = 9999;
+
+  private static final int LENGTH_SIZE = 4;
+  private static final int SW_SIZE = 2;
+  private static final int DEFAULT_BUFFER_SIZE = 260;
+  private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_TIMEOUT_MS = 60000;
+  private static final String LOG_STRING = "LedgerDeviceTCP";
+  private static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+  private String host;
+  private int port;
+  private int connectTimeout;
+  private int timeout;
+  private SocketChannel channel;
+  private Selector selector;
+  private ByteBuffer commandBuffer;
+  private ByteBuffer lengthBuffer;
+  private ByteBuffer headerBuffer;
+  private ByteBuffer[] gatherBuffers;
+  private ExchangeMetrics metrics;
+  private volatile ExchangeListener exchangeListener;
+  private volatile Deadline currentDeadline;
+  private long waitStart;
+  private long waitTimeout;
+  private boolean draining;
+  private int staleRemaining;
+  private boolean debug;
+
+  /** Class constructor
+   * @param host host running the emulator
+   * @param port APDU port of the emulator
+   * @param connectTimeoutMS timeout when connecting to the emulator (in milliseconds)
+   * @param timeoutMS timeout when exchanging an APDU (in milliseconds), 0 to wait forever
+   */
+  public LedgerDeviceTCP(String host, int port, int connectTimeoutMS, int timeoutMS) {
+    this.host = host;
+    this.port = port;
+    this.connectTimeout = connectTimeoutMS;
+    this.timeout = timeoutMS;
+    commandBuffer = ByteBuffer.allocateDirect(LENGTH_SIZE + DEFAULT_BUFFER_SIZE);
+    lengthBuffer = ByteBuffer.allocateDirect(LENGTH_SIZE);
+    headerBuffer = ByteBuffer.allocateDirect(LENGTH_SIZE);
+    gatherBuffers = new ByteBuffer[2];
+    metrics = new ExchangeMetrics(LOG_STRING);
+  }
+
+  /** Class constructor using default timeouts
+   * @param host host running the emulator
+   * @param port APDU port of the emulator
+   */
+  public LedgerDeviceTCP(String host, int port) {
+    this(host, port, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+  }
+
+  /** Class constructor connecting to a local emulator on the default port
+   */
+  public LedgerDeviceTCP() {
+    this(DEFAULT_HOST, DEFAULT_PORT);
+  }
+
+  @Override
+  public void open() throws LedgerException {
+    if (channel != null) {
+      Log.d(LOG_STRING, "Already opened");
+      return;
+    }
+    try {
+      selector = Selector.open();
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      if (!channel.connect(new InetSocketAddress(host, port))) {
+        startWait(getTimeoutNanos(connectTimeout));
+        while (!channel.finishConnect()) {
+          await(SelectionKey.OP_CONNECT);
+        }
+      }
+    }
+    catch(IOException e) {
+      close();
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    catch(LedgerException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public byte[] exchange(byte[] apdu) throws LedgerException {
+    return exchange(apdu, getTimeoutNanos(timeout), null);
+  }
+
+  @Override
+  public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+    deadline.check();
+    long timeoutNanos = (deadline.hasTimeLimit() ? Math.max(1, deadline.getRemainingNanos()) : NO_TIMEOUT);
+    Runnable listener = new Runnable() {
+      @Override
+      public void run() {
+        Selector currentSelector = selector;
+        if (currentSelector != null) {
+          currentSelector.wakeup();
+        }
+      }
+    };
+    deadline.addCancellationListener(listener);
+    try {
+      return exchange(apdu, timeoutNanos, deadline);
+    }
+    finally {
+      deadline.removeCancellationListener(listener);
+    }
+  }
+
+  private byte[] exchange(byte[] apdu, long timeoutNanos, Deadline deadline) throws LedgerException {
+    metrics.start(apdu);
+    currentDeadline = deadline;
+    startWait(timeoutNanos);
+    byte[] responseData;
+    try {
+      responseData = exchangeFramed(apdu);
+    }
+    catch(LedgerException e) {
+      metrics.fail();
+      notifyExchange();
+      throw e;
+    }
+    finally {
+      currentDeadline = null;
+    }
+    metrics.complete(responseData);
+    notifyExchange();
+    return responseData;
+  }
+
+  @Override
+  public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+    metrics.start(command);
+    int offset = response.position();
+    int length;
+    startWait(getTimeoutNanos(timeout));
+    try {
+      length = exchangeFramed(command, response);
+    }
+    catch(LedgerException e) {
+      metrics.fail();
+      notifyExchange();
+      throw e;
+    }
+    metrics.complete(response, offset, length);
+    notifyExchange();
+    return length;
+  }
+
+  private void notifyExchange() {
+    ExchangeListener listener = exchangeListener;
+    if (listener != null) {
+      listener.onExchange(metrics);
+    }
+  }
+
+  private byte[] exchangeFramed(byte[] apdu) throws LedgerException {
+    if (channel == null) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened");
+    }
+    if (debug) {
+      Log.d(LOG_STRING, "=> " + Dump.dump(apdu));
+    }
+    byte[] responseData;
+    boolean sending = false;
+    boolean sent = false;
+    ByteBuffer responseBuffer = null;
+    try {
+      if (draining) {
+        drain();
+      }
+      long framingStart = System.nanoTime();
+      if (commandBuffer.capacity() < LENGTH_SIZE + apdu.length) {
+        commandBuffer = ByteBuffer.allocateDirect(LENGTH_SIZE + apdu.length);
+      }
+      commandBuffer.clear();
+      commandBuffer.putInt(apdu.length);
+      commandBuffer.put(apdu);
+      commandBuffer.flip();
+      metrics.addFraming(System.nanoTime() - framingStart);
+      metrics.addCommandFragments(1);
+      sending = true;
+      while (commandBuffer.hasRemaining()) {
+        if (channel.write(commandBuffer) == 0) {
+          await(SelectionKey.OP_WRITE);
+        }
+      }
+      metrics.sent();
+      sent = true;
+      lengthBuffer.clear();
+      readFully(lengthBuffer);
+      responseData = new byte[readResponseLength() + SW_SIZE];
+      responseBuffer = ByteBuffer.wrap(responseData);
+      readFully(responseBuffer);
+      metrics.addResponseFragment();
+    }
+    catch(IOException e) {
+      close();
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    catch(InterruptedExchangeException e) {
+      if (sending && !sent) {
+        // The stream can't be resynchronized after a partially sent command
+        close();
+      }
+      else
+      if (!draining) {
+        draining = true;
+        staleRemaining = (responseBuffer != null ? responseBuffer.remaining() : -1);
+      }
+      throw e;
+    }
+    catch(LedgerException e) {
+      close();
+      throw e;
+    }
+    if (debug) {
+      Log.d(LOG_STRING, "<= " + Dump.dump(responseData));
+    }
+    return responseData;
+  }
+
+  private int exchangeFramed(ByteBuffer command, ByteBuffer response) throws LedgerException {
+    if (channel == null) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened");
+    }
+    if (debug) {
+      byte[] apdu = new byte[command.remaining()];
+      command.duplicate().get(apdu);
+      Log.d(LOG_STRING, "=> " + Dump.dump(apdu));
+    }
+    int offset = response.position();
+    int limit = response.limit();
+    int responseLength = -1;
+    boolean sending = false;
+    boolean sent = false;
+    boolean reading = false;
+    boolean discarded = false;
+    try {
+      if (draining) {
+        drain();
+      }
+      long framingStart = System.nanoTime();
+      headerBuffer.clear();
+      headerBuffer.putInt(command.remaining());
+      headerBuffer.flip();
+      gatherBuffers[0] = headerBuffer;
+      gatherBuffers[1] = command;
+      metrics.addFraming(System.nanoTime() - framingStart);
+      metrics.addCommandFragments(1);
+      sending = true;
+      while (command.hasRemaining() || headerBuffer.hasRemaining()) {
+        if (channel.write(gatherBuffers) == 0) {
+          await(SelectionKey.OP_WRITE);
+        }
+      }
+      metrics.sent();
+      sent = true;
+      lengthBuffer.clear();
+      readFully(lengthBuffer);
+      responseLength = readResponseLength() + SW_SIZE;
+      if (response.remaining() < responseLength) {
+        // Keep the stream consistent by discarding the response which can't be returned
+        draining = true;
+        staleRemaining = responseLength;
+        discarded = true;
+        drain();
+      }
+      else {
+        response.limit(offset + responseLength);
+        reading = true;
+        readFully(response);
+        metrics.addResponseFragment();
+      }
+    }
+    catch(IOException e) {
+      close();
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    catch(InterruptedExchangeException e) {
+      if (sending && !sent) {
+        // The stream can't be resynchronized after a partially sent command
+        close();
+      }
+      else
+      if (!draining) {
+        draining = true;
+        staleRemaining = (reading ? offset + responseLength - response.position() : responseLength);
+      }
+      throw e;
+    }
+    catch(LedgerException e) {
+      close();
+      throw e;
+    }
+    finally {
+      gatherBuffers[1] = null;
+      response.limit(limit);
+    }
+    if (discarded) {
+      ExchangeBuffers.checkResponseSize(responseLength, response);
+    }
+    if (debug) {
+      byte[] responseData = new byte[responseLength];
+      ByteBuffer view = response.duplicate();
+      view.position(offset);
+      view.get(responseData);
+      Log.d(LOG_STRING, "<= " + Dump.dump(responseData));
+    }
+    return responseLength;
+  }
+
+  /**
+   * Exception raised when an exchange times out or is cancelled, the stream being still consistent
+   */
+  private static class InterruptedExchangeException extends DeadlineException {
+
+    private static final long serialVersionUID = 1L;
+
+    InterruptedExchangeException(String details) {
+      super(details);
+    }
+
+  }
+
+  private int readResponseLength() throws LedgerException {
+    lengthBuffer.flip();
+    int length = lengthBuffer.getInt();
+    if ((length < 0) || (length > 0xffff)) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Invalid response length " + length);
+    }
+    return length;
+  }
+
+  /**
+   * Discard the late response of an interrupted exchange, keeping track of the progress if interrupted again
+   */
+  private void drain() throws IOException, LedgerException {
+    if (staleRemaining < 0) {
+      readFully(lengthBuffer);
+      staleRemaining = readResponseLength() + SW_SIZE;
+    }
+    while (staleRemaining != 0) {
+      commandBuffer.clear();
+      commandBuffer.limit(Math.min(commandBuffer.capacity(), staleRemaining));
+      int read = channel.read(commandBuffer);
+      if (read < 0) {
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Connection closed by the emulator");
+      }
+      if (read == 0) {
+        await(SelectionKey.OP_READ);
+      }
+      staleRemaining -= read;
+    }
+    draining = false;
+    if (debug) {
+      Log.d(LOG_STRING, "Drained the response of an interrupted exchange");
+    }
+  }
+
+  private static long getTimeoutNanos(int timeoutMS) {
+    return (timeoutMS > 0 ? timeoutMS * 1000000L : NO_TIMEOUT);
+  }
+
+  /**
+   * Start the time budget of the following waits, measured from now so that it does not depend on the origin of nanoTime
+   * @param timeoutNanos budget in nanoseconds, or NO_TIMEOUT to wait forever
+   */
+  private void startWait(long timeoutNanos) {
+    waitStart = System.nanoTime();
+    waitTimeout = timeoutNanos;
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException, LedgerException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer);
+      if (read < 0) {
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Connection closed by the emulator");
+      }
+      if (read == 0) {
+        await(SelectionKey.OP_READ);
+      }
+    }
+  }
+
+  private void await(int operation) throws IOException, LedgerException {
+    SelectionKey key = channel.register(selector, operation);
+    try {
+      for (;;) {
+        Deadline cancellation = currentDeadline;
+        if ((cancellation != null) && cancellation.isCancelled()) {
+          throw new InterruptedExchangeException("Cancelled");
+        }
+        long remaining = 0;
+        if (waitTimeout != NO_TIMEOUT) {
+          long remainingNanos = waitTimeout - (System.nanoTime() - waitStart);
+          if (remainingNanos <= 0) {
+            throw new InterruptedExchangeException("Timeout");
+          }
+          remaining = (remainingNanos + 999999L) / 1000000L;
+        }
+        if (selector.select(remaining) != 0) {
+          selector.selectedKeys().clear();
+          return;
+        }
+      }
+    }
+    finally {
+      key.interestOps(0);
+    }
+  }
+
+  @Override
+  public void close() throws LedgerException {
+    try {
+      if (selector != null) {
+        selector.close();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+    }
+    catch(IOException e) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, e);
+    }
+    finally {
+      selector = null;
+      channel = null;
+      draining = false;
+    }
+  }
+
+  @Override
+  public void setDebug(boolean debugFlag) {
+    this.debug = debugFlag;
+  }
+
+  @Override
+  public void setExchangeListener(ExchangeListener listener) {
+    this.exchangeListener = listener;
+  }
+
+  @Override
+  public boolean isOpened() {
+    return (channel != null);
+  }
+}
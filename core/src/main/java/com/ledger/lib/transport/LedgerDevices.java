@@ -0,0 +1,62 @@
+package com.ledger.lib.transport;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Helpers calling the extended exchange features on any Ledger device
+ *
+ * Devices implementing ExtendedLedgerDevice are called directly, other devices fall back to the LedgerDevice methods
+ */
+public class LedgerDevices {
+
+	/**
+	 * Exchange an APDU with a device within a deadline. Devices not supporting deadlines can't be interrupted : the deadline is
+	 * only checked before the exchange, which is limited by the default timeout of the transport
+	 * @param device device to exchange the APDU with
+	 * @param apdu APDU to send to the device
+	 * @param deadline deadline of the exchange
+	 * @return response to the APDU including the Status Word
+	 * @throw LedgerException if a communication error occurs, or DeadlineException if the deadline expired or was cancelled
+	 */
+	public static byte[] exchange(LedgerDevice device, byte[] apdu, Deadline deadline) throws LedgerException {
+		if (device instanceof ExtendedLedgerDevice) {
+			return ((ExtendedLedgerDevice)device).exchange(apdu, deadline);
+		}
+		deadline.check();
+		return device.exchange(apdu);
+	}
+
+	/**
+	 * Exchange an APDU held in a buffer with a device, writing the response into a buffer provided by the caller. The command
+	 * and the response are copied for devices not supporting buffers
+	 * @param device device to exchange the APDU with
+	 * @param command buffer holding the APDU between its position and its limit, the position being moved to the limit
+	 * @param response buffer receiving the response including the Status Word at its position, the position being moved past
+	 * the response
+	 * @return length of the response including the Status Word
+	 * @throw LedgerException if a communication error occurs, or INVALID_PARAMETER if the response buffer is too small
+	 */
+	public static int exchangeInto(LedgerDevice device, ByteBuffer command, ByteBuffer response) throws LedgerException {
+		if (device instanceof ExtendedLedgerDevice) {
+			return ((ExtendedLedgerDevice)device).exchangeInto(command, response);
+		}
+		return ExchangeBuffers.exchangeInto(device, command, response);
+	}
+
+	/**
+	 * Set the listener notified with the metrics of each exchange of a device
+	 * @param device device to report the metrics of
+	 * @param listener listener to notify, or null to stop reporting metrics
+	 * @return true if the device reports metrics, false if the listener is ignored
+	 */
+	public static boolean setExchangeListener(LedgerDevice device, ExchangeListener listener) {
+		if (device instanceof ExtendedLedgerDevice) {
+			((ExtendedLedgerDevice)device).setExchangeListener(listener);
+			return true;
+		}
+		return false;
+	}
+
+}
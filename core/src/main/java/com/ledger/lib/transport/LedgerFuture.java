@@ -0,0 +1,167 @@
+package com.ledger.lib.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * \brief Result of an asynchronous operation on a device
+ *
+ * The future is completed by the transport, usually from its callback thread. Callbacks registered before completion
+ * are invoked on the completing thread, callbacks registered after completion are invoked immediately on the registering thread.
+ */
+public class LedgerFuture<T> implements Future<T> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private List<LedgerCallback<T>> callbacks;
+	private boolean completed;
+	private volatile boolean cancelled;
+	private T result;
+	private LedgerException exception;
+
+	/**
+	 * Complete the future with a result
+	 * @param result result of the operation
+	 * @return true if the future was completed by this call
+	 */
+	public boolean complete(T result) {
+		List<LedgerCallback<T>> currentCallbacks;
+		synchronized(this) {
+			if (completed) {
+				return false;
+			}
+			this.result = result;
+			completed = true;
+			currentCallbacks = callbacks;
+			callbacks = null;
+		}
+		done.countDown();
+		if (currentCallbacks != null) {
+			for (LedgerCallback<T> callback : currentCallbacks) {
+				callback.onSuccess(result);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Complete the future with a failure
+	 * @param exception reason of the failure
+	 * @return true if the future was completed by this call
+	 */
+	public boolean fail(LedgerException exception) {
+		return fail(exception, false);
+	}
+
+	private boolean fail(LedgerException exception, boolean cancelling) {
+		List<LedgerCallback<T>> currentCallbacks;
+		synchronized(this) {
+			if (completed) {
+				return false;
+			}
+			this.exception = exception;
+			cancelled = cancelling;
+			completed = true;
+			currentCallbacks = callbacks;
+			callbacks = null;
+		}
+		done.countDown();
+		if (currentCallbacks != null) {
+			for (LedgerCallback<T> callback : currentCallbacks) {
+				callback.onFailure(exception);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Register a callback notified when the future completes
+	 * @param callback callback to register
+	 */
+	public void addCallback(LedgerCallback<T> callback) {
+		synchronized(this) {
+			if (!completed) {
+				if (callbacks == null) {
+					callbacks = new ArrayList<LedgerCallback<T>>(1);
+				}
+				callbacks.add(callback);
+				return;
+			}
+		}
+		if (exception != null) {
+			callback.onFailure(exception);
+		}
+		else {
+			callback.onSuccess(result);
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return fail(new DeadlineException("Cancelled"), true);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return (done.getCount() == 0);
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	/**
+	 * Block until the future completes, reporting failures as they were raised by the transport
+	 * @param timeoutMS maximum time to wait (in milliseconds)
+	 * @return result of the operation
+	 * @throw LedgerException if the operation failed or did not complete in time
+	 */
+	public T await(long timeoutMS) throws LedgerException {
+		try {
+			if (!done.await(timeoutMS, TimeUnit.MILLISECONDS)) {
+				throw new DeadlineException("Timeout");
+			}
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, ex);
+		}
+		if (exception != null) {
+			throw exception;
+		}
+		return result;
+	}
+
+	private T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return result;
+	}
+
+}
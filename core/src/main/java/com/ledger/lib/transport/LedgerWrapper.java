@@ -0,0 +1,100 @@
+package com.ledger.lib.transport;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Package commands and responses to be sent over the chosen bearer
+*/
+public class LedgerWrapper {
+
+	/**
+	 * Prepare an APDU to be sent over the chosen bearer
+	 * @param channel dummy channel to use
+	 * @param command APDU to send
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @param hasChannel set to true if this bearer includes channel information
+	 * @return list of packets to be sent over the chosen bearer
+	 */
+	private static byte[] wrapCommandAPDUInternal(int channel, byte[] command, int packetSize, boolean hasChannel) throws LedgerException {
+		CommandFramer framer = (hasChannel ? new CommandFramer(channel) : new CommandFramer());
+		framer.start(command, packetSize);
+		byte[] output = new byte[framer.getFramedSize()];
+		int offset = 0;
+		while (framer.hasNextPacket()) {
+			framer.nextPacket(output, offset);
+			offset += packetSize;
+		}
+		return output;
+	}
+	
+	/**
+	 * Reassemble packets received over the chosen bearer
+	 * @param channel dummy channel to use
+	 * @param data binary data received so far
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @param hasChannel set to true if this bearer includes channel information
+	 * @param reassembled response or null if not enough data is available
+	 */
+	private static byte[] unwrapResponseAPDUInternal(int channel, byte[] data, int packetSize, boolean hasChannel) throws LedgerException {
+		int headerSize = (hasChannel ? 7 : 5);
+		if ((data == null) || (data.length < headerSize)) {
+			return null;
+		}
+		ResponseReassembler reassembler = (hasChannel ? new ResponseReassembler(channel) : new ResponseReassembler());
+		int offset = 0;
+		while (offset != data.length) {
+			int blockSize = (data.length - offset > packetSize ? packetSize : data.length - offset);
+			if (blockSize < headerSize - 2) {
+				return null;
+			}
+			if (reassembler.push(data, offset, blockSize)) {
+				return reassembler.getResponse();
+			}
+			offset += blockSize;
+		}
+		return null;
+	}	
+
+	/**
+	 * Prepare an APDU to be sent over the chosen bearer
+	 * @param channel dummy channel to use
+	 * @param command APDU to send
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @return list of packets to be sent over the chosen bearer
+	 */
+	public static byte[] wrapCommandAPDU(int channel, byte[] command, int packetSize) throws LedgerException {
+		return wrapCommandAPDUInternal(channel, command, packetSize, true);
+	}
+
+	/**
+	 * Prepare an APDU to be sent over the chosen bearer
+	 * @param command APDU to send
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @return list of packets to be sent over the chosen bearer
+	 */
+	public static byte[] wrapCommandAPDU(byte[] command, int packetSize) throws LedgerException {
+		return wrapCommandAPDUInternal(0, command, packetSize, false);
+	}
+
+	/**
+	 * Reassemble packets received over the chosen bearer
+	 * @param channel dummy channel to use
+	 * @param data binary data received so far
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @param reassembled response or null if not enough data is available
+	 */
+	public static byte[] unwrapResponseAPDU(int channel, byte[] data, int packetSize) throws LedgerException {
+		return unwrapResponseAPDUInternal(channel, data, packetSize, true);
+	}
+
+	/**
+	 * Reassemble packets received over the chosen bearer
+	 * @param data binary data received so far
+	 * @param packetSize maximum size of a packet for this bearer
+	 * @param reassembled response or null if not enough data is available
+	 */
+	public static byte[] unwrapResponseAPDU(byte[] data, int packetSize) throws LedgerException {
+		return unwrapResponseAPDUInternal(0, data, packetSize, false);
+	}
+
+}
@@ -0,0 +1,210 @@
+package com.ledger.lib.transport;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Incrementally reassemble a response received over the chosen bearer, one packet at a time
+ *
+ * Each packet header is validated once when it is received, and its payload is copied directly into a buffer
+ * sized from the length announced in the first packet, or into a buffer provided by the caller
+*/
+public class ResponseReassembler {
+	private static final int TAG_APDU = 0x05;
+
+	private int channel;
+	private boolean hasChannel;
+	private int headerSize;
+	private int sequenceIdx;
+	private byte[] response;
+	private int responseStart;
+	private int responseLength;
+	private int received;
+	private byte[] target;
+	private int targetOffset;
+	private int targetCapacity;
+	private boolean discarding;
+
+	/**
+	 * Create a reassembler for a bearer including channel information
+	 * @param channel dummy channel to use
+	 */
+	public ResponseReassembler(int channel) {
+		this(channel, true);
+	}
+
+	/**
+	 * Create a reassembler for a bearer without channel information
+	 */
+	public ResponseReassembler() {
+		this(0, false);
+	}
+
+	private ResponseReassembler(int channel, boolean hasChannel) {
+		this.channel = channel;
+		this.hasChannel = hasChannel;
+		this.headerSize = (hasChannel ? 7 : 5);
+		reset();
+	}
+
+	/**
+	 * Change the channel expected for the next responses
+	 * @param channel channel to expect
+	 */
+	public void setChannel(int channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Check if a packet was sent on the expected channel, to discard packets belonging to an abandoned exchange
+	 * @param packet buffer containing the packet
+	 * @param offset offset to the packet in the buffer
+	 * @return true if the packet is on the expected channel, or if this bearer has no channel information
+	 */
+	public boolean isExpectedChannel(byte[] packet, int offset) {
+		return !hasChannel || ((packet[offset] == (byte)(channel >> 8)) && (packet[offset + 1] == (byte)channel));
+	}
+
+	/**
+	 * Discard any partially reassembled response and wait for a new one
+	 */
+	public void reset() {
+		sequenceIdx = 0;
+		response = null;
+		responseStart = 0;
+		responseLength = -1;
+		received = 0;
+		target = null;
+		discarding = false;
+	}
+
+	/**
+	 * Discard any partially reassembled response and wait for a new one, copied into a buffer provided by the caller.
+	 * A response larger than the buffer is still consumed but not copied, see isOverflow
+	 * @param target buffer to copy the response to
+	 * @param offset offset to copy the response to
+	 * @param capacity maximum length of the response in the buffer
+	 */
+	public void reset(byte[] target, int offset, int capacity) {
+		reset();
+		this.target = target;
+		this.targetOffset = offset;
+		this.targetCapacity = capacity;
+	}
+
+	/**
+	 * Stop copying the current response, the remaining packets being only validated. Used when the caller abandons the
+	 * exchange and its buffer can't be written anymore
+	 */
+	public void discard() {
+		discarding = true;
+		response = null;
+	}
+
+	/**
+	 * Process a packet received from the bearer
+	 * @param packet buffer containing the packet
+	 * @param offset offset to the packet in the buffer
+	 * @param length length of the packet, including any trailing padding
+	 * @return true if the response is complete
+	 */
+	public boolean push(byte[] packet, int offset, int length) throws LedgerException {
+		if (isComplete()) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "Response already complete");
+		}
+		int firstHeaderSize = (sequenceIdx == 0 ? headerSize : headerSize - 2);
+		if (length < firstHeaderSize) {
+			throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Truncated packet");
+		}
+		int end = offset + length;
+		if (hasChannel) {
+			if (packet[offset++] != (byte)(channel >> 8)) {
+				throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Invalid channel");
+			}
+			if (packet[offset++] != (byte)channel) {
+				throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Invalid channel");
+			}
+		}
+		if (packet[offset++] != TAG_APDU) {
+			throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Invalid tag");
+		}
+		if (packet[offset++] != (byte)(sequenceIdx >> 8)) {
+			throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Invalid sequence");
+		}
+		if (packet[offset++] != (byte)sequenceIdx) {
+			throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Invalid sequence");
+		}
+		if (sequenceIdx == 0) {
+			responseLength = ((packet[offset++] & 0xff) << 8);
+			responseLength |= (packet[offset++] & 0xff);
+			if (discarding) {
+				response = null;
+			}
+			else
+			if (target == null) {
+				response = new byte[responseLength];
+				responseStart = 0;
+			}
+			else {
+				response = (responseLength <= targetCapacity ? target : null);
+				responseStart = targetOffset;
+			}
+		}
+		sequenceIdx++;
+		int blockSize = Math.min(responseLength - received, end - offset);
+		if (response != null) {
+			System.arraycopy(packet, offset, response, responseStart + received, blockSize);
+		}
+		received += blockSize;
+		return isComplete();
+	}
+
+	/**
+	 * Process a packet received from the bearer
+	 * @param packet packet to process
+	 * @return true if the response is complete
+	 */
+	public boolean push(byte[] packet) throws LedgerException {
+		return push(packet, 0, packet.length);
+	}
+
+	/**
+	 * Check if a full response has been reassembled
+	 * @return true if the response is complete
+	 */
+	public boolean isComplete() {
+		return (responseLength >= 0) && (received == responseLength);
+	}
+
+	/**
+	 * Return the length of the current response, as announced in its first packet
+	 * @return length of the response, or -1 if the first packet was not received yet
+	 */
+	public int getResponseLength() {
+		return responseLength;
+	}
+
+	/**
+	 * Check if the current response does not fit in the buffer provided by the caller and is not copied
+	 * @return true if the response is larger than the buffer
+	 */
+	public boolean isOverflow() {
+		return (target != null) && (responseLength > targetCapacity);
+	}
+
+	/**
+	 * Return the number of packets processed for the current response
+	 * @return number of packets processed
+	 */
+	public int getPacketCount() {
+		return sequenceIdx;
+	}
+
+	/**
+	 * Return the reassembled response
+	 * @return reassembled response or null if not complete, or copied into a buffer provided by the caller
+	 */
+	public byte[] getResponse() {
+		return ((isComplete() && (target == null)) ? response : null);
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.ledger.lib.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * \brief Exchange listener aggregating the exchange metrics of one or several devices by CLA and INS
+ *
+ * Metrics are aggregated without locking nor allocating once an instruction has been seen, and can be read at any time.
+ * Use one instance per transport to compare transports
+ */
+public class TransportMetrics implements ExchangeListener {
+
+	private final AtomicReferenceArray<AtomicReferenceArray<InstructionMetrics>> instructions;
+	private final InstructionMetrics all;
+
+	public TransportMetrics() {
+		instructions = new AtomicReferenceArray<AtomicReferenceArray<InstructionMetrics>>(256);
+		all = new InstructionMetrics(InstructionMetrics.ALL, InstructionMetrics.ALL);
+	}
+
+	@Override
+	public void onExchange(ExchangeMetrics metrics) {
+		all.record(metrics);
+		getOrCreate(metrics.getCla(), metrics.getIns()).record(metrics);
+	}
+
+	private InstructionMetrics getOrCreate(int cla, int ins) {
+		AtomicReferenceArray<InstructionMetrics> claInstructions = instructions.get(cla);
+		if (claInstructions == null) {
+			instructions.compareAndSet(cla, null, new AtomicReferenceArray<InstructionMetrics>(256));
+			claInstructions = instructions.get(cla);
+		}
+		InstructionMetrics result = claInstructions.get(ins);
+		if (result == null) {
+			claInstructions.compareAndSet(ins, null, new InstructionMetrics(cla, ins));
+			result = claInstructions.get(ins);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the metrics aggregated over all exchanges
+	 * @return metrics
+	 */
+	public InstructionMetrics getAll() {
+		return all;
+	}
+
+	/**
+	 * Return the metrics of an instruction
+	 * @param cla instruction CLA
+	 * @param ins instruction INS
+	 * @return metrics, or null if the instruction was not exchanged yet
+	 */
+	public InstructionMetrics getInstruction(int cla, int ins) {
+		AtomicReferenceArray<InstructionMetrics> claInstructions = instructions.get(cla & 0xff);
+		if (claInstructions == null) {
+			return null;
+		}
+		return claInstructions.get(ins & 0xff);
+	}
+
+	/**
+	 * Return the metrics of all instructions exchanged so far, sorted by CLA and INS
+	 * @return list of metrics
+	 */
+	public List<InstructionMetrics> getInstructions() {
+		List<InstructionMetrics> result = new ArrayList<InstructionMetrics>();
+		for (int cla=0; cla<256; cla++) {
+			AtomicReferenceArray<InstructionMetrics> claInstructions = instructions.get(cla);
+			if (claInstructions == null) {
+				continue;
+			}
+			for (int ins=0; ins<256; ins++) {
+				InstructionMetrics metrics = claInstructions.get(ins);
+				if (metrics != null) {
+					result.add(metrics);
+				}
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,339 @@
+package com.ledger.lib.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.transport.Deadline;
+import com.ledger.lib.transport.LedgerDevice;
+
+/**
+ * Reusable builder of short APDUs, writing the header, Lc and data fields in place
+ *
+ * The command is written into a buffer allocated once. exchange passes the device a copy of the command that the device owns,
+ * as asynchronous devices and recorders may still use it after the call returns, so it allocates the command and the
+ * response of each APDU. exchangeInto sends the command straight from the buffer of the builder and receives the response
+ * into a buffer provided by the caller, so that nothing is copied on the USB, BLE and TCP transports
+ *
+ * A builder is not thread safe and builds one command at a time. Each LedgerApplication owns a builder bound to its device.
+ * The ApduExchange helpers use a builder owned by the calling thread, only from the start of their command until its exchange
+*/
+public class ApduBuilder {
+
+	/** Size of the CLA, INS, P1, P2 and Lc fields */
+	public static final int HEADER_SIZE = 5;
+	/** Maximum size of the data of a short APDU */
+	public static final int MAX_DATA_SIZE = 255;
+
+	private static final int OFFSET_LC = 4;
+
+	private static final ThreadLocal<ApduBuilder> builders = new ThreadLocal<ApduBuilder>() {
+		@Override
+		protected ApduBuilder initialValue() {
+			return new ApduBuilder(null, true);
+		}
+	};
+
+	private LedgerDevice device;
+	private final boolean threadOwned;
+	private final byte[] buffer;
+	private final ByteBuffer commandBuffer;
+	private int offset;
+	private int expectedLength;
+
+	/**
+	 * Create a builder bound to a device
+	 * @param device device to exchange the commands with
+	 */
+	public ApduBuilder(LedgerDevice device) {
+		this(device, false);
+	}
+
+	private ApduBuilder(LedgerDevice device, boolean threadOwned) {
+		this.device = device;
+		this.threadOwned = threadOwned;
+		buffer = new byte[HEADER_SIZE + MAX_DATA_SIZE];
+		commandBuffer = ByteBuffer.wrap(buffer);
+		offset = HEADER_SIZE;
+	}
+
+	/**
+	 * Return the builder owned by the calling thread, bound to a device until the next exchange. Only used by the ApduExchange
+	 * helpers, which exchange the command right after building it, so that no other use of the builder can happen meanwhile
+	 * @param device device to exchange the commands with
+	 * @return builder
+	 */
+	static ApduBuilder get(LedgerDevice device) {
+		ApduBuilder builder = builders.get();
+		builder.device = device;
+		return builder;
+	}
+
+	/**
+	 * Start a new command, discarding any command being built
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @return this builder
+	 */
+	public ApduBuilder start(int cla, int ins, int p1, int p2) {
+		buffer[0] = (byte)cla;
+		buffer[1] = (byte)ins;
+		buffer[2] = (byte)p1;
+		buffer[3] = (byte)p2;
+		offset = HEADER_SIZE;
+		expectedLength = 0;
+		return this;
+	}
+
+	/**
+	 * Change P1 of the command being built, when it depends on the data written
+	 * @param p1 APDU P1
+	 * @return this builder
+	 */
+	public ApduBuilder setP1(int p1) {
+		buffer[2] = (byte)p1;
+		return this;
+	}
+
+	/**
+	 * Set the length of the data to receive, written in place of Lc for a command sending no data
+	 * @param length length of the data to receive
+	 * @return this builder
+	 */
+	public ApduBuilder expect(int length) {
+		expectedLength = length;
+		return this;
+	}
+
+	private void reserve(int length) throws LedgerException {
+		if (offset + length > buffer.length) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "APDU data too long");
+		}
+	}
+
+	/**
+	 * Write a byte
+	 * @param value value to write
+	 * @return this builder
+	 */
+	public ApduBuilder writeByte(int value) throws LedgerException {
+		reserve(1);
+		buffer[offset++] = (byte)value;
+		return this;
+	}
+
+	/**
+	 * Write a byte array
+	 * @param value value to write
+	 * @return this builder
+	 */
+	public ApduBuilder writeBytes(byte[] value) throws LedgerException {
+		return writeBytes(value, 0, value.length);
+	}
+
+	/**
+	 * Write a slice of a byte array
+	 * @param value array containing the value to write
+	 * @param valueOffset offset to the value in the array
+	 * @param length length of the value
+	 * @return this builder
+	 */
+	public ApduBuilder writeBytes(byte[] value, int valueOffset, int length) throws LedgerException {
+		reserve(length);
+		System.arraycopy(value, valueOffset, buffer, offset, length);
+		offset += length;
+		return this;
+	}
+
+	/**
+	 * Write a big endian encoded uint16 value
+	 * @param value value to write
+	 * @return this builder
+	 */
+	public ApduBuilder writeUint16BE(long value) throws LedgerException {
+		reserve(2);
+		buffer[offset++] = (byte)((value >> 8) & 0xff);
+		buffer[offset++] = (byte)(value & 0xff);
+		return this;
+	}
+
+	/**
+	 * Write a big endian encoded uint32 value
+	 * @param value value to write
+	 * @return this builder
+	 */
+	public ApduBuilder writeUint32BE(long value) throws LedgerException {
+		reserve(4);
+		buffer[offset++] = (byte)((value >> 24) & 0xff);
+		buffer[offset++] = (byte)((value >> 16) & 0xff);
+		buffer[offset++] = (byte)((value >> 8) & 0xff);
+		buffer[offset++] = (byte)(value & 0xff);
+		return this;
+	}
+
+	/**
+	 * Write a little endian encoded uint32 value
+	 * @param value value to write
+	 * @return this builder
+	 */
+	public ApduBuilder writeUint32LE(long value) throws LedgerException {
+		reserve(4);
+		buffer[offset++] = (byte)(value & 0xff);
+		buffer[offset++] = (byte)((value >> 8) & 0xff);
+		buffer[offset++] = (byte)((value >> 16) & 0xff);
+		buffer[offset++] = (byte)((value >> 24) & 0xff);
+		return this;
+	}
+
+	/**
+	 * Write a Bitcoin encoded variable integer
+	 * @param value value to write
+	 * @return this builder
+	 */
+	public ApduBuilder writeVarint(long value) throws LedgerException {
+		if (value < 0xfd) {
+			return writeByte((int)value);
+		}
+		if (value <= 0xffff) {
+			reserve(3);
+			buffer[offset++] = (byte)0xfd;
+			buffer[offset++] = (byte)(value & 0xff);
+			buffer[offset++] = (byte)((value >> 8) & 0xff);
+			return this;
+		}
+		writeByte(0xfe);
+		return writeUint32LE(value);
+	}
+
+	/**
+	 * Write a BIP 32 path, serialized as its number of elements followed by each element as a big endian uint32, parsing the
+	 * path in place
+	 * @param bip32Path BIP 32 path, such as 44'/0'/0'/0/0
+	 * @return this builder
+	 */
+	public ApduBuilder writePath(String bip32Path) throws LedgerException {
+		int countOffset = offset;
+		writeByte(0);
+		if (bip32Path.length() == 0) {
+			return this;
+		}
+		int count = 0;
+		int length = bip32Path.length();
+		int index = 0;
+		while (index <= length) {
+			long element = 0;
+			int digits = 0;
+			boolean hardened = false;
+			while (index < length) {
+				char c = bip32Path.charAt(index++);
+				if (c == '/') {
+					break;
+				}
+				if ((c == '\'') && (digits != 0) && !hardened) {
+					hardened = true;
+					continue;
+				}
+				if ((c < '0') || (c > '9') || hardened) {
+					throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid path " + bip32Path);
+				}
+				element = element * 10 + (c - '0');
+				if (element > 0xffffffffL) {
+					throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid path " + bip32Path);
+				}
+				digits++;
+			}
+			if (digits == 0) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid path " + bip32Path);
+			}
+			if (++count > 10) {
+				throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "Path too long");
+			}
+			writeUint32BE(hardened ? (element | 0x80000000L) : element);
+			if (index == length) {
+				break;
+			}
+		}
+		buffer[countOffset] = (byte)count;
+		return this;
+	}
+
+	/**
+	 * Return the length of the data written so far
+	 * @return data length
+	 */
+	public int getDataLength() {
+		return offset - HEADER_SIZE;
+	}
+
+	/**
+	 * Return the length of the data that can still be written
+	 * @return remaining data length
+	 */
+	public int getRemaining() {
+		return buffer.length - offset;
+	}
+
+	/**
+	 * Return a copy of the command built so far
+	 * @return command
+	 */
+	public byte[] toApdu() {
+		writeLc();
+		return Arrays.copyOf(buffer, offset);
+	}
+
+	/**
+	 * Return the device to exchange the command with, releasing a builder owned by a thread so that it does not keep the
+	 * device alive
+	 */
+	private LedgerDevice takeDevice() throws LedgerException {
+		LedgerDevice result = device;
+		if (result == null) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Builder not bound to a device");
+		}
+		if (threadOwned) {
+			device = null;
+		}
+		return result;
+	}
+
+	private void writeLc() {
+		int dataLength = getDataLength();
+		buffer[OFFSET_LC] = (byte)(dataLength != 0 ? dataLength : expectedLength);
+	}
+
+	/**
+	 * Exchange the command built with the device, return the response data and Status Word. The command is copied, see
+	 * exchangeInto to avoid allocating
+	 * @return APDU data and Status Word
+	 */
+	public ApduExchange.ApduResponse exchange() throws LedgerException {
+		return ApduExchange.exchangeApdu(takeDevice(), toApdu());
+	}
+
+	/**
+	 * Exchange the command built with the device within a deadline, return the response data and Status Word
+	 * @param deadline deadline of the exchange
+	 * @return APDU data and Status Word
+	 */
+	public ApduExchange.ApduResponse exchange(Deadline deadline) throws LedgerException {
+		return ApduExchange.exchangeApdu(takeDevice(), toApdu(), deadline);
+	}
+
+	/**
+	 * Exchange the command built with the device, receiving the response into a buffer without copying it. The command is
+	 * sent from the buffer of the builder, which the device only reads during the call
+	 * @param response buffer receiving the response at its position
+	 * @param result response wrapping the received response, reused by the caller
+	 * @return result, wrapping the APDU data and Status Word
+	 */
+	public ApduExchange.ApduResponse exchangeInto(ByteBuffer response, ApduExchange.ApduResponse result) throws LedgerException {
+		writeLc();
+		commandBuffer.clear();
+		commandBuffer.limit(offset);
+		return ApduExchange.exchangeApdu(takeDevice(), commandBuffer, response, result);
+	}
+
+}
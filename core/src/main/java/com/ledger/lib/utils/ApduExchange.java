@@ -0,0 +1,356 @@
+package com.ledger.lib.utils;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.lib.transport.Deadline;
+import com.ledger.lib.transport.LedgerDevice;
+import com.ledger.lib.transport.LedgerDevices;
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.SWException;
+import com.ledger.lib.WrongApplicationException;
+
+/**
+ * Utility class to exchange APDUs
+*/
+public class ApduExchange {
+
+	/**
+	 * Embed an APDU response and Status Word
+	 *
+	 * A response is a flyweight over the buffer it was received in : the data and the Status Word are read from the buffer
+	 * without being copied. A response can be reused for successive exchanges with wrap, the buffer shall not be modified
+	 * while the response is in use
+	 *
+	 * isOK and getError report the Status Word without throwing, checkSW throws the matching exception
+	 */
+	public static class ApduResponse {
+
+		private ByteBuffer buffer;
+		private int offset;
+		private int length;
+		private int sw;
+
+		/**
+		 * Create an empty response, to be reused with wrap
+		 */
+		public ApduResponse() {
+		}
+
+		ApduResponse(byte[] responseSW) {
+			wrap(ByteBuffer.wrap(responseSW), 0, responseSW.length);
+		}
+
+		/**
+		 * Wrap a response held in a buffer, without copying it
+		 * @param buffer buffer holding the response
+		 * @param offset offset to the response in the buffer
+		 * @param length length of the response including the Status Word
+		 * @return this response
+		 */
+		public ApduResponse wrap(ByteBuffer buffer, int offset, int length) throws LedgerException {
+			if (length < 2) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Truncated response");
+			}
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+			sw = ((buffer.get(offset + length - 2) & 0xff) << 8) | (buffer.get(offset + length - 1) & 0xff);
+			return this;
+		}
+
+		/**
+		 * Return the response data followed by the Status Word, copied unless the response covers the whole backing array
+		 * @return response data and Status Word
+		 */
+		public byte[] getResponse() {
+			if (buffer.hasArray() && (buffer.arrayOffset() + offset == 0) && (buffer.array().length == length)) {
+				return buffer.array();
+			}
+			return copy(0, length);
+		}
+
+		public int getSW() {
+			return sw;
+		}
+
+		/**
+		 * Return the length of the response data, excluding the Status Word
+		 * @return data length
+		 */
+		public int getDataLength() {
+			return length - 2;
+		}
+
+		/**
+		 * Return a read only view of the response data, excluding the Status Word
+		 * @return view of the data
+		 */
+		public ByteBuffer getData() {
+			ByteBuffer view = buffer.asReadOnlyBuffer();
+			view.limit(offset + length - 2);
+			view.position(offset);
+			return view.slice();
+		}
+
+		/**
+		 * Read a byte of the response data
+		 * @param index offset to the byte in the data
+		 * @return value read
+		 */
+		public byte getByte(int index) throws LedgerException {
+			checkRange(index, 1);
+			return buffer.get(offset + index);
+		}
+
+		/**
+		 * Read a big endian encoded uint16 value from the response data
+		 * @param index offset to the value in the data
+		 * @return value read
+		 */
+		public int getUint16BE(int index) throws LedgerException {
+			checkRange(index, 2);
+			return ((buffer.get(offset + index) & 0xff) << 8) | (buffer.get(offset + index + 1) & 0xff);
+		}
+
+		/**
+		 * Read a big endian encoded uint32 value from the response data
+		 * @param index offset to the value in the data
+		 * @return value read
+		 */
+		public long getUint32BE(int index) throws LedgerException {
+			checkRange(index, 4);
+			return ((long)getUint16BE(index) << 16) | getUint16BE(index + 2);
+		}
+
+		/**
+		 * Copy the response data, excluding the Status Word
+		 * @return copy of the data
+		 */
+		public byte[] copyData() {
+			return copy(0, length - 2);
+		}
+
+		/**
+		 * Copy a slice of the response data
+		 * @param index offset to the slice in the data
+		 * @param sliceLength length of the slice
+		 * @return copy of the slice
+		 */
+		public byte[] copyData(int index, int sliceLength) throws LedgerException {
+			checkRange(index, sliceLength);
+			return copy(index, sliceLength);
+		}
+
+		private void checkRange(int index, int rangeLength) throws LedgerException {
+			if ((index < 0) || (rangeLength < 0) || (index + rangeLength > length - 2)) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Truncated response");
+			}
+		}
+
+		private byte[] copy(int index, int copyLength) {
+			byte[] result = new byte[copyLength];
+			if (buffer.hasArray()) {
+				System.arraycopy(buffer.array(), buffer.arrayOffset() + offset + index, result, 0, copyLength);
+			}
+			else {
+				for (int i=0; i<copyLength; i++) {
+					result[i] = buffer.get(offset + index + i);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Check if the Status Word is SW_OK
+		 * @return true if the command succeeded
+		 */
+		public boolean isOK() {
+			return (sw == SW.SW_OK);
+		}
+
+		/**
+		 * Return the exception matching the Status Word without throwing it, for callers probing a device
+		 * @return exception matching the Status Word, or null if SW_OK
+		 */
+		public LedgerException getError() {
+			return (sw != SW.SW_OK ? getSWException(sw) : null);
+		}
+
+		/**
+		 * Return the exception matching the Status Word without throwing it if not in a list
+		 * @param acceptedSW list of accepted Status Word
+		 * @return exception matching the Status Word, or null if accepted
+		 */
+		public LedgerException getError(int acceptedSW[]) {
+			for (int SW : acceptedSW) {
+				if (sw == SW) {
+					return null;
+				}
+			}
+			return SWException.getInstance(sw);
+		}
+
+		/**
+		 * Check a Status Word and returns an exception if not SW_OK
+		*/
+		public void checkSW() throws LedgerException {
+			if (sw != SW.SW_OK) {
+				throw getSWException(sw);
+			}
+		}
+
+		/**
+		 * Check a Status Word against a list and returns an exception if not found
+		 * @param acceptedSW list of accepted Status Word
+		*/
+		public void checkSW(int acceptedSW[]) throws LedgerException {
+			LedgerException error = getError(acceptedSW);
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * Return the exception matching an unexpected Status Word. Well known Status Words are mapped to shared instances without
+	 * stack trace, so that probing a device does not pay for capturing the stack
+	 * @param sw Status Word
+	 * @return exception
+	 */
+	public static LedgerException getSWException(int sw) {
+		switch(sw) {
+			case SW.SW_CLA_NOT_SUPPORTED:
+			case SW.SW_INS_NOT_SUPPORTED:
+			case SW.SW_INCORRECT_P1_P2:
+				return WrongApplicationException.getInstance();
+		}
+		return SWException.getInstance(sw);
+	}
+
+	/**
+	 * Exchange an APDU with a device and get the response
+	 * @param device device to exchange the APDU with
+	 * @param apdu APDU to exchange
+	 * @returns APDU data and Status Word
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, byte[] apdu) throws LedgerException {
+		 return new ApduResponse(device.exchange(apdu));
+	}
+
+	/**
+	 * Exchange an APDU with a device within a deadline and get the response
+	 * @param device device to exchange the APDU with
+	 * @param apdu APDU to exchange
+	 * @param deadline deadline of the exchange
+	 * @returns APDU data and Status Word
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, byte[] apdu, Deadline deadline) throws LedgerException {
+		 return new ApduResponse(LedgerDevices.exchange(device, apdu, deadline));
+	}
+
+	/**
+	 * Exchange an APDU held in a buffer with a device, receiving the response into a buffer without copying it
+	 * @param device device to exchange the APDU with
+	 * @param command buffer holding the APDU between its position and its limit
+	 * @param response buffer receiving the response at its position
+	 * @param result response wrapping the received response, reused by the caller
+	 * @returns result, wrapping the APDU data and Status Word
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, ByteBuffer command, ByteBuffer response, ApduResponse result) throws LedgerException {
+		int offset = response.position();
+		int length = LedgerDevices.exchangeInto(device, command, response);
+		return result.wrap(response, offset, length);
+	}
+
+	private static ApduBuilder buildApdu(LedgerDevice device, int cla, int ins, int p1, int p2, byte[] data) throws LedgerException {
+		if (data == null) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Data is null");			
+		}
+		return ApduBuilder.get(device).start(cla, ins, p1, p2).writeBytes(data);
+	}
+
+	/**
+	 * Prepare an APDU having no data, exchange it with a device, return the response data and Status Word
+	 * @param device device to exchange the APDU with
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @returns APDU data and Status Word
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, int cla, int ins, int p1, int p2) throws LedgerException {
+		return ApduBuilder.get(device).start(cla, ins, p1, p2).exchange();
+	}
+
+	/**
+	 * Prepare an APDU having no data, exchange it with a device within a deadline, return the response data and Status Word
+	 * @param device device to exchange the APDU with
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @param deadline deadline of the exchange
+	 * @returns APDU data and Status Word
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, int cla, int ins, int p1, int p2, Deadline deadline) throws LedgerException {
+		return ApduBuilder.get(device).start(cla, ins, p1, p2).exchange(deadline);
+	}
+
+	/**
+	 * Prepare an APDU receiving data, exchange it with a device, return the response data and Status Word
+	 * @param device device to exchange the APDU with
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @param length length of the data to receive
+	 * @returns APDU data
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, int cla, int ins, int p1, int p2, int length) throws LedgerException {
+		return ApduBuilder.get(device).start(cla, ins, p1, p2).expect(length).exchange();
+	}
+
+	/**
+	 * Prepare an APDU receiving data, exchange it with a device within a deadline, return the response data and Status Word
+	 * @param device device to exchange the APDU with
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @param length length of the data to receive
+	 * @param deadline deadline of the exchange
+	 * @returns APDU data
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, int cla, int ins, int p1, int p2, int length, Deadline deadline) throws LedgerException {
+		return ApduBuilder.get(device).start(cla, ins, p1, p2).expect(length).exchange(deadline);
+	}
+
+	/**
+	 * Prepare an APDU sending data, exchange it with a device, return the response data and Status Word
+	 * @param device device to exchange the APDU with
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @param data data to exchange
+	 * @returns APDU data
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, int cla, int ins, int p1, int p2, byte[] data) throws LedgerException {
+		return buildApdu(device, cla, ins, p1, p2, data).exchange();
+	}
+
+	/**
+	 * Prepare an APDU sending data, exchange it with a device within a deadline, return the response data and Status Word
+	 * @param device device to exchange the APDU with
+	 * @param cla APDU CLA
+	 * @param ins APDU INS
+	 * @param p1 APDU P1
+	 * @param p2 APDU P2
+	 * @param data data to exchange
+	 * @param deadline deadline of the exchange
+	 * @returns APDU data
+	 */
+	public static ApduResponse exchangeApdu(LedgerDevice device, int cla, int ins, int p1, int p2, byte[] data, Deadline deadline) throws LedgerException {
+		return buildApdu(device, cla, ins, p1, p2, data).exchange(deadline);
+	}
+}
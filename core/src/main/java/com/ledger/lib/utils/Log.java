@@ -0,0 +1,52 @@
+package com.ledger.lib.utils;
+
+import java.util.logging.Level;
+
+/**
+ * Logging facade used by the library, independent from the platform
+ *
+ * Messages are sent to java.util.logging at the FINE level by default, so that they are only output when enabled. The
+ * Android module installs AndroidLogger as the default logger when its transports are loaded, to log directly through
+ * android.util.Log at the debug level
+ */
+public class Log {
+
+	private static final Logger JAVA_LOGGER = new Logger() {
+		@Override
+		public void d(String tag, String message) {
+			java.util.logging.Logger.getLogger(tag).log(Level.FINE, message);
+		}
+	};
+
+	private static volatile Logger defaultLogger = JAVA_LOGGER;
+	private static volatile Logger logger = JAVA_LOGGER;
+
+	/**
+	 * Set the destination of the library messages
+	 * @param newLogger logger to use, or null to restore the default logger
+	 */
+	public static void setLogger(Logger newLogger) {
+		logger = (newLogger != null ? newLogger : defaultLogger);
+	}
+
+	/**
+	 * Replace the default logger of the platform. A logger set by the application with setLogger is kept
+	 * @param newLogger default logger to use
+	 */
+	public static synchronized void setDefaultLogger(Logger newLogger) {
+		if (logger == defaultLogger) {
+			logger = newLogger;
+		}
+		defaultLogger = newLogger;
+	}
+
+	/**
+	 * Log a debug message
+	 * @param tag component logging the message
+	 * @param message message to log
+	 */
+	public static void d(String tag, String message) {
+		logger.d(tag, message);
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.ledger.lib.utils;
+
+/**
+ * Destination of the debug messages logged by the library, installed with Log.setLogger
+ */
+public interface Logger {
+
+	/**
+	 * Log a debug message
+	 * @param tag component logging the message
+	 * @param message message to log
+	 */
+	public void d(String tag, String message);
+
+}
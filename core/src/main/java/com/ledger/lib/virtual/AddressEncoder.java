@@ -0,0 +1,157 @@
+package com.ledger.lib.virtual;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.RIPEMD160Digest;
+
+/**
+ * Address encodings used by the virtual device applications : Base58Check, Bech32 (segwit v0), and hexadecimal for Ethereum
+ */
+public class AddressEncoder {
+
+	private static final String BASE58_ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+	private static final String BECH32_ALPHABET = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
+	private static final int[] BECH32_GENERATOR = new int[] { 0x3b6a57b2, 0x26508e6d, 0x1ea119fa, 0x3d4233dd, 0x2a1462b3 };
+	private static final BigInteger BASE58 = BigInteger.valueOf(58);
+
+	/**
+	 * Compute SHA-256 of a buffer
+	 * @param data data to hash
+	 * @return hash
+	 */
+	public static byte[] sha256(byte[] data) throws LedgerException {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "SHA-256 not available");
+		}
+	}
+
+	/**
+	 * Compute RIPEMD160(SHA-256()) of a buffer
+	 * @param data data to hash
+	 * @return hash
+	 */
+	public static byte[] hash160(byte[] data) throws LedgerException {
+		byte[] hash = sha256(data);
+		byte[] result = new byte[20];
+		RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+		ripemd160.update(hash, 0, hash.length);
+		ripemd160.doFinal(result, 0);
+		return result;
+	}
+
+	/**
+	 * Encode a payload and its checksum in Base58
+	 * @param version version byte
+	 * @param payload payload to encode
+	 * @return encoded address
+	 */
+	public static String base58Check(int version, byte[] payload) throws LedgerException {
+		byte[] data = new byte[1 + payload.length + 4];
+		data[0] = (byte)version;
+		System.arraycopy(payload, 0, data, 1, payload.length);
+		byte[] checksum = sha256(sha256(Arrays.copyOfRange(data, 0, 1 + payload.length)));
+		System.arraycopy(checksum, 0, data, 1 + payload.length, 4);
+		StringBuilder result = new StringBuilder();
+		BigInteger value = new BigInteger(1, data);
+		while (value.signum() > 0) {
+			BigInteger[] divided = value.divideAndRemainder(BASE58);
+			result.append(BASE58_ALPHABET.charAt(divided[1].intValue()));
+			value = divided[0];
+		}
+		for (int i=0; (i<data.length) && (data[i] == 0); i++) {
+			result.append(BASE58_ALPHABET.charAt(0));
+		}
+		return result.reverse().toString();
+	}
+
+	private static int bech32Polymod(byte[] values) {
+		int chk = 1;
+		for (byte value : values) {
+			int top = chk >>> 25;
+			chk = ((chk & 0x1ffffff) << 5) ^ value;
+			for (int i=0; i<5; i++) {
+				if (((top >>> i) & 1) != 0) {
+					chk ^= BECH32_GENERATOR[i];
+				}
+			}
+		}
+		return chk;
+	}
+
+	/**
+	 * Encode a segwit v0 program in Bech32
+	 * @param hrp human readable part
+	 * @param program witness program
+	 * @return encoded address
+	 */
+	public static String bech32Segwit(String hrp, byte[] program) {
+		int dataLength = 1 + (program.length * 8 + 4) / 5;
+		byte[] values = new byte[hrp.length() * 2 + 1 + dataLength + 6];
+		int offset = 0;
+		for (int i=0; i<hrp.length(); i++) {
+			values[offset++] = (byte)(hrp.charAt(i) >> 5);
+		}
+		values[offset++] = 0;
+		for (int i=0; i<hrp.length(); i++) {
+			values[offset++] = (byte)(hrp.charAt(i) & 0x1f);
+		}
+		int dataOffset = offset;
+		values[offset++] = 0;
+		int accumulator = 0;
+		int bits = 0;
+		for (byte b : program) {
+			accumulator = (accumulator << 8) | (b & 0xff);
+			bits += 8;
+			while (bits >= 5) {
+				bits -= 5;
+				values[offset++] = (byte)((accumulator >> bits) & 0x1f);
+			}
+		}
+		if (bits > 0) {
+			values[offset++] = (byte)((accumulator << (5 - bits)) & 0x1f);
+		}
+		int polymod = bech32Polymod(values) ^ 1;
+		for (int i=0; i<6; i++) {
+			values[offset++] = (byte)((polymod >> (5 * (5 - i))) & 0x1f);
+		}
+		StringBuilder result = new StringBuilder(hrp);
+		result.append('1');
+		for (int i=dataOffset; i<offset; i++) {
+			result.append(BECH32_ALPHABET.charAt(values[i]));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Return the lowercase hexadecimal Ethereum address of a public key, without prefix
+	 * @param publicKey uncompressed public key
+	 * @return encoded address
+	 */
+	public static String ethereum(byte[] publicKey) {
+		byte[] hash = Keccak256.digest(publicKey, 1, 64);
+		StringBuilder result = new StringBuilder(40);
+		for (int i=12; i<32; i++) {
+			result.append(Character.forDigit((hash[i] >> 4) & 0x0f, 16));
+			result.append(Character.forDigit(hash[i] & 0x0f, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Return the Base58Check Tron address of a public key
+	 * @param publicKey uncompressed public key
+	 * @return encoded address
+	 */
+	public static String tron(byte[] publicKey) throws LedgerException {
+		byte[] hash = Keccak256.digest(publicKey, 1, 64);
+		return base58Check(0x41, Arrays.copyOfRange(hash, 12, 32));
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.ledger.lib.virtual;
+
+import java.util.HashMap;
+
+/**
+ * Latency model using a fixed cost per instruction plus a cost per byte transferred
+ *
+ * The per byte cost models the transport (for example about 80 us per byte for a BLE link using the default MTU), the fixed
+ * cost models the device processing time (key derivation, signature, user confirmation)
+ */
+public class InstructionLatencyModel implements LatencyModel {
+
+	private final HashMap<Integer, Long> instructionLatencies;
+	private long defaultLatencyNanos;
+	private long perByteNanos;
+
+	/**
+	 * Create a model
+	 * @param defaultLatencyNanos latency of instructions without a specific latency (in nanoseconds)
+	 * @param perByteNanos latency per byte of command and response (in nanoseconds)
+	 */
+	public InstructionLatencyModel(long defaultLatencyNanos, long perByteNanos) {
+		this.defaultLatencyNanos = defaultLatencyNanos;
+		this.perByteNanos = perByteNanos;
+		instructionLatencies = new HashMap<Integer, Long>();
+	}
+
+	/**
+	 * Set the latency of a specific instruction
+	 * @param cla instruction CLA
+	 * @param ins instruction INS
+	 * @param latencyNanos latency of the instruction (in nanoseconds)
+	 * @return this model
+	 */
+	public synchronized InstructionLatencyModel setLatency(int cla, int ins, long latencyNanos) {
+		instructionLatencies.put(((cla & 0xff) << 8) | (ins & 0xff), latencyNanos);
+		return this;
+	}
+
+	@Override
+	public synchronized long getLatencyNanos(int cla, int ins, int p1, int p2, int commandLength, int responseLength) {
+		Long latency = instructionLatencies.get(((cla & 0xff) << 8) | (ins & 0xff));
+		return (latency != null ? latency.longValue() : defaultLatencyNanos) + perByteNanos * (commandLength + responseLength);
+	}
+
+}
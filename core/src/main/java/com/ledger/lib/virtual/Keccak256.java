@@ -0,0 +1,100 @@
+package com.ledger.lib.virtual;
+
+/**
+ * Keccak-256 as used by Ethereum (original Keccak padding, not the FIPS 202 SHA3-256 one)
+ */
+public class Keccak256 {
+
+	private static final int RATE = 136;
+
+	private static final long[] ROUND_CONSTANTS = new long[] {
+		0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL, 0x8000000080008000L,
+		0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L,
+		0x000000000000008aL, 0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
+		0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L,
+		0x8000000000008002L, 0x8000000000000080L, 0x000000000000800aL, 0x800000008000000aL,
+		0x8000000080008081L, 0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L
+	};
+
+	private static final int[] ROTATIONS = new int[] {
+		0, 1, 62, 28, 27,
+		36, 44, 6, 55, 20,
+		3, 10, 43, 25, 39,
+		41, 45, 15, 21, 8,
+		18, 2, 61, 56, 14
+	};
+
+	/**
+	 * Hash a buffer
+	 * @param data data to hash
+	 * @return 32 bytes hash
+	 */
+	public static byte[] digest(byte[] data) {
+		return digest(data, 0, data.length);
+	}
+
+	/**
+	 * Hash a part of a buffer
+	 * @param data buffer containing the data to hash
+	 * @param offset offset to the data
+	 * @param length length of the data
+	 * @return 32 bytes hash
+	 */
+	public static byte[] digest(byte[] data, int offset, int length) {
+		long[] state = new long[25];
+		byte[] block = new byte[RATE];
+		while (length >= RATE) {
+			absorb(state, data, offset);
+			offset += RATE;
+			length -= RATE;
+		}
+		System.arraycopy(data, offset, block, 0, length);
+		block[length] = 0x01;
+		block[RATE - 1] |= (byte)0x80;
+		absorb(state, block, 0);
+		byte[] result = new byte[32];
+		for (int i=0; i<32; i++) {
+			result[i] = (byte)(state[i >> 3] >>> ((i & 7) << 3));
+		}
+		return result;
+	}
+
+	private static void absorb(long[] state, byte[] data, int offset) {
+		for (int i=0; i<RATE / 8; i++) {
+			long lane = 0;
+			for (int j=0; j<8; j++) {
+				lane |= ((long)(data[offset + i * 8 + j] & 0xff)) << (j * 8);
+			}
+			state[i] ^= lane;
+		}
+		permute(state);
+	}
+
+	private static void permute(long[] a) {
+		long[] b = new long[25];
+		long[] c = new long[5];
+		for (int round=0; round<24; round++) {
+			for (int x=0; x<5; x++) {
+				c[x] = a[x] ^ a[x + 5] ^ a[x + 10] ^ a[x + 15] ^ a[x + 20];
+			}
+			for (int x=0; x<5; x++) {
+				long d = c[(x + 4) % 5] ^ Long.rotateLeft(c[(x + 1) % 5], 1);
+				for (int y=0; y<25; y+=5) {
+					a[x + y] ^= d;
+				}
+			}
+			for (int x=0; x<5; x++) {
+				for (int y=0; y<5; y++) {
+					b[y + 5 * ((2 * x + 3 * y) % 5)] = Long.rotateLeft(a[x + 5 * y], ROTATIONS[x + 5 * y]);
+				}
+			}
+			for (int x=0; x<5; x++) {
+				for (int y=0; y<25; y+=5) {
+					a[x + y] = b[x + y] ^ (~b[(x + 1) % 5 + y] & b[(x + 2) % 5 + y]);
+				}
+			}
+			a[0] ^= ROUND_CONSTANTS[round];
+		}
+	}
+
+}
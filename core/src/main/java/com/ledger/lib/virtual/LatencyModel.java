@@ -0,0 +1,28 @@
+package com.ledger.lib.virtual;
+
+/**
+ * Model of the time taken by a device to process a command, applied by the virtual device before answering
+ */
+public interface LatencyModel {
+
+	/** Model answering immediately */
+	public static final LatencyModel NONE = new LatencyModel() {
+		@Override
+		public long getLatencyNanos(int cla, int ins, int p1, int p2, int commandLength, int responseLength) {
+			return 0;
+		}
+	};
+
+	/**
+	 * Return the time taken to process a command
+	 * @param cla command CLA
+	 * @param ins command INS
+	 * @param p1 command P1
+	 * @param p2 command P2
+	 * @param commandLength length of the whole command
+	 * @param responseLength length of the whole response including the Status Word
+	 * @return latency in nanoseconds
+	 */
+	public long getLatencyNanos(int cla, int ins, int p1, int p2, int commandLength, int responseLength);
+
+}
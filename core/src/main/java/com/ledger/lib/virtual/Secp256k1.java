@@ -0,0 +1,298 @@
+package com.ledger.lib.virtual;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Software secp256k1 primitives used by the virtual device
+ *
+ * Points are multiplied in Jacobian coordinates to avoid a modular inversion per step. Signatures use deterministic nonces
+ * (RFC 6979, HMAC-SHA256) and are normalized to a low S value. This is meant for tests and benchmarks, not for protecting real funds :
+ * no effort is made to run in constant time.
+ */
+public class Secp256k1 {
+
+	/** Field prime */
+	public static final BigInteger P = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+	/** Curve order */
+	public static final BigInteger N = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+
+	private static final BigInteger GX = new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16);
+	private static final BigInteger GY = new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16);
+	private static final BigInteger HALF_N = N.shiftRight(1);
+	private static final BigInteger THREE = BigInteger.valueOf(3);
+	private static final BigInteger SEVEN = BigInteger.valueOf(7);
+
+	/**
+	 * Signature produced by the curve, with its public key recovery identifier
+	 */
+	public static class Signature {
+		private final BigInteger r;
+		private final BigInteger s;
+		private final int recoveryId;
+
+		Signature(BigInteger r, BigInteger s, int recoveryId) {
+			this.r = r;
+			this.s = s;
+			this.recoveryId = recoveryId;
+		}
+
+		/** Return R as a 32 bytes big endian value */
+		public byte[] getR() {
+			return toBytes32(r);
+		}
+
+		/** Return S as a 32 bytes big endian value */
+		public byte[] getS() {
+			return toBytes32(s);
+		}
+
+		/** Return the recovery identifier (parity of R.y in bit 0, R.x overflow in bit 1) */
+		public int getRecoveryId() {
+			return recoveryId;
+		}
+
+		/**
+		 * Return the DER encoding of the signature
+		 * @param firstByte first byte of the encoding, 0x30 for a standard encoding
+		 * @return encoded signature
+		 */
+		public byte[] toDER(int firstByte) {
+			byte[] rBytes = r.toByteArray();
+			byte[] sBytes = s.toByteArray();
+			byte[] result = new byte[6 + rBytes.length + sBytes.length];
+			int offset = 0;
+			result[offset++] = (byte)firstByte;
+			result[offset++] = (byte)(4 + rBytes.length + sBytes.length);
+			result[offset++] = 0x02;
+			result[offset++] = (byte)rBytes.length;
+			System.arraycopy(rBytes, 0, result, offset, rBytes.length);
+			offset += rBytes.length;
+			result[offset++] = 0x02;
+			result[offset++] = (byte)sBytes.length;
+			System.arraycopy(sBytes, 0, result, offset, sBytes.length);
+			return result;
+		}
+	}
+
+	/**
+	 * Point in Jacobian coordinates (X / Z^2, Y / Z^3), infinity being represented by Z = 0
+	 */
+	private static class Point {
+		final BigInteger x;
+		final BigInteger y;
+		final BigInteger z;
+
+		Point(BigInteger x, BigInteger y, BigInteger z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		boolean isInfinity() {
+			return z.signum() == 0;
+		}
+	}
+
+	private static final Point INFINITY = new Point(BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO);
+	private static final Point G = new Point(GX, GY, BigInteger.ONE);
+
+	private static Point twice(Point p) {
+		if (p.isInfinity() || (p.y.signum() == 0)) {
+			return INFINITY;
+		}
+		BigInteger y2 = p.y.multiply(p.y).mod(P);
+		BigInteger s = p.x.multiply(y2).shiftLeft(2).mod(P);
+		BigInteger m = p.x.multiply(p.x).multiply(THREE).mod(P);
+		BigInteger x = m.multiply(m).subtract(s.shiftLeft(1)).mod(P);
+		BigInteger y = m.multiply(s.subtract(x)).subtract(y2.multiply(y2).shiftLeft(3)).mod(P);
+		BigInteger z = p.y.multiply(p.z).shiftLeft(1).mod(P);
+		return new Point(x, y, z);
+	}
+
+	private static Point add(Point p, Point q) {
+		if (p.isInfinity()) {
+			return q;
+		}
+		if (q.isInfinity()) {
+			return p;
+		}
+		BigInteger pz2 = p.z.multiply(p.z).mod(P);
+		BigInteger qz2 = q.z.multiply(q.z).mod(P);
+		BigInteger u1 = p.x.multiply(qz2).mod(P);
+		BigInteger u2 = q.x.multiply(pz2).mod(P);
+		BigInteger s1 = p.y.multiply(qz2).multiply(q.z).mod(P);
+		BigInteger s2 = q.y.multiply(pz2).multiply(p.z).mod(P);
+		if (u1.equals(u2)) {
+			return (s1.equals(s2) ? twice(p) : INFINITY);
+		}
+		BigInteger h = u2.subtract(u1).mod(P);
+		BigInteger r = s2.subtract(s1).mod(P);
+		BigInteger h2 = h.multiply(h).mod(P);
+		BigInteger h3 = h2.multiply(h).mod(P);
+		BigInteger u1h2 = u1.multiply(h2).mod(P);
+		BigInteger x = r.multiply(r).subtract(h3).subtract(u1h2.shiftLeft(1)).mod(P);
+		BigInteger y = r.multiply(u1h2.subtract(x)).subtract(s1.multiply(h3)).mod(P);
+		BigInteger z = h.multiply(p.z).multiply(q.z).mod(P);
+		return new Point(x, y, z);
+	}
+
+	private static Point multiply(Point p, BigInteger k) {
+		Point result = INFINITY;
+		for (int i=k.bitLength() - 1; i>=0; i--) {
+			result = twice(result);
+			if (k.testBit(i)) {
+				result = add(result, p);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Convert to affine coordinates
+	 * @return x and y
+	 */
+	private static BigInteger[] toAffine(Point p) {
+		BigInteger zInverse = p.z.modInverse(P);
+		BigInteger zInverse2 = zInverse.multiply(zInverse).mod(P);
+		return new BigInteger[] {
+			p.x.multiply(zInverse2).mod(P),
+			p.y.multiply(zInverse2).multiply(zInverse).mod(P)
+		};
+	}
+
+	/**
+	 * Convert a value to a 32 bytes big endian buffer
+	 * @param value value to convert
+	 * @return converted value
+	 */
+	public static byte[] toBytes32(BigInteger value) {
+		byte[] data = value.toByteArray();
+		if (data.length == 32) {
+			return data;
+		}
+		byte[] result = new byte[32];
+		if (data.length > 32) {
+			System.arraycopy(data, data.length - 32, result, 0, 32);
+		}
+		else {
+			System.arraycopy(data, 0, result, 32 - data.length, data.length);
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the uncompressed public key associated to a private key
+	 * @param privateKey private key
+	 * @return public key (0x04, x, y)
+	 */
+	public static byte[] getPublicKey(BigInteger privateKey) {
+		BigInteger[] point = toAffine(multiply(G, privateKey));
+		byte[] result = new byte[65];
+		result[0] = 0x04;
+		System.arraycopy(toBytes32(point[0]), 0, result, 1, 32);
+		System.arraycopy(toBytes32(point[1]), 0, result, 33, 32);
+		return result;
+	}
+
+	/**
+	 * Compress a public key
+	 * @param publicKey uncompressed public key
+	 * @return compressed public key
+	 */
+	public static byte[] compress(byte[] publicKey) {
+		byte[] result = Arrays.copyOfRange(publicKey, 0, 33);
+		result[0] = (byte)(((publicKey[64] & 1) != 0) ? 0x03 : 0x02);
+		return result;
+	}
+
+	/**
+	 * Check that a public key is on the curve
+	 * @param publicKey uncompressed public key
+	 * @return true if the point is valid
+	 */
+	public static boolean isValid(byte[] publicKey) {
+		if ((publicKey.length != 65) || (publicKey[0] != 0x04)) {
+			return false;
+		}
+		BigInteger x = new BigInteger(1, Arrays.copyOfRange(publicKey, 1, 33));
+		BigInteger y = new BigInteger(1, Arrays.copyOfRange(publicKey, 33, 65));
+		return y.multiply(y).subtract(x.pow(3)).subtract(SEVEN).mod(P).signum() == 0;
+	}
+
+	/**
+	 * Sign a hash with a deterministic nonce
+	 * @param privateKey private key
+	 * @param hash 32 bytes hash to sign
+	 * @return signature normalized to a low S value
+	 */
+	public static Signature sign(BigInteger privateKey, byte[] hash) throws LedgerException {
+		BigInteger z = new BigInteger(1, hash);
+		byte[] x = toBytes32(privateKey);
+		byte[] h = toBytes32(z.mod(N));
+		byte[] v = new byte[32];
+		byte[] k = new byte[32];
+		Arrays.fill(v, (byte)0x01);
+		k = hmac(k, v, new byte[] { 0x00 }, x, h);
+		v = hmac(k, v);
+		k = hmac(k, v, new byte[] { 0x01 }, x, h);
+		v = hmac(k, v);
+		for (;;) {
+			v = hmac(k, v);
+			BigInteger nonce = new BigInteger(1, v);
+			if ((nonce.signum() > 0) && (nonce.compareTo(N) < 0)) {
+				BigInteger[] point = toAffine(multiply(G, nonce));
+				BigInteger r = point[0].mod(N);
+				if (r.signum() != 0) {
+					BigInteger s = nonce.modInverse(N).multiply(z.add(r.multiply(privateKey))).mod(N);
+					if (s.signum() != 0) {
+						int recoveryId = (point[1].testBit(0) ? 1 : 0) | (point[0].compareTo(N) >= 0 ? 2 : 0);
+						if (s.compareTo(HALF_N) > 0) {
+							s = N.subtract(s);
+							recoveryId ^= 1;
+						}
+						return new Signature(r, s, recoveryId);
+					}
+				}
+			}
+			k = hmac(k, v, new byte[] { 0x00 });
+			v = hmac(k, v);
+		}
+	}
+
+	static byte[] hmac(byte[] key, byte[]... data) throws LedgerException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			for (byte[] block : data) {
+				mac.update(block);
+			}
+			return mac.doFinal();
+		}
+		catch(Exception e) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e);
+		}
+	}
+
+	/**
+	 * Add a tweak to a private key, as done by BIP 32 derivation
+	 * @param privateKey private key
+	 * @param tweak tweak to add
+	 * @return tweaked private key
+	 */
+	public static BigInteger addPrivate(BigInteger privateKey, BigInteger tweak) throws LedgerException {
+		if (tweak.compareTo(N) >= 0) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "Invalid derivation");
+		}
+		BigInteger result = privateKey.add(tweak).mod(N);
+		if (result.signum() == 0) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "Invalid derivation");
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.ledger.lib.virtual;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.Dump;
+
+/**
+ * BIP 32 key tree derived in software from a seed, caching each derived node
+ */
+public class SoftwareKeyStore {
+
+	private static final byte[] MASTER_KEY = "Bitcoin seed".getBytes();
+	private static final long HARDENED = 0x80000000L;
+
+	/**
+	 * Node of the key tree
+	 */
+	public static class DerivedKey {
+		private final BigInteger privateKey;
+		private final byte[] chainCode;
+		private byte[] publicKey;
+
+		DerivedKey(BigInteger privateKey, byte[] chainCode) {
+			this.privateKey = privateKey;
+			this.chainCode = chainCode;
+		}
+
+		/** Return the private key */
+		public BigInteger getPrivateKey() {
+			return privateKey;
+		}
+
+		/** Return the uncompressed public key, computed once */
+		public synchronized byte[] getPublicKey() {
+			if (publicKey == null) {
+				publicKey = Secp256k1.getPublicKey(privateKey);
+			}
+			return publicKey;
+		}
+
+		/** Return the chain code */
+		public byte[] getChainCode() {
+			return chainCode;
+		}
+	}
+
+	private final DerivedKey master;
+	private final HashMap<String, DerivedKey> cache;
+
+	/**
+	 * Create a key tree from a seed
+	 * @param seed BIP 39 seed or any other entropy (16 to 64 bytes)
+	 */
+	public SoftwareKeyStore(byte[] seed) throws LedgerException {
+		byte[] i = hmacSha512(MASTER_KEY, seed);
+		master = new DerivedKey(new BigInteger(1, Arrays.copyOfRange(i, 0, 32)), Arrays.copyOfRange(i, 32, 64));
+		cache = new HashMap<String, DerivedKey>();
+	}
+
+	/**
+	 * Return the master node
+	 * @return master node
+	 */
+	public DerivedKey getMaster() {
+		return master;
+	}
+
+	/**
+	 * Derive a node from a path serialized as sent to the device (number of components followed by each component, big endian)
+	 * @param path buffer containing the serialized path
+	 * @param offset offset to the serialized path
+	 * @return derived node
+	 */
+	public synchronized DerivedKey derive(byte[] path, int offset) throws LedgerException {
+		int count = (path[offset] & 0xff);
+		if ((count > 10) || (offset + 1 + count * 4 > path.length)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid path");
+		}
+		String cacheKey = Dump.dump(path, offset, 1 + count * 4);
+		DerivedKey result = cache.get(cacheKey);
+		if (result != null) {
+			return result;
+		}
+		result = master;
+		for (int i=0; i<count; i++) {
+			int componentOffset = offset + 1 + i * 4;
+			long index = ((long)(path[componentOffset] & 0xff) << 24) | ((path[componentOffset + 1] & 0xff) << 16) |
+				((path[componentOffset + 2] & 0xff) << 8) | (path[componentOffset + 3] & 0xff);
+			result = deriveChild(result, index);
+		}
+		cache.put(cacheKey, result);
+		return result;
+	}
+
+	/**
+	 * Return the size of a path serialized as sent to the device
+	 * @param path buffer containing the serialized path
+	 * @param offset offset to the serialized path
+	 * @return size of the path
+	 */
+	public static int getPathSize(byte[] path, int offset) {
+		return 1 + (path[offset] & 0xff) * 4;
+	}
+
+	private DerivedKey deriveChild(DerivedKey parent, long index) throws LedgerException {
+		byte[] data = new byte[37];
+		if ((index & HARDENED) != 0) {
+			System.arraycopy(Secp256k1.toBytes32(parent.getPrivateKey()), 0, data, 1, 32);
+		}
+		else {
+			System.arraycopy(Secp256k1.compress(parent.getPublicKey()), 0, data, 0, 33);
+		}
+		data[33] = (byte)(index >> 24);
+		data[34] = (byte)(index >> 16);
+		data[35] = (byte)(index >> 8);
+		data[36] = (byte)index;
+		byte[] i = hmacSha512(parent.getChainCode(), data);
+		BigInteger privateKey = Secp256k1.addPrivate(parent.getPrivateKey(), new BigInteger(1, Arrays.copyOfRange(i, 0, 32)));
+		return new DerivedKey(privateKey, Arrays.copyOfRange(i, 32, 64));
+	}
+
+	private static byte[] hmacSha512(byte[] key, byte[] data) throws LedgerException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA512");
+			mac.init(new SecretKeySpec(key, "HmacSHA512"));
+			return mac.doFinal(data);
+		}
+		catch(Exception e) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e);
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.ledger.lib.virtual;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Incremental parser of a Bitcoin transaction streamed in arbitrary chunks, hashing it on the fly and keeping the amount of
+ * a given output, as done by the device when computing a trusted input
+ */
+class TransactionStreamParser {
+
+	private enum Step {
+		VERSION,
+		INPUT_COUNT,
+		PREVOUT,
+		INPUT_SCRIPT_LENGTH,
+		INPUT_SCRIPT,
+		SEQUENCE,
+		OUTPUT_COUNT,
+		AMOUNT,
+		OUTPUT_SCRIPT_LENGTH,
+		OUTPUT_SCRIPT,
+		LOCKTIME,
+		DONE
+	};
+
+	private static final int PREVOUT_SIZE = 36;
+
+	private final MessageDigest digest;
+	private final byte[] field;
+	private final byte[] amount;
+	private Step step;
+	private int fieldLength;
+	private int fieldNeeded;
+	private long skip;
+	private long remainingItems;
+	private long outputNumber;
+	private long outputIndex;
+	private boolean outputFound;
+	private boolean started;
+
+	TransactionStreamParser() throws LedgerException {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "SHA-256 not available");
+		}
+		field = new byte[PREVOUT_SIZE];
+		amount = new byte[8];
+	}
+
+	/**
+	 * Start parsing a new transaction
+	 * @param outputIndex index of the output whose amount is kept
+	 */
+	void start(long outputIndex) {
+		digest.reset();
+		this.outputIndex = outputIndex;
+		outputFound = false;
+		outputNumber = 0;
+		started = true;
+		setStep(Step.VERSION);
+	}
+
+	boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Parse the next chunk of the transaction
+	 * @return true if the transaction is complete
+	 */
+	boolean push(byte[] data, int offset, int length) throws LedgerException {
+		int end = offset + length;
+		if (!started || (step == Step.DONE)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Unexpected transaction data");
+		}
+		while ((offset < end) && (step != Step.DONE)) {
+			if ((step == Step.INPUT_SCRIPT) || (step == Step.OUTPUT_SCRIPT)) {
+				int blockSize = (int)Math.min(skip, end - offset);
+				digest.update(data, offset, blockSize);
+				offset += blockSize;
+				skip -= blockSize;
+				if (skip == 0) {
+					onScriptDone();
+				}
+				continue;
+			}
+			int blockSize = Math.min(fieldNeeded - fieldLength, end - offset);
+			System.arraycopy(data, offset, field, fieldLength, blockSize);
+			digest.update(data, offset, blockSize);
+			fieldLength += blockSize;
+			offset += blockSize;
+			if (fieldLength < fieldNeeded) {
+				continue;
+			}
+			if (isVarint() && (fieldLength == 1)) {
+				int prefix = (field[0] & 0xff);
+				if (prefix >= 0xfd) {
+					fieldNeeded = 1 + (prefix == 0xfd ? 2 : (prefix == 0xfe ? 4 : 8));
+					continue;
+				}
+			}
+			onField();
+		}
+		if ((offset != end) && (step == Step.DONE)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Trailing transaction data");
+		}
+		return (step == Step.DONE);
+	}
+
+	/**
+	 * Return the transaction hash, once complete
+	 * @return double SHA-256 of the transaction
+	 */
+	byte[] getHash() {
+		byte[] hash = digest.digest();
+		digest.update(hash);
+		return digest.digest();
+	}
+
+	/**
+	 * Return the amount of the selected output, once complete
+	 * @return 8 bytes little endian amount, or null if the output does not exist
+	 */
+	byte[] getAmount() {
+		return (outputFound ? amount : null);
+	}
+
+	private boolean isVarint() {
+		return (step == Step.INPUT_COUNT) || (step == Step.INPUT_SCRIPT_LENGTH) || (step == Step.OUTPUT_COUNT) || (step == Step.OUTPUT_SCRIPT_LENGTH);
+	}
+
+	private long readVarint() {
+		if (fieldLength == 1) {
+			return (field[0] & 0xff);
+		}
+		long result = 0;
+		for (int i=fieldLength - 1; i>=1; i--) {
+			result = (result << 8) | (field[i] & 0xff);
+		}
+		return result;
+	}
+
+	private void setStep(Step step) {
+		this.step = step;
+		fieldLength = 0;
+		switch(step) {
+			case VERSION:
+			case SEQUENCE:
+			case LOCKTIME:
+				fieldNeeded = 4;
+				break;
+			case PREVOUT:
+				fieldNeeded = PREVOUT_SIZE;
+				break;
+			case AMOUNT:
+				fieldNeeded = 8;
+				break;
+			case INPUT_COUNT:
+			case INPUT_SCRIPT_LENGTH:
+			case OUTPUT_COUNT:
+			case OUTPUT_SCRIPT_LENGTH:
+				fieldNeeded = 1;
+				break;
+			default:
+				fieldNeeded = 0;
+				break;
+		}
+	}
+
+	private void onField() {
+		switch(step) {
+			case VERSION:
+				setStep(Step.INPUT_COUNT);
+				break;
+			case INPUT_COUNT:
+				remainingItems = readVarint();
+				setStep(remainingItems != 0 ? Step.PREVOUT : Step.OUTPUT_COUNT);
+				break;
+			case PREVOUT:
+				setStep(Step.INPUT_SCRIPT_LENGTH);
+				break;
+			case INPUT_SCRIPT_LENGTH:
+				skip = readVarint();
+				setStep(Step.INPUT_SCRIPT);
+				if (skip == 0) {
+					onScriptDone();
+				}
+				break;
+			case SEQUENCE:
+				remainingItems--;
+				setStep(remainingItems != 0 ? Step.PREVOUT : Step.OUTPUT_COUNT);
+				break;
+			case OUTPUT_COUNT:
+				remainingItems = readVarint();
+				setStep(remainingItems != 0 ? Step.AMOUNT : Step.LOCKTIME);
+				break;
+			case AMOUNT:
+				if (outputNumber == outputIndex) {
+					System.arraycopy(field, 0, amount, 0, 8);
+					outputFound = true;
+				}
+				setStep(Step.OUTPUT_SCRIPT_LENGTH);
+				break;
+			case OUTPUT_SCRIPT_LENGTH:
+				skip = readVarint();
+				setStep(Step.OUTPUT_SCRIPT);
+				if (skip == 0) {
+					onScriptDone();
+				}
+				break;
+			case LOCKTIME:
+				started = false;
+				setStep(Step.DONE);
+				break;
+		}
+	}
+
+	private void onScriptDone() {
+		if (step == Step.INPUT_SCRIPT) {
+			setStep(Step.SEQUENCE);
+		}
+		else {
+			outputNumber++;
+			remainingItems--;
+			setStep(remainingItems != 0 ? Step.AMOUNT : Step.LOCKTIME);
+		}
+	}
+
+}
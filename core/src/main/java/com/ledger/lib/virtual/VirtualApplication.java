@@ -0,0 +1,138 @@
+package com.ledger.lib.virtual;
+
+import java.io.ByteArrayOutputStream;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.SW;
+import com.ledger.lib.utils.SerializeHelper;
+
+/**
+ * Application running on the virtual device, processing the commands sent with the application CLA
+ */
+abstract class VirtualApplication {
+
+	protected final SoftwareKeyStore keyStore;
+
+	/** Key used to sign the payload being received */
+	protected SoftwareKeyStore.DerivedKey payloadKey;
+	/** Payload being received */
+	protected final ByteArrayOutputStream payload;
+	/** Expected length of the payload being received, or -1 if not known yet */
+	protected long payloadLength;
+
+	VirtualApplication(SoftwareKeyStore keyStore) {
+		this.keyStore = keyStore;
+		payload = new ByteArrayOutputStream();
+		payloadLength = -1;
+	}
+
+	/**
+	 * Return the application name, as used to start it from the dashboard
+	 * @return application name
+	 */
+	abstract String getName();
+
+	/**
+	 * Return the application version
+	 * @return application version
+	 */
+	abstract String getVersion();
+
+	/**
+	 * Process a command
+	 * @param ins command INS
+	 * @param p1 command P1
+	 * @param p2 command P2
+	 * @param data command data
+	 * @return response including the Status Word
+	 */
+	abstract byte[] process(int ins, int p1, int p2, byte[] data) throws LedgerException;
+
+	/**
+	 * Reset the application state, called each time the application is started
+	 */
+	void reset() {
+		payloadKey = null;
+		payload.reset();
+		payloadLength = -1;
+	}
+
+	/**
+	 * Start receiving a payload prefixed by the derivation path of its signing key
+	 * @param data first chunk of the payload
+	 * @param lengthPrefixed true if the path is followed by the payload length on 4 bytes (big endian)
+	 */
+	protected void startPayload(byte[] data, boolean lengthPrefixed) throws LedgerException {
+		int offset = SoftwareKeyStore.getPathSize(data, 0);
+		payloadKey = keyStore.derive(data, 0);
+		payload.reset();
+		payloadLength = -1;
+		if (lengthPrefixed) {
+			payloadLength = SerializeHelper.readUint32BE(data, offset) & 0xffffffffL;
+			offset += 4;
+		}
+		continuePayload(data, offset);
+	}
+
+	/**
+	 * Receive the next chunk of a payload
+	 * @param data buffer containing the chunk
+	 * @param offset offset to the chunk
+	 */
+	protected void continuePayload(byte[] data, int offset) throws LedgerException {
+		if (payloadKey == null) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Payload not started");
+		}
+		payload.write(data, offset, data.length - offset);
+		if ((payloadLength >= 0) && (payload.size() > payloadLength)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Payload too long");
+		}
+	}
+
+	/**
+	 * Check if the payload has been fully received
+	 * @return true if the payload length is known and has been received
+	 */
+	protected boolean isPayloadComplete() {
+		return (payloadKey != null) && (payloadLength == payload.size());
+	}
+
+	/**
+	 * Return a response made of a Status Word only
+	 * @param sw Status Word
+	 * @return response
+	 */
+	static byte[] status(int sw) {
+		return new byte[] { (byte)(sw >> 8), (byte)sw };
+	}
+
+	/**
+	 * Return a successful response
+	 * @param data response data
+	 * @return response including the Status Word
+	 */
+	static byte[] success(ByteArrayOutputStream data) {
+		SerializeHelper.writeUint16BE(data, SW.SW_OK);
+		return data.toByteArray();
+	}
+
+	/**
+	 * Serialize a public key and its address using the common application encoding
+	 * @param out buffer to write to
+	 * @param key derived key
+	 * @param address encoded address
+	 * @param chainCode true to append the chain code
+	 */
+	static void writeWalletAddress(ByteArrayOutputStream out, SoftwareKeyStore.DerivedKey key, String address, boolean chainCode) {
+		byte[] publicKey = key.getPublicKey();
+		byte[] encodedAddress = SerializeHelper.stringToByteArray(address);
+		out.write(publicKey.length);
+		SerializeHelper.writeBuffer(out, publicKey);
+		out.write(encodedAddress.length);
+		SerializeHelper.writeBuffer(out, encodedAddress);
+		if (chainCode) {
+			SerializeHelper.writeBuffer(out, key.getChainCode());
+		}
+	}
+
+}
@@ -0,0 +1,441 @@
+package com.ledger.lib.virtual;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Vector;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.SW;
+import com.ledger.lib.utils.SerializeHelper;
+import com.ledger.lib.utils.VarintUtils;
+
+/**
+ * Virtual BTC application, using Bitcoin mainnet address encodings
+ *
+ * Trusted inputs are authenticated with a key derived from the seed. Each HASH_INPUT_START sequence is buffered and parsed
+ * when the outputs or the signature request are received : a sequence started with a segwit flag commits to all prevouts and
+ * sequences (BIP 143), a sequence continuing a segwit transaction provides the single input to sign
+ */
+class VirtualBtcApplication extends VirtualApplication {
+
+	static final String NAME = "Bitcoin";
+	private static final String VERSION = "1.3.13";
+
+	private static final int INS_GET_WALLET_PUBLIC_KEY = 0x40;
+	private static final int INS_GET_TRUSTED_INPUT = 0x42;
+	private static final int INS_HASH_INPUT_START = 0x44;
+	private static final int INS_HASH_SIGN = 0x48;
+	private static final int INS_HASH_INPUT_FINALIZE_FULL = 0x4A;
+	private static final int INS_SIGN_MESSAGE = 0x4E;
+
+	private static final int P2_LEGACY_ADDRESS = 0x00;
+	private static final int P2_SEGWIT = 0x01;
+	private static final int P2_SEGWIT_NATIVE = 0x02;
+	private static final int P1_FIRST_BLOCK = 0x00;
+	private static final int P1_NEXT_BLOCK = 0x80;
+	private static final int P2_NEW_TX = 0x00;
+	private static final int P2_NEW_TX_SEGWIT = 0x02;
+	private static final int P2_CONTINUE_TX = 0x80;
+	private static final int P2_CONTINUE_TX_SEGWIT = 0x10;
+	private static final int P1_MORE_OUTPUT = 0x00;
+	private static final int P1_LAST_OUTPUT = 0x80;
+	private static final int P1_CHANGE_OUTPUT = 0xFF;
+	private static final int P1_SIGN_MESSAGE_PREPARE = 0x00;
+	private static final int P1_SIGN_MESSAGE_SIGN = 0x80;
+	private static final int P2_SIGN_MESSAGE_PREPARE_FIRST = 0x01;
+	private static final int P2_SIGN_MESSAGE_PREPARE_NEXT = 0x80;
+
+	private static final int TAG_INPUT_TRUSTED = 0x01;
+	private static final int TAG_INPUT_WITNESS = 0x02;
+
+	private static final int TRUSTED_INPUT_MAGIC = 0x32;
+	private static final int TRUSTED_INPUT_SIZE = 56;
+	private static final int TRUSTED_INPUT_MAC_OFFSET = 48;
+	private static final int TRUSTED_INPUT_MAC_SIZE = 8;
+	private static final int PREVOUT_SIZE = 36;
+	private static final int AMOUNT_SIZE = 8;
+
+	private static final int VERSION_P2PKH = 0x00;
+	private static final int VERSION_P2SH = 0x05;
+	private static final String BECH32_HRP = "bc";
+
+	private static final byte[] TRUSTED_INPUT_KEY_LABEL = "Trusted input".getBytes();
+	private static final byte[] MESSAGE_PREFIX = "\u0018Bitcoin Signed Message:\n".getBytes();
+
+	/**
+	 * Input provided when hashing a transaction
+	 */
+	private static class HashedInput {
+		final byte[] prevout;
+		final byte[] amount;
+		final byte[] script;
+		final byte[] sequence;
+
+		HashedInput(byte[] prevout, byte[] amount, byte[] script, byte[] sequence) {
+			this.prevout = prevout;
+			this.amount = amount;
+			this.script = script;
+			this.sequence = sequence;
+		}
+	}
+
+	private final TransactionStreamParser trustedInputParser;
+	private final byte[] trustedInputKey;
+	private long trustedInputIndex;
+	private int trustedInputCounter;
+
+	private boolean segwit;
+	private boolean fullPass;
+	private final ByteArrayOutputStream pass;
+	private boolean passPending;
+	private byte[] passVersion;
+	private Vector<HashedInput> passInputs;
+	private byte[] hashPrevouts;
+	private byte[] hashSequence;
+	private final ByteArrayOutputStream outputs;
+	private boolean outputsComplete;
+	private byte[] hashOutputs;
+
+	VirtualBtcApplication(SoftwareKeyStore keyStore) throws LedgerException {
+		super(keyStore);
+		trustedInputParser = new TransactionStreamParser();
+		trustedInputKey = Secp256k1.hmac(keyStore.getMaster().getChainCode(), TRUSTED_INPUT_KEY_LABEL);
+		pass = new ByteArrayOutputStream();
+		outputs = new ByteArrayOutputStream();
+	}
+
+	@Override
+	String getName() {
+		return NAME;
+	}
+
+	@Override
+	String getVersion() {
+		return VERSION;
+	}
+
+	@Override
+	void reset() {
+		super.reset();
+		pass.reset();
+		passPending = false;
+		passInputs = null;
+		hashPrevouts = null;
+		hashSequence = null;
+		outputs.reset();
+		outputsComplete = false;
+		hashOutputs = null;
+	}
+
+	@Override
+	byte[] process(int ins, int p1, int p2, byte[] data) throws LedgerException {
+		switch(ins) {
+			case INS_GET_WALLET_PUBLIC_KEY:
+				return getWalletPublicKey(p1, p2, data);
+			case INS_GET_TRUSTED_INPUT:
+				return getTrustedInput(p1, data);
+			case INS_HASH_INPUT_START:
+				return hashInputStart(p1, p2, data);
+			case INS_HASH_INPUT_FINALIZE_FULL:
+				return hashInputFinalizeFull(p1, data);
+			case INS_HASH_SIGN:
+				return hashSign(data);
+			case INS_SIGN_MESSAGE:
+				return signMessage(p1, p2, data);
+		}
+		return status(SW.SW_INS_NOT_SUPPORTED);
+	}
+
+	private byte[] getWalletPublicKey(int p1, int p2, byte[] data) throws LedgerException {
+		if (p1 > 1) {
+			return status(SW.SW_INCORRECT_P1_P2);
+		}
+		SoftwareKeyStore.DerivedKey key = keyStore.derive(data, 0);
+		byte[] keyHash = AddressEncoder.hash160(Secp256k1.compress(key.getPublicKey()));
+		String address;
+		switch(p2) {
+			case P2_LEGACY_ADDRESS:
+				address = AddressEncoder.base58Check(VERSION_P2PKH, keyHash);
+				break;
+			case P2_SEGWIT: {
+				byte[] redeemScript = new byte[2 + keyHash.length];
+				redeemScript[1] = (byte)keyHash.length;
+				System.arraycopy(keyHash, 0, redeemScript, 2, keyHash.length);
+				address = AddressEncoder.base58Check(VERSION_P2SH, AddressEncoder.hash160(redeemScript));
+				break;
+			}
+			case P2_SEGWIT_NATIVE:
+				address = AddressEncoder.bech32Segwit(BECH32_HRP, keyHash);
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeWalletAddress(out, key, address, true);
+		return success(out);
+	}
+
+	private byte[] getTrustedInput(int p1, byte[] data) throws LedgerException {
+		boolean complete;
+		switch(p1) {
+			case P1_FIRST_BLOCK:
+				trustedInputIndex = SerializeHelper.readUint32BE(data, 0) & 0xffffffffL;
+				trustedInputParser.start(trustedInputIndex);
+				complete = trustedInputParser.push(data, 4, data.length - 4);
+				break;
+			case P1_NEXT_BLOCK:
+				if (!trustedInputParser.isStarted()) {
+					return status(SW.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+				}
+				complete = trustedInputParser.push(data, 0, data.length);
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		if (!complete) {
+			return status(SW.SW_OK);
+		}
+		byte[] amount = trustedInputParser.getAmount();
+		if (amount == null) {
+			return status(SW.SW_INVALID_DATA);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(TRUSTED_INPUT_SIZE + 2);
+		out.write(TRUSTED_INPUT_MAGIC);
+		out.write(0x00);
+		SerializeHelper.writeUint16BE(out, trustedInputCounter++);
+		SerializeHelper.writeBuffer(out, trustedInputParser.getHash());
+		SerializeHelper.writeUint32LE(out, trustedInputIndex);
+		SerializeHelper.writeBuffer(out, amount);
+		out.write(Secp256k1.hmac(trustedInputKey, out.toByteArray()), 0, TRUSTED_INPUT_MAC_SIZE);
+		return success(out);
+	}
+
+	private byte[] hashInputStart(int p1, int p2, byte[] data) throws LedgerException {
+		switch(p1) {
+			case P1_FIRST_BLOCK:
+				switch(p2) {
+					case P2_NEW_TX:
+					case P2_NEW_TX_SEGWIT:
+						reset();
+						segwit = (p2 == P2_NEW_TX_SEGWIT);
+						fullPass = true;
+						break;
+					case P2_CONTINUE_TX_SEGWIT:
+						segwit = true;
+						fullPass = true;
+						break;
+					case P2_CONTINUE_TX:
+						fullPass = !segwit;
+						break;
+					default:
+						return status(SW.SW_INCORRECT_P1_P2);
+				}
+				pass.reset();
+				passPending = true;
+				break;
+			case P1_NEXT_BLOCK:
+				if (!passPending) {
+					return status(SW.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+				}
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		SerializeHelper.writeBuffer(pass, data);
+		return status(SW.SW_OK);
+	}
+
+	/**
+	 * Parse the buffered HASH_INPUT_START sequence, committing to all prevouts and sequences for a segwit transaction
+	 */
+	private void completePass() throws LedgerException {
+		if (!passPending) {
+			return;
+		}
+		passPending = false;
+		ByteArrayInputStream in = new ByteArrayInputStream(pass.toByteArray());
+		passVersion = read(in, 4);
+		long count = VarintUtils.read(in);
+		passInputs = new Vector<HashedInput>();
+		for (long i=0; i<count; i++) {
+			byte[] prevout;
+			byte[] amount;
+			int tag = in.read();
+			switch(tag) {
+				case TAG_INPUT_TRUSTED: {
+					byte[] trustedInput = read(in, in.read());
+					checkTrustedInput(trustedInput);
+					prevout = Arrays.copyOfRange(trustedInput, 4, 4 + PREVOUT_SIZE);
+					amount = Arrays.copyOfRange(trustedInput, 4 + PREVOUT_SIZE, 4 + PREVOUT_SIZE + AMOUNT_SIZE);
+					break;
+				}
+				case TAG_INPUT_WITNESS:
+					if (!segwit) {
+						throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Untrusted input");
+					}
+					prevout = read(in, PREVOUT_SIZE);
+					amount = read(in, AMOUNT_SIZE);
+					break;
+				default:
+					throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Unsupported input tag");
+			}
+			byte[] script = read(in, (int)VarintUtils.read(in));
+			passInputs.add(new HashedInput(prevout, amount, script, read(in, 4)));
+		}
+		if (in.available() != 0) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Trailing input data");
+		}
+		if (segwit && fullPass) {
+			ByteArrayOutputStream prevouts = new ByteArrayOutputStream();
+			ByteArrayOutputStream sequences = new ByteArrayOutputStream();
+			for (HashedInput input : passInputs) {
+				SerializeHelper.writeBuffer(prevouts, input.prevout);
+				SerializeHelper.writeBuffer(sequences, input.sequence);
+			}
+			hashPrevouts = AddressEncoder.sha256(AddressEncoder.sha256(prevouts.toByteArray()));
+			hashSequence = AddressEncoder.sha256(AddressEncoder.sha256(sequences.toByteArray()));
+		}
+	}
+
+	private void checkTrustedInput(byte[] trustedInput) throws LedgerException {
+		if ((trustedInput.length != TRUSTED_INPUT_SIZE) || (trustedInput[0] != TRUSTED_INPUT_MAGIC)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid trusted input");
+		}
+		byte[] mac = Secp256k1.hmac(trustedInputKey, Arrays.copyOfRange(trustedInput, 0, TRUSTED_INPUT_MAC_OFFSET));
+		for (int i=0; i<TRUSTED_INPUT_MAC_SIZE; i++) {
+			if (mac[i] != trustedInput[TRUSTED_INPUT_MAC_OFFSET + i]) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid trusted input");
+			}
+		}
+	}
+
+	private byte[] hashInputFinalizeFull(int p1, byte[] data) throws LedgerException {
+		completePass();
+		switch(p1) {
+			case P1_CHANGE_OUTPUT:
+				keyStore.derive(data, 0);
+				return status(SW.SW_OK);
+			case P1_MORE_OUTPUT:
+			case P1_LAST_OUTPUT:
+				if (outputsComplete) {
+					outputs.reset();
+					outputsComplete = false;
+				}
+				SerializeHelper.writeBuffer(outputs, data);
+				if (p1 == P1_MORE_OUTPUT) {
+					return status(SW.SW_OK);
+				}
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		outputsComplete = true;
+		byte[] serializedOutputs = outputs.toByteArray();
+		ByteArrayInputStream in = new ByteArrayInputStream(serializedOutputs);
+		VarintUtils.read(in);
+		int countSize = serializedOutputs.length - in.available();
+		byte[] hash = AddressEncoder.sha256(Arrays.copyOfRange(serializedOutputs, countSize, serializedOutputs.length));
+		hashOutputs = AddressEncoder.sha256(hash);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(2 + 2);
+		out.write(0x00);
+		out.write(0x00);
+		return success(out);
+	}
+
+	private byte[] hashSign(byte[] data) throws LedgerException {
+		completePass();
+		if ((passInputs == null) || !outputsComplete) {
+			return status(SW.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+		}
+		SoftwareKeyStore.DerivedKey key = keyStore.derive(data, 0);
+		int offset = SoftwareKeyStore.getPathSize(data, 0);
+		offset += 1 + (data[offset] & 0xff);
+		byte[] lockTime = Arrays.copyOfRange(data, offset, offset + 4);
+		int sigHashType = (data[offset + 4] & 0xff);
+		ByteArrayOutputStream preimage = new ByteArrayOutputStream();
+		SerializeHelper.writeBuffer(preimage, passVersion);
+		if (segwit) {
+			if (fullPass || (passInputs.size() != 1) || (hashPrevouts == null)) {
+				return status(SW.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+			}
+			HashedInput input = passInputs.get(0);
+			SerializeHelper.writeBuffer(preimage, hashPrevouts);
+			SerializeHelper.writeBuffer(preimage, hashSequence);
+			SerializeHelper.writeBuffer(preimage, input.prevout);
+			VarintUtils.write(preimage, input.script.length);
+			SerializeHelper.writeBuffer(preimage, input.script);
+			SerializeHelper.writeBuffer(preimage, input.amount);
+			SerializeHelper.writeBuffer(preimage, input.sequence);
+			SerializeHelper.writeBuffer(preimage, hashOutputs);
+		}
+		else {
+			VarintUtils.write(preimage, passInputs.size());
+			for (HashedInput input : passInputs) {
+				SerializeHelper.writeBuffer(preimage, input.prevout);
+				VarintUtils.write(preimage, input.script.length);
+				SerializeHelper.writeBuffer(preimage, input.script);
+				SerializeHelper.writeBuffer(preimage, input.sequence);
+			}
+			SerializeHelper.writeBuffer(preimage, outputs.toByteArray());
+		}
+		SerializeHelper.writeBuffer(preimage, lockTime);
+		SerializeHelper.writeUint32LE(preimage, sigHashType);
+		byte[] hash = AddressEncoder.sha256(AddressEncoder.sha256(preimage.toByteArray()));
+		Secp256k1.Signature signature = Secp256k1.sign(key.getPrivateKey(), hash);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SerializeHelper.writeBuffer(out, signature.toDER(0x30 | (signature.getRecoveryId() & 1)));
+		out.write(sigHashType);
+		return success(out);
+	}
+
+	private byte[] signMessage(int p1, int p2, byte[] data) throws LedgerException {
+		switch(p1) {
+			case P1_SIGN_MESSAGE_PREPARE:
+				if (p2 == P2_SIGN_MESSAGE_PREPARE_FIRST) {
+					int offset = SoftwareKeyStore.getPathSize(data, 0);
+					payloadKey = keyStore.derive(data, 0);
+					payloadLength = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+					payload.reset();
+					continuePayload(data, offset + 2);
+				}
+				else
+				if (p2 == P2_SIGN_MESSAGE_PREPARE_NEXT) {
+					continuePayload(data, 0);
+				}
+				else {
+					return status(SW.SW_INCORRECT_P1_P2);
+				}
+				return status(SW.SW_OK);
+			case P1_SIGN_MESSAGE_SIGN:
+				if (!isPayloadComplete()) {
+					return status(SW.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+				}
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		SerializeHelper.writeBuffer(message, MESSAGE_PREFIX);
+		VarintUtils.write(message, payloadLength);
+		SerializeHelper.writeBuffer(message, payload.toByteArray());
+		byte[] hash = AddressEncoder.sha256(AddressEncoder.sha256(message.toByteArray()));
+		Secp256k1.Signature signature = Secp256k1.sign(payloadKey.getPrivateKey(), hash);
+		super.reset();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SerializeHelper.writeBuffer(out, signature.toDER(0x30 | (signature.getRecoveryId() & 1)));
+		return success(out);
+	}
+
+	private static byte[] read(ByteArrayInputStream in, int length) throws LedgerException {
+		if (length < 0) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Truncated data");
+		}
+		byte[] result = new byte[length];
+		if ((length != 0) && (in.read(result, 0, length) != length)) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Truncated data");
+		}
+		return result;
+	}
+
+}
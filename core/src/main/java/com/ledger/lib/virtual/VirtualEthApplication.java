@@ -0,0 +1,220 @@
+package com.ledger.lib.virtual;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.SW;
+import com.ledger.lib.utils.SerializeHelper;
+
+/**
+ * Virtual ETH application
+ *
+ * Transactions are received until the announced RLP length is reached, then hashed with Keccak-256 and signed. The recovery
+ * identifier follows EIP 155 when a chain ID is part of the transaction
+ */
+class VirtualEthApplication extends VirtualApplication {
+
+	static final String NAME = "Ethereum";
+	private static final String VERSION = "1.2.4";
+	private static final byte[] VERSION_BYTES = new byte[] { 1, 2, 4 };
+
+	private static final int INS_GET_PUBLIC_ADDRESS = 0x02;
+	private static final int INS_SIGN_TRANSACTION = 0x04;
+	private static final int INS_GET_APPLICATION_CONFIGURATION = 0x06;
+	private static final int INS_SIGN_PERSONAL_MESSAGE = 0x08;
+	private static final int INS_PROVIDE_ERC20_TOKEN_INFORMATION = 0x0A;
+
+	private static final int P1_FIRST_BLOCK = 0x00;
+	private static final int P1_NEXT_BLOCK = 0x80;
+
+	private static final int FLAG_DATA_ALLOWED = 0x01;
+
+	private static final int CHAIN_ID_INDEX = 6;
+
+	private static final byte[] MESSAGE_PREFIX = "\u0019Ethereum Signed Message:\n".getBytes();
+
+	VirtualEthApplication(SoftwareKeyStore keyStore) {
+		super(keyStore);
+	}
+
+	@Override
+	String getName() {
+		return NAME;
+	}
+
+	@Override
+	String getVersion() {
+		return VERSION;
+	}
+
+	@Override
+	byte[] process(int ins, int p1, int p2, byte[] data) throws LedgerException {
+		switch(ins) {
+			case INS_GET_PUBLIC_ADDRESS:
+				return getPublicAddress(p1, p2, data);
+			case INS_SIGN_TRANSACTION:
+				return signTransaction(p1, data);
+			case INS_GET_APPLICATION_CONFIGURATION: {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(4 + 2);
+				out.write(FLAG_DATA_ALLOWED);
+				SerializeHelper.writeBuffer(out, VERSION_BYTES);
+				return success(out);
+			}
+			case INS_SIGN_PERSONAL_MESSAGE:
+				return signPersonalMessage(p1, data);
+			case INS_PROVIDE_ERC20_TOKEN_INFORMATION:
+				return status(SW.SW_OK);
+		}
+		return status(SW.SW_INS_NOT_SUPPORTED);
+	}
+
+	private byte[] getPublicAddress(int p1, int p2, byte[] data) throws LedgerException {
+		if ((p1 > 1) || (p2 > 1)) {
+			return status(SW.SW_INCORRECT_P1_P2);
+		}
+		SoftwareKeyStore.DerivedKey key = keyStore.derive(data, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeWalletAddress(out, key, AddressEncoder.ethereum(key.getPublicKey()), (p2 != 0));
+		return success(out);
+	}
+
+	private byte[] signTransaction(int p1, byte[] data) throws LedgerException {
+		switch(p1) {
+			case P1_FIRST_BLOCK:
+				startPayload(data, false);
+				break;
+			case P1_NEXT_BLOCK:
+				continuePayload(data, 0);
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		byte[] transaction = payload.toByteArray();
+		if (payloadLength < 0) {
+			payloadLength = getTransactionLength(transaction);
+		}
+		if ((payloadLength < 0) || (transaction.length < payloadLength)) {
+			return status(SW.SW_OK);
+		}
+		if (transaction.length > payloadLength) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Trailing transaction data");
+		}
+		Secp256k1.Signature signature = Secp256k1.sign(payloadKey.getPrivateKey(), Keccak256.digest(transaction));
+		int v = signature.getRecoveryId();
+		if ((transaction[0] & 0xff) >= 0xc0) {
+			BigInteger chainId = getChainId(transaction);
+			if (chainId.signum() > 0) {
+				v = chainId.shiftLeft(1).add(BigInteger.valueOf(35 + v)).intValue();
+			}
+			else {
+				v += 27;
+			}
+		}
+		reset();
+		return signatureResponse(v, signature);
+	}
+
+	private byte[] signPersonalMessage(int p1, byte[] data) throws LedgerException {
+		switch(p1) {
+			case P1_FIRST_BLOCK:
+				startPayload(data, true);
+				break;
+			case P1_NEXT_BLOCK:
+				continuePayload(data, 0);
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		if (!isPayloadComplete()) {
+			return status(SW.SW_OK);
+		}
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		SerializeHelper.writeBuffer(message, MESSAGE_PREFIX);
+		SerializeHelper.writeBuffer(message, SerializeHelper.stringToByteArray(String.valueOf(payloadLength)));
+		SerializeHelper.writeBuffer(message, payload.toByteArray());
+		Secp256k1.Signature signature = Secp256k1.sign(payloadKey.getPrivateKey(), Keccak256.digest(message.toByteArray()));
+		reset();
+		return signatureResponse(27 + signature.getRecoveryId(), signature);
+	}
+
+	private static byte[] signatureResponse(int v, Secp256k1.Signature signature) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1 + 32 + 32 + 2);
+		out.write(v);
+		SerializeHelper.writeBuffer(out, signature.getR());
+		SerializeHelper.writeBuffer(out, signature.getS());
+		return success(out);
+	}
+
+	/**
+	 * Return the total length of a transaction from its RLP list header, skipping the EIP 2718 type if present
+	 * @return length, or -1 if the header has not been fully received
+	 */
+	private static long getTransactionLength(byte[] transaction) throws LedgerException {
+		int offset = 0;
+		if ((transaction.length != 0) && ((transaction[0] & 0xff) < 0xc0)) {
+			if ((transaction[0] & 0xff) > 0x7f) {
+				throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid transaction");
+			}
+			offset++;
+		}
+		if (transaction.length <= offset) {
+			return -1;
+		}
+		int header = (transaction[offset] & 0xff);
+		if (header < 0xc0) {
+			throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid transaction");
+		}
+		if (header <= 0xf7) {
+			return offset + 1 + (header - 0xc0);
+		}
+		int lengthSize = header - 0xf7;
+		if (transaction.length < offset + 1 + lengthSize) {
+			return -1;
+		}
+		long length = 0;
+		for (int i=0; i<lengthSize; i++) {
+			length = (length << 8) | (transaction[offset + 1 + i] & 0xff);
+		}
+		return offset + 1 + lengthSize + length;
+	}
+
+	/**
+	 * Return the chain ID of a legacy transaction, stored as its seventh item
+	 * @return chain ID, or zero if not present
+	 */
+	private static BigInteger getChainId(byte[] transaction) {
+		int header = (transaction[0] & 0xff);
+		int offset = (header <= 0xf7 ? 1 : 1 + header - 0xf7);
+		for (int item=0; offset<transaction.length; item++) {
+			int prefix = (transaction[offset] & 0xff);
+			int dataOffset;
+			int dataLength;
+			if (prefix < 0x80) {
+				dataOffset = offset;
+				dataLength = 1;
+			}
+			else
+			if ((prefix <= 0xb7) || ((prefix >= 0xc0) && (prefix <= 0xf7))) {
+				dataOffset = offset + 1;
+				dataLength = prefix - (prefix < 0xc0 ? 0x80 : 0xc0);
+			}
+			else {
+				int lengthSize = prefix - (prefix < 0xc0 ? 0xb7 : 0xf7);
+				dataLength = 0;
+				for (int i=0; i<lengthSize; i++) {
+					dataLength = (dataLength << 8) | (transaction[offset + 1 + i] & 0xff);
+				}
+				dataOffset = offset + 1 + lengthSize;
+			}
+			if (item == CHAIN_ID_INDEX) {
+				byte[] chainId = new byte[dataLength];
+				System.arraycopy(transaction, dataOffset, chainId, 0, dataLength);
+				return new BigInteger(1, chainId);
+			}
+			offset = dataOffset + dataLength;
+		}
+		return BigInteger.ZERO;
+	}
+
+}
@@ -0,0 +1,327 @@
+package com.ledger.lib.virtual;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ledger.lib.utils.Log;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.transport.Deadline;
+import com.ledger.lib.transport.ExchangeBuffers;
+import com.ledger.lib.transport.ExchangeListener;
+import com.ledger.lib.transport.ExchangeMetrics;
+import com.ledger.lib.transport.ExtendedLedgerDevice;
+import com.ledger.lib.utils.Dump;
+import com.ledger.lib.utils.SW;
+import com.ledger.lib.utils.SerializeHelper;
+
+/**
+ * \brief Deterministic in-process device answering the dashboard, BTC, ETH and TRX application commands with software keys
+ *
+ * Keys are derived from the provided seed, and signatures use deterministic nonces, so that a given sequence of commands always
+ * produces the same responses. Each response is returned once the delay given by the latency model has elapsed since the command was
+ * received, the time spent processing the command being included in this delay
+ *
+ * The device starts on the dashboard. Applications are started with the dashboard RUN_APP command (or startApplication) and exited
+ * with the common EXIT command. The number of exchanged commands is counted to measure the APDU cost of the library calls
+ *
+ * This device is meant for tests and benchmarks, its keys shall never be used to protect real funds
+ */
+public class VirtualLedgerDevice implements ExtendedLedgerDevice {
+
+	/** Name of the BTC application */
+	public static final String APPLICATION_BTC = VirtualBtcApplication.NAME;
+	/** Name of the ETH application */
+	public static final String APPLICATION_ETH = VirtualEthApplication.NAME;
+	/** Name of the TRX application */
+	public static final String APPLICATION_TRX = VirtualTrxApplication.NAME;
+
+	private static final int CLA_BOLOS = 0xE0;
+	private static final int INS_GET_VERSION = 0x01;
+	private static final int INS_RUN_APP = 0xD8;
+
+	private static final int CLA_COMMON_SDK = 0xB0;
+	private static final int INS_GET_APP_NAME_AND_VERSION = 0x01;
+	private static final int INS_GET_WALLET_ID_NATIVE = 0x02;
+	private static final int INS_GET_WALLET_ID = 0x04;
+	private static final int INS_EXIT = 0xA7;
+
+	private static final int SW_WRONG_LENGTH = 0x6700;
+	private static final int SW_APP_NOT_FOUND = 0x6807;
+
+	private static final int APP_DETAILS_FORMAT_VERSION = 1;
+	private static final int NATIVE_WALLET_ID_FORMAT = 1;
+	private static final int OS_FLAGS = 0x84; // Onboarded, PIN validated
+	private static final long TARGET_ID = 0x31100004L;
+	private static final String OS_NAME = "BOLOS";
+	private static final String OS_VERSION = "1.6.0";
+	private static final String MCU_VERSION = "1.11";
+
+	private static final int HEADER_SIZE = 5;
+	private static final String LOG_STRING = "VirtualLedgerDevice";
+
+	private final HashMap<String, VirtualApplication> applications;
+	private final byte[] walletId;
+	private final LatencyModel latencyModel;
+	private VirtualApplication currentApplication;
+	private long exchangeCount;
+	private final ExchangeMetrics metrics;
+	private volatile ExchangeListener exchangeListener;
+	private boolean opened;
+	private boolean debug;
+
+	/** Class constructor
+	 * @param seed seed used to derive all keys (16 to 64 bytes)
+	 * @param latencyModel model of the time taken by the device to answer each command
+	 */
+	public VirtualLedgerDevice(byte[] seed, LatencyModel latencyModel) throws LedgerException {
+		SoftwareKeyStore keyStore = new SoftwareKeyStore(seed);
+		this.latencyModel = latencyModel;
+		metrics = new ExchangeMetrics(LOG_STRING);
+		applications = new HashMap<String, VirtualApplication>();
+		addApplication(new VirtualBtcApplication(keyStore));
+		addApplication(new VirtualEthApplication(keyStore));
+		addApplication(new VirtualTrxApplication(keyStore));
+		walletId = AddressEncoder.sha256(Secp256k1.compress(keyStore.getMaster().getPublicKey()));
+	}
+
+	/** Class constructor answering immediately
+	 * @param seed seed used to derive all keys (16 to 64 bytes)
+	 */
+	public VirtualLedgerDevice(byte[] seed) throws LedgerException {
+		this(seed, LatencyModel.NONE);
+	}
+
+	private void addApplication(VirtualApplication application) {
+		applications.put(application.getName(), application);
+	}
+
+	/**
+	 * Start an application without going through the dashboard, or go back to the dashboard
+	 * @param name name of the application to start, or null to go back to the dashboard
+	 * @return true if the application was found and started
+	 */
+	public synchronized boolean startApplication(String name) {
+		if (name == null) {
+			currentApplication = null;
+			return true;
+		}
+		VirtualApplication application = applications.get(name);
+		if (application == null) {
+			return false;
+		}
+		application.reset();
+		currentApplication = application;
+		return true;
+	}
+
+	/**
+	 * Return the name of the running application
+	 * @return application name, or null if the dashboard is running
+	 */
+	public synchronized String getCurrentApplication() {
+		return (currentApplication != null ? currentApplication.getName() : null);
+	}
+
+	/**
+	 * Return the number of commands exchanged since the device was created or since the last reset
+	 * @return number of commands
+	 */
+	public synchronized long getExchangeCount() {
+		return exchangeCount;
+	}
+
+	/**
+	 * Reset the number of exchanged commands
+	 */
+	public synchronized void resetExchangeCount() {
+		exchangeCount = 0;
+	}
+
+	@Override
+	public void open() throws LedgerException {
+		opened = true;
+	}
+
+	@Override
+	public byte[] exchange(byte[] apdu) throws LedgerException {
+		return exchange(apdu, null);
+	}
+
+	/**
+	 * Exchange an APDU. The command is processed even if the deadline expires while waiting for the simulated latency
+	 * @param apdu APDU to send to the device
+	 * @param deadline deadline of the exchange, or null to wait without time limit
+	 * @return response to the APDU including the Status Word
+	 */
+	@Override
+	public synchronized byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+		metrics.start(apdu);
+		metrics.sent();
+		try {
+			if (!opened) {
+				throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened");
+			}
+			if (deadline != null) {
+				deadline.check();
+			}
+		}
+		catch(LedgerException e) {
+			metrics.fail();
+			notifyExchange();
+			throw e;
+		}
+		long start = System.nanoTime();
+		if (debug) {
+			Log.d(LOG_STRING, "=> " + Dump.dump(apdu));
+		}
+		byte[] response = process(apdu);
+		exchangeCount++;
+		long latency = latencyModel.getLatencyNanos(
+			(apdu.length > 0 ? apdu[0] & 0xff : 0),
+			(apdu.length > 1 ? apdu[1] & 0xff : 0),
+			(apdu.length > 2 ? apdu[2] & 0xff : 0),
+			(apdu.length > 3 ? apdu[3] & 0xff : 0),
+			apdu.length, response.length);
+		if (latency > 0) {
+			long end = start + latency;
+			if (deadline != null) {
+				try {
+					deadline.parkUntil(end);
+				}
+				catch(LedgerException e) {
+					metrics.fail();
+					notifyExchange();
+					throw e;
+				}
+			}
+			else {
+				long remaining;
+				while ((remaining = end - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(remaining);
+				}
+			}
+		}
+		if (debug) {
+			Log.d(LOG_STRING, "<= " + Dump.dump(response));
+		}
+		metrics.complete(response);
+		notifyExchange();
+		return response;
+	}
+
+	@Override
+	public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+		return ExchangeBuffers.exchangeInto(this, command, response);
+	}
+
+	private void notifyExchange() {
+		ExchangeListener listener = exchangeListener;
+		if (listener != null) {
+			listener.onExchange(metrics);
+		}
+	}
+
+	private byte[] process(byte[] apdu) {
+		if ((apdu.length < HEADER_SIZE) || (apdu.length != HEADER_SIZE + (apdu[4] & 0xff))) {
+			return VirtualApplication.status(SW_WRONG_LENGTH);
+		}
+		int cla = (apdu[0] & 0xff);
+		int ins = (apdu[1] & 0xff);
+		int p1 = (apdu[2] & 0xff);
+		int p2 = (apdu[3] & 0xff);
+		byte[] data = Arrays.copyOfRange(apdu, HEADER_SIZE, apdu.length);
+		try {
+			if (cla == CLA_COMMON_SDK) {
+				return processCommon(ins);
+			}
+			if (cla != CLA_BOLOS) {
+				return VirtualApplication.status(SW.SW_CLA_NOT_SUPPORTED);
+			}
+			if (currentApplication == null) {
+				return processDashboard(ins, data);
+			}
+			return currentApplication.process(ins, p1, p2, data);
+		}
+		catch(LedgerException e) {
+			return VirtualApplication.status(SW.SW_INVALID_DATA);
+		}
+		catch(IndexOutOfBoundsException e) {
+			return VirtualApplication.status(SW.SW_INVALID_DATA);
+		}
+	}
+
+	private byte[] processCommon(int ins) throws LedgerException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		switch(ins) {
+			case INS_GET_APP_NAME_AND_VERSION: {
+				byte[] name = SerializeHelper.stringToByteArray(currentApplication != null ? currentApplication.getName() : OS_NAME);
+				byte[] version = SerializeHelper.stringToByteArray(currentApplication != null ? currentApplication.getVersion() : OS_VERSION);
+				out.write(APP_DETAILS_FORMAT_VERSION);
+				out.write(name.length);
+				SerializeHelper.writeBuffer(out, name);
+				out.write(version.length);
+				SerializeHelper.writeBuffer(out, version);
+				out.write(1);
+				out.write(0);
+				return VirtualApplication.success(out);
+			}
+			case INS_GET_WALLET_ID_NATIVE:
+				out.write(NATIVE_WALLET_ID_FORMAT);
+				out.write(walletId.length);
+				SerializeHelper.writeBuffer(out, walletId);
+				return VirtualApplication.success(out);
+			case INS_GET_WALLET_ID:
+				SerializeHelper.writeBuffer(out, walletId);
+				return VirtualApplication.success(out);
+			case INS_EXIT:
+				currentApplication = null;
+				return VirtualApplication.status(SW.SW_OK);
+		}
+		return VirtualApplication.status(SW.SW_INS_NOT_SUPPORTED);
+	}
+
+	private byte[] processDashboard(int ins, byte[] data) {
+		switch(ins) {
+			case INS_GET_VERSION: {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] version = SerializeHelper.stringToByteArray(OS_VERSION);
+				byte[] mcuVersion = SerializeHelper.stringToByteArray(MCU_VERSION);
+				SerializeHelper.writeUint32BE(out, TARGET_ID);
+				out.write(version.length);
+				SerializeHelper.writeBuffer(out, version);
+				out.write(4);
+				SerializeHelper.writeUint32LE(out, OS_FLAGS);
+				out.write(mcuVersion.length);
+				SerializeHelper.writeBuffer(out, mcuVersion);
+				return VirtualApplication.success(out);
+			}
+			case INS_RUN_APP:
+				return VirtualApplication.status(startApplication(SerializeHelper.readString(data, 0, data.length)) ? SW.SW_OK : SW_APP_NOT_FOUND);
+		}
+		return VirtualApplication.status(SW.SW_INS_NOT_SUPPORTED);
+	}
+
+	@Override
+	public void close() throws LedgerException {
+		opened = false;
+	}
+
+	@Override
+	public void setDebug(boolean debugFlag) {
+		this.debug = debugFlag;
+	}
+
+	@Override
+	public void setExchangeListener(ExchangeListener listener) {
+		this.exchangeListener = listener;
+	}
+
+	@Override
+	public boolean isOpened() {
+		return opened;
+	}
+}
@@ -0,0 +1,144 @@
+package com.ledger.lib.virtual;
+
+import java.io.ByteArrayOutputStream;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.SW;
+import com.ledger.lib.utils.SerializeHelper;
+
+/**
+ * Virtual TRX application
+ *
+ * Transactions are signed over their SHA-256 hash once the last block or the last provisioning data is received. Provisioning
+ * data (TRC 10 tokens, exchanges) is accepted without being checked
+ */
+class VirtualTrxApplication extends VirtualApplication {
+
+	static final String NAME = "Tron";
+	private static final String VERSION = "0.1.5";
+	private static final byte[] VERSION_BYTES = new byte[] { 0, 1, 5 };
+
+	private static final int INS_GET_PUBLIC_ADDRESS = 0x02;
+	private static final int INS_SIGN_TRANSACTION = 0x04;
+	private static final int INS_GET_APPLICATION_CONFIGURATION = 0x06;
+	private static final int INS_SIGN_PERSONAL_MESSAGE = 0x08;
+
+	private static final int P1_SINGLE = 0x10;
+	private static final int P1_FIRST_BLOCK = 0x00;
+	private static final int P1_NEXT_BLOCK = 0x80;
+	private static final int P1_END = 0x90;
+	private static final int P1_SIGNATURE_MARKER = 0xA0;
+	private static final int P1_END_SIGNATURE_MARKER = 0x08;
+	private static final int P1_SIGNATURE_MARKER_MASK = 0xF0;
+
+	private static final int FLAG_DATA_ALLOWED = 0x01;
+	private static final int FLAG_CONTRACT_ALLOWED = 0x02;
+
+	private static final byte[] MESSAGE_PREFIX = "\u0019TRON Signed Message:\n".getBytes();
+
+	VirtualTrxApplication(SoftwareKeyStore keyStore) {
+		super(keyStore);
+	}
+
+	@Override
+	String getName() {
+		return NAME;
+	}
+
+	@Override
+	String getVersion() {
+		return VERSION;
+	}
+
+	@Override
+	byte[] process(int ins, int p1, int p2, byte[] data) throws LedgerException {
+		switch(ins) {
+			case INS_GET_PUBLIC_ADDRESS:
+				return getPublicAddress(p1, p2, data);
+			case INS_SIGN_TRANSACTION:
+				return signTransaction(p1, data);
+			case INS_GET_APPLICATION_CONFIGURATION: {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(4 + 2);
+				out.write(FLAG_DATA_ALLOWED | FLAG_CONTRACT_ALLOWED);
+				SerializeHelper.writeBuffer(out, VERSION_BYTES);
+				return success(out);
+			}
+			case INS_SIGN_PERSONAL_MESSAGE:
+				return signPersonalMessage(p1, data);
+		}
+		return status(SW.SW_INS_NOT_SUPPORTED);
+	}
+
+	private byte[] getPublicAddress(int p1, int p2, byte[] data) throws LedgerException {
+		if ((p1 > 1) || (p2 > 1)) {
+			return status(SW.SW_INCORRECT_P1_P2);
+		}
+		SoftwareKeyStore.DerivedKey key = keyStore.derive(data, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeWalletAddress(out, key, AddressEncoder.tron(key.getPublicKey()), (p2 != 0));
+		return success(out);
+	}
+
+	private byte[] signTransaction(int p1, byte[] data) throws LedgerException {
+		boolean last;
+		switch(p1) {
+			case P1_SINGLE:
+			case P1_FIRST_BLOCK:
+				startPayload(data, false);
+				last = (p1 == P1_SINGLE);
+				break;
+			case P1_NEXT_BLOCK:
+			case P1_END:
+				continuePayload(data, 0);
+				last = (p1 == P1_END);
+				break;
+			default:
+				if ((p1 & P1_SIGNATURE_MARKER_MASK) != P1_SIGNATURE_MARKER) {
+					return status(SW.SW_INCORRECT_P1_P2);
+				}
+				if (payloadKey == null) {
+					return status(SW.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+				}
+				last = ((p1 & P1_END_SIGNATURE_MARKER) != 0);
+				break;
+		}
+		if (!last) {
+			return status(SW.SW_OK);
+		}
+		Secp256k1.Signature signature = Secp256k1.sign(payloadKey.getPrivateKey(), AddressEncoder.sha256(payload.toByteArray()));
+		reset();
+		return signatureResponse(signature.getRecoveryId(), signature);
+	}
+
+	private byte[] signPersonalMessage(int p1, byte[] data) throws LedgerException {
+		switch(p1) {
+			case P1_FIRST_BLOCK:
+				startPayload(data, true);
+				break;
+			case P1_NEXT_BLOCK:
+				continuePayload(data, 0);
+				break;
+			default:
+				return status(SW.SW_INCORRECT_P1_P2);
+		}
+		if (!isPayloadComplete()) {
+			return status(SW.SW_OK);
+		}
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		SerializeHelper.writeBuffer(message, MESSAGE_PREFIX);
+		SerializeHelper.writeBuffer(message, SerializeHelper.stringToByteArray(String.valueOf(payloadLength)));
+		SerializeHelper.writeBuffer(message, payload.toByteArray());
+		Secp256k1.Signature signature = Secp256k1.sign(payloadKey.getPrivateKey(), Keccak256.digest(message.toByteArray()));
+		reset();
+		return signatureResponse(27 + signature.getRecoveryId(), signature);
+	}
+
+	private static byte[] signatureResponse(int v, Secp256k1.Signature signature) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 + 32 + 1 + 2);
+		SerializeHelper.writeBuffer(out, signature.getR());
+		SerializeHelper.writeBuffer(out, signature.getS());
+		out.write(v);
+		return success(out);
+	}
+
+}
@@ -0,0 +1,4 @@
+/**
+ * \brief In-process virtual device answering the BTC, ETH and TRX application commands with software keys
+ */
+package com.ledger.lib.virtual;
@@ -0,0 +1,234 @@
+package com.ledger.lib.pool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.WrongApplicationException;
+import com.ledger.lib.transport.Deadline;
+import com.ledger.lib.transport.DeadlineException;
+import com.ledger.lib.transport.LedgerDevice;
+import com.ledger.lib.transport.LedgerDeviceSession;
+import com.ledger.lib.transport.LedgerDevices;
+import com.ledger.lib.virtual.InstructionLatencyModel;
+import com.ledger.lib.virtual.VirtualLedgerDevice;
+
+/**
+ * Eviction rules of DevicePool : devices are only evicted on communication errors, not on deadline failures nor application
+ * rejections
+ */
+public class DevicePoolTest {
+
+	private static final long TIMEOUT_MS = 5000;
+	private static final byte[] GET_VERSION = { (byte)0xE0, 0x01, 0, 0, 0 };
+	private static final byte[] GET_APP_NAME = { (byte)0xB0, 0x01, 0, 0, 0 };
+	private static final long SLOW_COMMAND_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/**
+	 * Device whose application can be made to reject the wallet ID commands
+	 */
+	private static class RejectingDevice implements LedgerDevice {
+
+		private final LedgerDevice device;
+		private volatile boolean rejecting;
+
+		RejectingDevice(LedgerDevice device) {
+			this.device = device;
+		}
+
+		@Override
+		public void open() throws LedgerException {
+			device.open();
+		}
+
+		@Override
+		public byte[] exchange(byte[] apdu) throws LedgerException {
+			if (rejecting && ((apdu[0] & 0xff) == 0xB0) && ((apdu[1] == 0x02) || (apdu[1] == 0x04))) {
+				return new byte[] { 0x6D, 0x00 };
+			}
+			return device.exchange(apdu);
+		}
+
+		@Override
+		public void close() throws LedgerException {
+			device.close();
+		}
+
+		@Override
+		public void setDebug(boolean debugFlag) {
+		}
+
+		@Override
+		public boolean isOpened() {
+			return device.isOpened();
+		}
+
+	}
+
+	private VirtualLedgerDevice device;
+	private DevicePool pool;
+	private byte[] walletId;
+
+	@Before
+	public void setUp() throws LedgerException {
+		InstructionLatencyModel latencyModel = new InstructionLatencyModel(0, 0).setLatency(0xE0, 0x01, SLOW_COMMAND_NANOS);
+		device = new VirtualLedgerDevice(new byte[32], latencyModel);
+		pool = new DevicePool();
+	}
+
+	private static LedgerDeviceSession.Operation<byte[]> exchange(final byte[] apdu) {
+		return new LedgerDeviceSession.Operation<byte[]>() {
+			@Override
+			public byte[] run(LedgerDevice device) throws LedgerException {
+				return device.exchange(apdu);
+			}
+		};
+	}
+
+	private static LedgerDeviceSession.Operation<byte[]> failWith(final LedgerException exception) {
+		return new LedgerDeviceSession.Operation<byte[]>() {
+			@Override
+			public byte[] run(LedgerDevice device) throws LedgerException {
+				throw exception;
+			}
+		};
+	}
+
+	/**
+	 * Check that the device is still pooled by running another operation on it
+	 */
+	private void assertKept() throws LedgerException {
+		assertEquals(1, pool.getDeviceCount());
+		byte[] response = pool.submit(walletId, exchange(GET_APP_NAME)).await(TIMEOUT_MS);
+		assertEquals(0x90, response[response.length - 2] & 0xff);
+		assertEquals(1, pool.getDeviceCount());
+		assertTrue(device.isOpened());
+	}
+
+	@Test
+	public void deadlineTimeoutKeepsDevice() throws LedgerException {
+		walletId = pool.addDevice(device);
+		try {
+			pool.submit(walletId, new LedgerDeviceSession.Operation<byte[]>() {
+				@Override
+				public byte[] run(LedgerDevice device) throws LedgerException {
+					return LedgerDevices.exchange(device, GET_VERSION, Deadline.after(50));
+				}
+			}).await(TIMEOUT_MS);
+			fail("Slow command not interrupted");
+		}
+		catch(DeadlineException e) {
+		}
+		assertKept();
+	}
+
+	@Test
+	public void boundDeadlineTimeoutKeepsDevice() throws LedgerException {
+		walletId = pool.addDevice(device);
+		try {
+			pool.submit(walletId, new LedgerDeviceSession.Operation<byte[]>() {
+				@Override
+				public byte[] run(LedgerDevice device) throws LedgerException {
+					return Deadline.after(50).bind(device).exchange(GET_VERSION);
+				}
+			}).await(TIMEOUT_MS);
+			fail("Slow command not interrupted");
+		}
+		catch(DeadlineException e) {
+		}
+		assertKept();
+	}
+
+	@Test
+	public void cancellationKeepsDevice() throws Exception {
+		walletId = pool.addDevice(device);
+		final Deadline deadline = Deadline.none();
+		Thread canceller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}
+				catch(InterruptedException e) {
+				}
+				deadline.cancel();
+			}
+		});
+		canceller.start();
+		try {
+			pool.submit(walletId, new LedgerDeviceSession.Operation<byte[]>() {
+				@Override
+				public byte[] run(LedgerDevice device) throws LedgerException {
+					return LedgerDevices.exchange(device, GET_VERSION, deadline);
+				}
+			}).await(TIMEOUT_MS);
+			fail("Slow command not cancelled");
+		}
+		catch(DeadlineException e) {
+		}
+		canceller.join();
+		assertKept();
+	}
+
+	@Test
+	public void applicationErrorKeepsDevice() throws LedgerException {
+		walletId = pool.addDevice(device);
+		try {
+			pool.submit(walletId, failWith(new WrongApplicationException())).await(TIMEOUT_MS);
+			fail("Operation failure not reported");
+		}
+		catch(WrongApplicationException e) {
+		}
+		assertKept();
+	}
+
+	@Test
+	public void communicationErrorEvictsDevice() throws Exception {
+		walletId = pool.addDevice(device);
+		try {
+			pool.submit(walletId, failWith(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Disconnected"))).await(TIMEOUT_MS);
+			fail("Operation failure not reported");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+		}
+		long end = System.currentTimeMillis() + TIMEOUT_MS;
+		while ((pool.getDeviceCount() != 0) && (System.currentTimeMillis() < end)) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getDeviceCount());
+		assertFalse(device.isOpened());
+	}
+
+	@Test
+	public void healthCheckKeepsRejectingApplication() throws LedgerException {
+		RejectingDevice rejectingDevice = new RejectingDevice(device);
+		walletId = pool.addDevice(rejectingDevice);
+		rejectingDevice.rejecting = true;
+		assertEquals(0, pool.checkHealth());
+		assertEquals(1, pool.getDeviceCount());
+		assertEquals(1, pool.getWalletIds().size());
+		assertArrayEquals(walletId, pool.getWalletIds().get(0));
+		assertEquals(1, pool.getDevices(walletId).size());
+		assertKept();
+	}
+
+	@Test
+	public void healthCheckEvictsClosedDevice() throws LedgerException {
+		walletId = pool.addDevice(device);
+		assertEquals(0, pool.checkHealth());
+		device.close();
+		assertEquals(1, pool.checkHealth());
+		assertEquals(0, pool.getDeviceCount());
+		assertEquals(0, pool.getWalletIds().size());
+	}
+
+}
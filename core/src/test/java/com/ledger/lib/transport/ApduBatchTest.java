@@ -0,0 +1,134 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.WrongApplicationException;
+import com.ledger.lib.utils.ApduExchange;
+import com.ledger.lib.utils.SW;
+import com.ledger.lib.virtual.VirtualLedgerDevice;
+
+/**
+ * Batches exchanged with a virtual device, stopping at the first Status Word not accepted
+ */
+public class ApduBatchTest {
+
+	private static final byte[] GET_APP_NAME = { (byte)0xB0, 0x01, 0, 0, 0 };
+	private static final byte[] GET_WALLET_ID = { (byte)0xB0, 0x04, 0, 0, 0 };
+	private static final byte[] UNKNOWN_INS = { (byte)0xE0, (byte)0xFF, 0, 0, 0 };
+
+	private VirtualLedgerDevice device;
+
+	@Before
+	public void setUp() throws LedgerException {
+		device = new VirtualLedgerDevice(new byte[32]);
+		device.open();
+	}
+
+	@Test
+	public void completeBatch() throws LedgerException {
+		List<ApduBatch.Command> commands = new ArrayList<ApduBatch.Command>();
+		commands.add(new ApduBatch.Command(GET_APP_NAME));
+		commands.add(new ApduBatch.Command(GET_WALLET_ID));
+		ApduBatch batch = ApduBatch.exchange(device, commands);
+		assertTrue(batch.isComplete());
+		assertEquals(2, batch.getExecutedCount());
+		assertEquals(-1, batch.getFailedIndex());
+		assertEquals(SW.SW_OK, batch.getFailedSW());
+		ApduExchange.ApduResponse expected = ApduExchange.exchangeApdu(device, GET_WALLET_ID);
+		ApduExchange.ApduResponse last = batch.getLastResponse();
+		assertEquals(SW.SW_OK, last.getSW());
+		assertEquals(expected.getDataLength(), last.getDataLength());
+		batch.checkSW();
+	}
+
+	@Test
+	public void batchStopsAtFirstRejectedCommand() throws LedgerException {
+		List<ApduBatch.Command> commands = new ArrayList<ApduBatch.Command>();
+		commands.add(new ApduBatch.Command(GET_APP_NAME));
+		commands.add(new ApduBatch.Command(UNKNOWN_INS));
+		commands.add(new ApduBatch.Command(GET_WALLET_ID));
+		ApduBatch batch = ApduBatch.exchange(device, commands);
+		assertFalse(batch.isComplete());
+		assertEquals(3, batch.getCount());
+		assertEquals(2, batch.getExecutedCount());
+		assertEquals(1, batch.getFailedIndex());
+		assertEquals(SW.SW_INS_NOT_SUPPORTED, batch.getFailedSW());
+		assertEquals(SW.SW_OK, batch.getSW(0));
+		// The commands following the failed one are not sent
+		assertEquals(2, device.getExchangeCount());
+		try {
+			batch.getSW(2);
+			fail("Status Word of a command not exchanged returned");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+		}
+		try {
+			batch.checkSW();
+			fail("Failed batch accepted");
+		}
+		catch(WrongApplicationException e) {
+		}
+	}
+
+	@Test
+	public void acceptedStatusWordsContinueTheBatch() throws LedgerException {
+		List<ApduBatch.Command> commands = new ArrayList<ApduBatch.Command>();
+		commands.add(new ApduBatch.Command(UNKNOWN_INS, new int[] { SW.SW_OK, SW.SW_INS_NOT_SUPPORTED }));
+		commands.add(new ApduBatch.Command(GET_APP_NAME));
+		ApduBatch batch = ApduBatch.exchange(device, commands);
+		assertTrue(batch.isComplete());
+		assertEquals(SW.SW_INS_NOT_SUPPORTED, batch.getSW(0));
+	}
+
+	@Test
+	public void responseLargerThanItsCommandSizeFails() throws LedgerException {
+		List<ApduBatch.Command> commands = new ArrayList<ApduBatch.Command>();
+		commands.add(new ApduBatch.Command(GET_WALLET_ID, new int[] { SW.SW_OK }, 2));
+		try {
+			ApduBatch.exchange(device, commands);
+			fail("Truncated response accepted");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+		}
+	}
+
+	@Test
+	public void invalidResponseSizeIsRejected() throws LedgerException {
+		try {
+			new ApduBatch.Command(GET_APP_NAME, new int[] { SW.SW_OK }, ApduBatch.MAX_RESPONSE_SIZE + 1);
+			fail("Response size larger than a short APDU accepted");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+		}
+	}
+
+	@Test
+	public void sessionBatchIsExchangedOnTheSessionThread() throws LedgerException {
+		LedgerDeviceSession session = new LedgerDeviceSession(device);
+		try {
+			List<ApduBatch.Command> commands = new ArrayList<ApduBatch.Command>();
+			commands.add(new ApduBatch.Command(UNKNOWN_INS));
+			commands.add(new ApduBatch.Command(GET_APP_NAME));
+			ApduBatch batch = session.exchangeBatch(commands, Deadline.after(5000), ExchangePriority.NORMAL);
+			assertEquals(0, batch.getFailedIndex());
+			assertEquals(1, device.getExchangeCount());
+		}
+		finally {
+			session.shutdown();
+		}
+	}
+
+}
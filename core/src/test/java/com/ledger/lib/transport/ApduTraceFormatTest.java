@@ -0,0 +1,167 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.virtual.VirtualLedgerDevice;
+
+/**
+ * Layout of the trace files written by LedgerDeviceRecorder, and exchanges served back by LedgerDeviceReplay
+ */
+public class ApduTraceFormatTest {
+
+	private static final byte[] GET_APP_NAME = { (byte)0xB0, 0x01, 0, 0, 0 };
+	private static final byte[] GET_WALLET_ID = { (byte)0xB0, 0x04, 0, 0, 0 };
+
+	private File traceFile;
+	private VirtualLedgerDevice device;
+
+	@Before
+	public void setUp() throws IOException, LedgerException {
+		traceFile = File.createTempFile("trace", ".bin");
+		// The recorder creates the trace
+		traceFile.delete();
+		device = new VirtualLedgerDevice(new byte[32]);
+	}
+
+	@After
+	public void tearDown() {
+		traceFile.delete();
+	}
+
+	private byte[][] record(byte[]... commands) throws LedgerException {
+		LedgerDeviceRecorder recorder = new LedgerDeviceRecorder(device, traceFile);
+		recorder.open();
+		byte[][] responses = new byte[commands.length][];
+		try {
+			for (int i=0; i<commands.length; i++) {
+				responses[i] = recorder.exchange(commands[i]);
+			}
+		}
+		finally {
+			recorder.close();
+		}
+		return responses;
+	}
+
+	@Test
+	public void recordLayout() throws IOException, LedgerException {
+		long before = System.currentTimeMillis();
+		byte[] response = record(GET_APP_NAME)[0];
+		long after = System.currentTimeMillis();
+		assertEquals(ApduTraceFormat.HEADER_SIZE + ApduTraceFormat.RECORD_HEADER_SIZE + GET_APP_NAME.length + response.length, traceFile.length());
+		DataInputStream in = new DataInputStream(new FileInputStream(traceFile));
+		try {
+			assertEquals(ApduTraceFormat.MAGIC, in.readInt());
+			assertEquals(ApduTraceFormat.VERSION, in.readInt());
+			long timestampMS = in.readLong() / 1000000L;
+			assertTrue((timestampMS >= before - 1) && (timestampMS <= after + 1));
+			assertTrue(in.readLong() >= 0);
+			assertEquals(GET_APP_NAME.length, in.readInt());
+			assertEquals(response.length, in.readInt());
+			byte[] command = new byte[GET_APP_NAME.length];
+			in.readFully(command);
+			assertArrayEquals(GET_APP_NAME, command);
+			byte[] recordedResponse = new byte[response.length];
+			in.readFully(recordedResponse);
+			assertArrayEquals(response, recordedResponse);
+			assertEquals(-1, in.read());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void failedExchangeIsRecorded() throws IOException, LedgerException {
+		LedgerDeviceRecorder recorder = new LedgerDeviceRecorder(device, traceFile);
+		recorder.open();
+		device.close();
+		try {
+			recorder.exchange(GET_APP_NAME);
+			fail("Exchange with a closed device succeeded");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+		}
+		recorder.close();
+		DataInputStream in = new DataInputStream(new FileInputStream(traceFile));
+		try {
+			in.skipBytes(ApduTraceFormat.HEADER_SIZE + 16);
+			assertEquals(GET_APP_NAME.length, in.readInt());
+			assertEquals(ApduTraceFormat.FAILED_EXCHANGE, in.readInt());
+		}
+		finally {
+			in.close();
+		}
+		LedgerDeviceReplay replay = new LedgerDeviceReplay(traceFile, false);
+		replay.open();
+		try {
+			replay.exchange(GET_APP_NAME);
+			fail("Recorded failure replayed as a success");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+		}
+		replay.close();
+	}
+
+	@Test
+	public void replayServesRecordedResponses() throws LedgerException {
+		byte[][] responses = record(GET_APP_NAME, GET_WALLET_ID);
+		LedgerDeviceReplay replay = new LedgerDeviceReplay(traceFile, false);
+		replay.open();
+		assertArrayEquals(responses[0], replay.exchange(GET_APP_NAME));
+		assertArrayEquals(responses[1], replay.exchange(GET_WALLET_ID));
+		assertEquals(2, replay.getExchangeCount());
+		try {
+			replay.exchange(GET_APP_NAME);
+			fail("Exchange replayed past the end of the trace");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+		}
+		replay.close();
+	}
+
+	@Test
+	public void recordsAreAppended() throws LedgerException {
+		byte[][] first = record(GET_APP_NAME);
+		byte[][] second = record(GET_WALLET_ID);
+		LedgerDeviceReplay replay = new LedgerDeviceReplay(traceFile, false);
+		replay.open();
+		assertArrayEquals(first[0], replay.exchange(GET_APP_NAME));
+		assertArrayEquals(second[0], replay.exchange(GET_WALLET_ID));
+		replay.close();
+	}
+
+	@Test
+	public void unexpectedCommandIsRejected() throws LedgerException {
+		byte[][] responses = record(GET_APP_NAME);
+		LedgerDeviceReplay replay = new LedgerDeviceReplay(traceFile, false);
+		replay.open();
+		try {
+			replay.exchange(GET_WALLET_ID);
+			fail("Command differing from the trace accepted");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+		}
+		// The recorded exchange is still available
+		assertArrayEquals(responses[0], replay.exchange(GET_APP_NAME));
+		replay.close();
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Round trips of commands split by CommandFramer and reassembled by ResponseReassembler, the framing being the same in both
+ * directions
+ */
+public class CommandFramerTest {
+
+	private static final int CHANNEL = 0x0101;
+	private static final int HID_PACKET_SIZE = 64;
+	private static final int BLE_PACKET_SIZE = 20;
+	private static final int[] LENGTHS = { 0, 1, 56, 57, 58, 59, 121, 122, 123, 255, 260, 1000 };
+
+	private static byte[] createCommand(int length) {
+		byte[] command = new byte[length];
+		for (int i=0; i<length; i++) {
+			command[i] = (byte)(i * 7 + 3);
+		}
+		return command;
+	}
+
+	/**
+	 * Frame a command into packets padded to the packet size, as sent over HID
+	 */
+	private static List<byte[]> frame(CommandFramer framer, byte[] command, int packetSize) throws LedgerException {
+		framer.start(command, packetSize);
+		List<byte[]> packets = new ArrayList<byte[]>();
+		while (framer.hasNextPacket()) {
+			byte[] packet = new byte[packetSize];
+			int expectedLength = framer.getNextPacketLength();
+			assertEquals(expectedLength, framer.nextPacket(packet, 0));
+			packets.add(packet);
+		}
+		return packets;
+	}
+
+	@Test
+	public void roundTripWithChannel() throws LedgerException {
+		CommandFramer framer = new CommandFramer(CHANNEL);
+		ResponseReassembler reassembler = new ResponseReassembler(CHANNEL);
+		for (int length : LENGTHS) {
+			byte[] command = createCommand(length);
+			List<byte[]> packets = frame(framer, command, HID_PACKET_SIZE);
+			assertEquals(CommandFramer.getPacketCount(length, HID_PACKET_SIZE, true), packets.size());
+			assertEquals(packets.size() * HID_PACKET_SIZE, framer.getFramedSize());
+			reassembler.reset();
+			for (int i=0; i<packets.size(); i++) {
+				assertTrue(reassembler.isExpectedChannel(packets.get(i), 0));
+				assertEquals(i == packets.size() - 1, reassembler.push(packets.get(i)));
+			}
+			assertArrayEquals("length " + length, command, reassembler.getResponse());
+			assertEquals(packets.size(), reassembler.getPacketCount());
+		}
+	}
+
+	@Test
+	public void roundTripWithoutChannel() throws LedgerException {
+		CommandFramer framer = new CommandFramer();
+		ResponseReassembler reassembler = new ResponseReassembler();
+		for (int length : LENGTHS) {
+			byte[] command = createCommand(length);
+			framer.start(command, BLE_PACKET_SIZE);
+			reassembler.reset();
+			boolean complete = false;
+			while (framer.hasNextPacket()) {
+				// BLE fragments are not padded
+				byte[] packet = new byte[framer.getNextPacketLength()];
+				framer.nextPacket(packet, 0);
+				assertTrue(packet.length <= BLE_PACKET_SIZE);
+				complete = reassembler.push(packet);
+			}
+			assertTrue(complete);
+			assertArrayEquals("length " + length, command, reassembler.getResponse());
+		}
+	}
+
+	@Test
+	public void directBufferMatchesArray() throws LedgerException {
+		CommandFramer arrayFramer = new CommandFramer(CHANNEL);
+		CommandFramer bufferFramer = new CommandFramer(CHANNEL);
+		byte[] command = createCommand(300);
+		arrayFramer.start(command, HID_PACKET_SIZE);
+		bufferFramer.start(command, 0, command.length, HID_PACKET_SIZE);
+		ByteBuffer packet = ByteBuffer.allocateDirect(HID_PACKET_SIZE);
+		while (arrayFramer.hasNextPacket()) {
+			byte[] expected = new byte[HID_PACKET_SIZE];
+			int length = arrayFramer.nextPacket(expected, 0);
+			packet.clear();
+			assertEquals(length, bufferFramer.nextPacket(packet));
+			byte[] actual = new byte[HID_PACKET_SIZE];
+			packet.flip();
+			packet.get(actual, 0, length);
+			assertArrayEquals(expected, actual);
+		}
+		assertFalse(bufferFramer.hasNextPacket());
+	}
+
+	@Test
+	public void reassembleIntoTarget() throws LedgerException {
+		CommandFramer framer = new CommandFramer(CHANNEL);
+		ResponseReassembler reassembler = new ResponseReassembler(CHANNEL);
+		byte[] response = createCommand(130);
+		byte[] target = new byte[10 + 130];
+		reassembler.reset(target, 10, 130);
+		for (byte[] packet : frame(framer, response, HID_PACKET_SIZE)) {
+			reassembler.push(packet);
+		}
+		assertTrue(reassembler.isComplete());
+		assertFalse(reassembler.isOverflow());
+		assertNull(reassembler.getResponse());
+		byte[] copied = new byte[130];
+		System.arraycopy(target, 10, copied, 0, 130);
+		assertArrayEquals(response, copied);
+	}
+
+	@Test
+	public void overflowIsConsumedWithoutCopy() throws LedgerException {
+		CommandFramer framer = new CommandFramer(CHANNEL);
+		ResponseReassembler reassembler = new ResponseReassembler(CHANNEL);
+		byte[] target = new byte[64];
+		reassembler.reset(target, 0, 64);
+		for (byte[] packet : frame(framer, createCommand(200), HID_PACKET_SIZE)) {
+			reassembler.push(packet);
+		}
+		assertTrue(reassembler.isComplete());
+		assertTrue(reassembler.isOverflow());
+		assertEquals(200, reassembler.getResponseLength());
+		assertArrayEquals(new byte[64], target);
+	}
+
+	@Test
+	public void foreignChannelIsDetected() throws LedgerException {
+		CommandFramer framer = new CommandFramer(0x0202);
+		ResponseReassembler reassembler = new ResponseReassembler(CHANNEL);
+		byte[] packet = frame(framer, createCommand(10), HID_PACKET_SIZE).get(0);
+		assertFalse(reassembler.isExpectedChannel(packet, 0));
+		try {
+			reassembler.push(packet);
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+			return;
+		}
+		fail("Packet of another channel accepted");
+	}
+
+	@Test
+	public void outOfSequencePacketIsRejected() throws LedgerException {
+		CommandFramer framer = new CommandFramer(CHANNEL);
+		ResponseReassembler reassembler = new ResponseReassembler(CHANNEL);
+		List<byte[]> packets = frame(framer, createCommand(200), HID_PACKET_SIZE);
+		reassembler.push(packets.get(0));
+		try {
+			reassembler.push(packets.get(2));
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+			return;
+		}
+		fail("Out of sequence packet accepted");
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Dispatch order of ExchangeScheduler, by priority class and with starvation aging
+ */
+public class ExchangeSchedulerTest {
+
+	private static final long STARVATION_THRESHOLD_MS = 50;
+
+	private static Runnable task() {
+		return new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+	}
+
+	@Test
+	public void mostUrgentClassFirst() throws InterruptedException {
+		ExchangeScheduler scheduler = new ExchangeScheduler();
+		Runnable bulk = task();
+		Runnable normal = task();
+		Runnable interactive1 = task();
+		Runnable interactive2 = task();
+		scheduler.add(bulk, ExchangePriority.BULK);
+		scheduler.add(normal, ExchangePriority.NORMAL);
+		scheduler.add(interactive1, ExchangePriority.INTERACTIVE);
+		scheduler.add(interactive2, ExchangePriority.INTERACTIVE);
+		assertSame(interactive1, scheduler.take());
+		assertSame(interactive2, scheduler.take());
+		assertSame(normal, scheduler.take());
+		assertSame(bulk, scheduler.take());
+		assertEquals(0, scheduler.getStarvedDispatches());
+		assertEquals(2, scheduler.getMaxDepth(ExchangePriority.INTERACTIVE));
+	}
+
+	@Test
+	public void starvedOperationIsServedFirst() throws InterruptedException {
+		ExchangeScheduler scheduler = new ExchangeScheduler();
+		scheduler.setStarvationThreshold(STARVATION_THRESHOLD_MS);
+		Runnable bulk = task();
+		Runnable interactive = task();
+		scheduler.add(bulk, ExchangePriority.BULK);
+		Thread.sleep(STARVATION_THRESHOLD_MS * 2);
+		scheduler.add(interactive, ExchangePriority.INTERACTIVE);
+		assertSame(bulk, scheduler.take());
+		assertSame(interactive, scheduler.take());
+		assertEquals(1, scheduler.getStarvedDispatches());
+	}
+
+	@Test
+	public void starvedOperationsAlternateWithUrgentOnes() throws InterruptedException {
+		ExchangeScheduler scheduler = new ExchangeScheduler();
+		scheduler.setStarvationThreshold(STARVATION_THRESHOLD_MS);
+		Runnable bulk1 = task();
+		Runnable bulk2 = task();
+		Runnable interactive1 = task();
+		Runnable interactive2 = task();
+		scheduler.add(bulk1, ExchangePriority.BULK);
+		scheduler.add(bulk2, ExchangePriority.BULK);
+		Thread.sleep(STARVATION_THRESHOLD_MS * 2);
+		scheduler.add(interactive1, ExchangePriority.INTERACTIVE);
+		scheduler.add(interactive2, ExchangePriority.INTERACTIVE);
+		assertSame(bulk1, scheduler.take());
+		// Urgent operations are served at least every other operation
+		assertSame(interactive1, scheduler.take());
+		assertSame(bulk2, scheduler.take());
+		assertSame(interactive2, scheduler.take());
+		assertEquals(2, scheduler.getStarvedDispatches());
+	}
+
+	@Test
+	public void recentOperationIsNotAged() throws InterruptedException {
+		ExchangeScheduler scheduler = new ExchangeScheduler();
+		scheduler.setStarvationThreshold(60000);
+		Runnable bulk = task();
+		Runnable interactive = task();
+		scheduler.add(bulk, ExchangePriority.BULK);
+		Thread.sleep(STARVATION_THRESHOLD_MS);
+		scheduler.add(interactive, ExchangePriority.INTERACTIVE);
+		assertSame(interactive, scheduler.take());
+		assertSame(bulk, scheduler.take());
+		assertEquals(0, scheduler.getStarvedDispatches());
+	}
+
+	@Test
+	public void shutdownDrainsQueuedOperations() throws InterruptedException {
+		ExchangeScheduler scheduler = new ExchangeScheduler();
+		Runnable normal = task();
+		scheduler.add(normal, ExchangePriority.NORMAL);
+		scheduler.shutdown();
+		assertFalse(scheduler.add(task(), ExchangePriority.NORMAL));
+		assertSame(normal, scheduler.take());
+		assertNull(scheduler.take());
+	}
+
+}
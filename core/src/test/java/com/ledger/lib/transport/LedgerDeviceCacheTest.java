@@ -0,0 +1,153 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.virtual.VirtualLedgerDevice;
+
+/**
+ * Responses served by LedgerDeviceCache in front of a virtual device, and invalidation when the running application changes
+ */
+public class LedgerDeviceCacheTest {
+
+	private static final byte[] GET_APP_NAME = { (byte)0xB0, 0x01, 0, 0, 0 };
+	private static final byte[] GET_VERSION = { (byte)0xE0, 0x01, 0, 0, 0 };
+	private static final byte[] UNKNOWN_CLA = { 0x12, 0x34, 0, 0, 0 };
+
+	private VirtualLedgerDevice device;
+	private LedgerDeviceCache cache;
+
+	@Before
+	public void setUp() throws LedgerException {
+		device = new VirtualLedgerDevice(new byte[32]);
+		cache = new LedgerDeviceCache(device);
+		cache.open();
+	}
+
+	private static byte[] runApp(String name) {
+		byte[] apdu = new byte[5 + name.length()];
+		apdu[0] = (byte)0xE0;
+		apdu[1] = (byte)0xD8;
+		apdu[4] = (byte)name.length();
+		for (int i=0; i<name.length(); i++) {
+			apdu[5 + i] = (byte)name.charAt(i);
+		}
+		return apdu;
+	}
+
+	private static boolean contains(byte[] response, String text) {
+		return new String(response).contains(text);
+	}
+
+	@Test
+	public void readOnlyCommandIsServedFromCache() throws LedgerException {
+		byte[] first = cache.exchange(GET_APP_NAME);
+		byte[] second = cache.exchange(GET_APP_NAME);
+		assertArrayEquals(first, second);
+		assertEquals(1, device.getExchangeCount());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.5, cache.getHitRate(), 0);
+	}
+
+	@Test
+	public void returnedResponseIsACopy() throws LedgerException {
+		byte[] first = cache.exchange(GET_APP_NAME);
+		first[0] ^= 0xff;
+		assertFalse(cache.exchange(GET_APP_NAME)[0] == first[0]);
+	}
+
+	@Test
+	public void dashboardCommandsAreNotCachedByDefault() throws LedgerException {
+		byte[] dashboardVersion = cache.exchange(GET_VERSION);
+		// E0 01 is a different command once an application is started from the device itself
+		device.startApplication(VirtualLedgerDevice.APPLICATION_BTC);
+		byte[] applicationResponse = cache.exchange(GET_VERSION);
+		assertEquals(2, device.getExchangeCount());
+		assertFalse(Arrays.equals(dashboardVersion, applicationResponse));
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void allowedCommandIsCached() throws LedgerException {
+		cache.addCommand(0xE0, 0x01);
+		cache.exchange(GET_VERSION);
+		cache.exchange(GET_VERSION);
+		assertEquals(1, device.getExchangeCount());
+	}
+
+	@Test
+	public void runningApplicationInvalidates() throws LedgerException {
+		long invalidations = cache.getInvalidations();
+		assertTrue(contains(cache.exchange(GET_APP_NAME), "BOLOS"));
+		cache.exchange(runApp(VirtualLedgerDevice.APPLICATION_BTC));
+		assertTrue(contains(cache.exchange(GET_APP_NAME), VirtualLedgerDevice.APPLICATION_BTC));
+		assertEquals(3, device.getExchangeCount());
+		assertEquals(invalidations + 1, cache.getInvalidations());
+	}
+
+	@Test
+	public void exitingApplicationInvalidates() throws LedgerException {
+		device.startApplication(VirtualLedgerDevice.APPLICATION_ETH);
+		assertTrue(contains(cache.exchange(GET_APP_NAME), VirtualLedgerDevice.APPLICATION_ETH));
+		cache.exchange(new byte[] { (byte)0xB0, (byte)0xA7, 0, 0, 0 });
+		assertTrue(contains(cache.exchange(GET_APP_NAME), "BOLOS"));
+	}
+
+	@Test
+	public void rejectedCommandInvalidates() throws LedgerException {
+		cache.exchange(GET_APP_NAME);
+		device.startApplication(VirtualLedgerDevice.APPLICATION_TRX);
+		// Stale until a command is rejected by the new application
+		assertTrue(contains(cache.exchange(GET_APP_NAME), "BOLOS"));
+		cache.exchange(UNKNOWN_CLA);
+		assertTrue(contains(cache.exchange(GET_APP_NAME), VirtualLedgerDevice.APPLICATION_TRX));
+	}
+
+	@Test
+	public void failedExchangeInvalidates() throws LedgerException {
+		cache.exchange(GET_APP_NAME);
+		device.close();
+		try {
+			cache.exchange(UNKNOWN_CLA);
+			fail("Exchange with a closed device succeeded");
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+		}
+		device.open();
+		cache.exchange(GET_APP_NAME);
+		assertEquals(2, device.getExchangeCount());
+	}
+
+	@Test
+	public void hitsAreReportedToTheListener() throws LedgerException {
+		final List<String> transports = new ArrayList<String>();
+		final List<Integer> statusWords = new ArrayList<Integer>();
+		cache.setExchangeListener(new ExchangeListener() {
+			@Override
+			public void onExchange(ExchangeMetrics metrics) {
+				transports.add(metrics.getTransport());
+				statusWords.add(metrics.getStatusWord());
+			}
+		});
+		cache.exchange(GET_APP_NAME);
+		cache.exchange(GET_APP_NAME);
+		assertEquals(2, transports.size());
+		assertEquals("VirtualLedgerDevice", transports.get(0));
+		assertEquals("LedgerDeviceCache", transports.get(1));
+		assertEquals(Integer.valueOf(0x9000), statusWords.get(1));
+	}
+
+}
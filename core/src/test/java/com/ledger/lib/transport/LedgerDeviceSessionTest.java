@@ -0,0 +1,112 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.virtual.VirtualLedgerDevice;
+
+/**
+ * Transactions of LedgerDeviceSession, and rejection of the session calls made by the thread owning a transaction
+ */
+public class LedgerDeviceSessionTest {
+
+	private static final long TIMEOUT_MS = 5000;
+	private static final byte[] GET_APP_NAME = { (byte)0xB0, 0x01, 0, 0, 0 };
+
+	private VirtualLedgerDevice device;
+	private LedgerDeviceSession session;
+
+	@Before
+	public void setUp() throws LedgerException {
+		device = new VirtualLedgerDevice(new byte[32]);
+		device.open();
+		session = new LedgerDeviceSession(device);
+	}
+
+	@After
+	public void tearDown() {
+		session.shutdown();
+	}
+
+	private static void assertRejected(LedgerException e) {
+		assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+	}
+
+	@Test
+	public void sessionExchangeFromOwnerThreadFails() throws LedgerException {
+		try (LedgerDeviceSession.Transaction transaction = session.beginTransaction(TIMEOUT_MS)) {
+			transaction.exchange(GET_APP_NAME);
+			try {
+				session.exchange(GET_APP_NAME);
+				fail("Session exchange from the transaction owner accepted");
+			}
+			catch(LedgerException e) {
+				assertRejected(e);
+			}
+			transaction.exchange(GET_APP_NAME);
+		}
+		assertEquals(2, device.getExchangeCount());
+		session.exchange(GET_APP_NAME);
+	}
+
+	@Test
+	public void submitFromOwnerThreadReturnsFailedFuture() throws LedgerException {
+		LedgerDeviceSession.Transaction transaction = session.beginTransaction(TIMEOUT_MS);
+		try {
+			LedgerFuture<byte[]> future = session.exchangeAsync(GET_APP_NAME);
+			assertTrue(future.isDone());
+			try {
+				future.await(TIMEOUT_MS);
+				fail("Submission from the transaction owner accepted");
+			}
+			catch(LedgerException e) {
+				assertRejected(e);
+			}
+			try {
+				session.beginTransaction(TIMEOUT_MS);
+				fail("Nested transaction accepted");
+			}
+			catch(LedgerException e) {
+				assertRejected(e);
+			}
+		}
+		finally {
+			transaction.close();
+		}
+		assertFalse(transaction.isOpened());
+		session.exchangeAsync(GET_APP_NAME).await(TIMEOUT_MS);
+	}
+
+	@Test
+	public void otherThreadsWaitForTheTransaction() throws Exception {
+		final AtomicReference<LedgerFuture<byte[]>> result = new AtomicReference<LedgerFuture<byte[]>>();
+		LedgerDeviceSession.Transaction transaction = session.beginTransaction(TIMEOUT_MS);
+		try {
+			Thread other = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					result.set(session.exchangeAsync(GET_APP_NAME));
+				}
+			});
+			other.start();
+			other.join();
+			Thread.sleep(50);
+			assertFalse(result.get().isDone());
+		}
+		finally {
+			transaction.close();
+		}
+		result.get().await(TIMEOUT_MS);
+		assertEquals(1, device.getExchangeCount());
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.ledger.lib.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+
+/**
+ * Exchanges with a local server speaking the Speculos APDU protocol, checking that the late response of an interrupted
+ * exchange is drained instead of being returned to the next exchange
+ */
+public class LedgerDeviceTCPTest {
+
+	private static final int TIMEOUT_MS = 5000;
+
+	private ServerSocket server;
+	private Thread serverThread;
+	private CountDownLatch releaseFirstResponse;
+	private volatile Throwable serverError;
+	private LedgerDeviceTCP device;
+
+	/**
+	 * Answer each command with its INS as data, holding the first response until released
+	 */
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 1, InetAddress.getByName(LedgerDeviceTCP.DEFAULT_HOST));
+		releaseFirstResponse = new CountDownLatch(1);
+		serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					try {
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+						for (int i=0; ; i++) {
+							byte[] command = new byte[in.readInt()];
+							in.readFully(command);
+							if (i == 0) {
+								releaseFirstResponse.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+							}
+							out.writeInt(1);
+							out.write(new byte[] { command[1], (byte)0x90, 0x00 });
+							out.flush();
+						}
+					}
+					finally {
+						socket.close();
+					}
+				}
+				catch(IOException e) {
+					// Connection closed by the test
+				}
+				catch(Throwable e) {
+					serverError = e;
+				}
+			}
+		});
+		serverThread.start();
+		device = new LedgerDeviceTCP(LedgerDeviceTCP.DEFAULT_HOST, server.getLocalPort(), TIMEOUT_MS, TIMEOUT_MS);
+		device.open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		device.close();
+		server.close();
+		serverThread.join(TIMEOUT_MS);
+		if (serverError != null) {
+			throw new AssertionError(serverError);
+		}
+	}
+
+	private static byte[] command(int ins) {
+		return new byte[] { (byte)0xE0, (byte)ins, 0, 0, 0 };
+	}
+
+	private static byte[] response(int ins) {
+		return new byte[] { (byte)ins, (byte)0x90, 0x00 };
+	}
+
+	private void expectDeadlineFailure(byte[] apdu, Deadline deadline) {
+		try {
+			device.exchange(apdu, deadline);
+			fail("Exchange not interrupted");
+		}
+		catch(DeadlineException e) {
+			assertEquals(LedgerException.ExceptionReason.IO_ERROR, e.getReason());
+		}
+	}
+
+	@Test
+	public void lateResponseIsDrainedAfterTimeout() throws LedgerException {
+		expectDeadlineFailure(command(0x01), Deadline.after(100));
+		assertTrue(device.isOpened());
+		releaseFirstResponse.countDown();
+		assertArrayEquals(response(0x02), device.exchange(command(0x02)));
+		assertArrayEquals(response(0x03), device.exchange(command(0x03)));
+	}
+
+	@Test
+	public void lateResponseIsDrainedAfterCancellation() throws Exception {
+		final Deadline deadline = Deadline.none();
+		Thread canceller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				}
+				catch(InterruptedException e) {
+				}
+				deadline.cancel();
+			}
+		});
+		canceller.start();
+		expectDeadlineFailure(command(0x01), deadline);
+		canceller.join();
+		releaseFirstResponse.countDown();
+		assertArrayEquals(response(0x02), device.exchange(command(0x02)));
+	}
+
+	@Test
+	public void lateResponseIsDrainedBeforeExchangeInto() throws LedgerException {
+		expectDeadlineFailure(command(0x01), Deadline.after(100));
+		releaseFirstResponse.countDown();
+		ByteBuffer response = ByteBuffer.allocate(16);
+		int length = device.exchangeInto(ByteBuffer.wrap(command(0x04)), response);
+		assertEquals(3, length);
+		byte[] received = new byte[length];
+		response.flip();
+		response.get(received);
+		assertArrayEquals(response(0x04), received);
+	}
+
+}
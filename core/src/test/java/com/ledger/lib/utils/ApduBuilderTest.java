@@ -0,0 +1,165 @@
+package com.ledger.lib.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.transport.LedgerDevice;
+
+/**
+ * Commands built in place by ApduBuilder, compared with the ByteArrayOutputStream encoding they replaced
+ */
+public class ApduBuilderTest {
+
+	private static final String[] PATHS = { "", "0", "44'/0'/0'/0/0", "49'/1'/2'/1/4294967295", "1/2/3/4/5/6/7/8/9/10" };
+	private static final long[] VARINTS = { 0, 1, 0xfc, 0xfd, 0xfe, 0xffff, 0x10000, 0xffffffffL };
+
+	/**
+	 * Device recording the last command sent, answering SW_OK
+	 */
+	private static class CapturingDevice implements LedgerDevice {
+
+		private byte[] lastCommand;
+
+		@Override
+		public void open() {
+		}
+
+		@Override
+		public byte[] exchange(byte[] apdu) {
+			lastCommand = apdu.clone();
+			return new byte[] { (byte)0x90, 0x00 };
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void setDebug(boolean debugFlag) {
+		}
+
+		@Override
+		public boolean isOpened() {
+			return true;
+		}
+
+	}
+
+	private static byte[] buildApdu(int cla, int ins, int p1, int p2, byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(cla);
+		out.write(ins);
+		out.write(p1);
+		out.write(p2);
+		out.write(data.length);
+		out.write(data, 0, data.length);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void emptyCommand() {
+		byte[] expected = buildApdu(0xE0, 0x01, 0x02, 0x03, new byte[0]);
+		assertArrayEquals(expected, new ApduBuilder(null).start(0xE0, 0x01, 0x02, 0x03).toApdu());
+	}
+
+	@Test
+	public void expectedLengthReplacesLc() {
+		byte[] apdu = new ApduBuilder(null).start(0xE0, 0x02, 0, 0).expect(32).toApdu();
+		assertArrayEquals(new byte[] { (byte)0xE0, 0x02, 0, 0, 32 }, apdu);
+	}
+
+	@Test
+	public void pathMatchesSplitPath() throws LedgerException {
+		ApduBuilder builder = new ApduBuilder(null);
+		for (String path : PATHS) {
+			byte[] expected = buildApdu(0xE0, 0x40, 0, 0, BIP32Helper.splitPath(path));
+			assertArrayEquals(path, expected, builder.start(0xE0, 0x40, 0, 0).writePath(path).toApdu());
+		}
+	}
+
+	@Test
+	public void integersMatchSerializeHelper() throws LedgerException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ApduBuilder builder = new ApduBuilder(null).start(0xE0, 0x44, 0x80, 0x02);
+		for (long value : VARINTS) {
+			SerializeHelper.writeUint16BE(data, value & 0xffff);
+			builder.writeUint16BE(value & 0xffff);
+			SerializeHelper.writeUint32BE(data, value);
+			builder.writeUint32BE(value);
+			SerializeHelper.writeUint32LE(data, value);
+			builder.writeUint32LE(value);
+			VarintUtils.write(data, value);
+			builder.writeVarint(value);
+		}
+		assertArrayEquals(buildApdu(0xE0, 0x44, 0x80, 0x02, data.toByteArray()), builder.toApdu());
+	}
+
+	@Test
+	public void bytesAndSlices() throws LedgerException {
+		byte[] value = new byte[] { 1, 2, 3, 4, 5, 6 };
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(0x42);
+		data.write(value, 0, value.length);
+		data.write(value, 2, 3);
+		byte[] apdu = new ApduBuilder(null).start(0xE0, 0x48, 0, 0).writeByte(0x42).writeBytes(value).writeBytes(value, 2, 3).setP1(0x80).toApdu();
+		assertArrayEquals(buildApdu(0xE0, 0x48, 0x80, 0, data.toByteArray()), apdu);
+	}
+
+	@Test
+	public void restartDiscardsPreviousCommand() throws LedgerException {
+		ApduBuilder builder = new ApduBuilder(null);
+		builder.start(0xE0, 0x48, 0, 0).writeBytes(new byte[200]);
+		assertArrayEquals(buildApdu(0xE0, 0x4A, 0, 0, new byte[] { 7 }), builder.start(0xE0, 0x4A, 0, 0).writeByte(7).toApdu());
+	}
+
+	@Test
+	public void dataLongerThanShortApduIsRejected() throws LedgerException {
+		ApduBuilder builder = new ApduBuilder(null).start(0xE0, 0x04, 0, 0).writeBytes(new byte[ApduBuilder.MAX_DATA_SIZE]);
+		assertEquals(0, builder.getRemaining());
+		try {
+			builder.writeByte(0);
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+			return;
+		}
+		fail("Command longer than a short APDU accepted");
+	}
+
+	@Test
+	public void exchangedCommandsMatchEncoding() throws LedgerException {
+		CapturingDevice device = new CapturingDevice();
+		byte[] data = new byte[] { 0x10, 0x20, 0x30 };
+		byte[] expected = buildApdu(0xE0, 0x4C, 0x01, 0x02, data);
+		ApduBuilder builder = new ApduBuilder(device);
+		builder.start(0xE0, 0x4C, 0x01, 0x02).writeBytes(data).exchange();
+		assertArrayEquals(expected, device.lastCommand);
+		ByteBuffer response = ByteBuffer.allocate(2);
+		builder.start(0xE0, 0x4C, 0x01, 0x02).writeBytes(data).exchangeInto(response, new ApduExchange.ApduResponse());
+		assertArrayEquals(expected, device.lastCommand);
+		ApduExchange.exchangeApdu(device, 0xE0, 0x4C, 0x01, 0x02, data);
+		assertArrayEquals(expected, device.lastCommand);
+	}
+
+	@Test
+	public void threadBuilderIsReleasedAfterExchange() throws LedgerException {
+		ApduBuilder builder = ApduBuilder.get(new CapturingDevice());
+		builder.start(0xB0, 0x01, 0, 0).exchange();
+		try {
+			builder.start(0xB0, 0x01, 0, 0).exchange();
+		}
+		catch(LedgerException e) {
+			assertEquals(LedgerException.ExceptionReason.INVALID_PARAMETER, e.getReason());
+			return;
+		}
+		fail("Thread builder still bound to its device");
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.ledger.lib.apps.eth;
+
+import java.io.IOException;
+import java.io.BufferedInputStream;
+
+import android.content.Context;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.R;
+
+/**
+ * Provision the Erc20 tokens cache from the resources of the Android library
+ */
+public class Erc20CacheResources {
+
+	/**
+	 * Load the cache following the internal provisioning blob
+	 * @param context application context
+	 */
+	public static void loadCacheInternal(Context context) throws LedgerException {
+		try {
+			BufferedInputStream is = new BufferedInputStream(context.getResources().openRawResource(R.raw.erc20));
+			byte[] data = new byte[is.available()];
+			int offset = 0;
+			while (offset != data.length) {
+				int dataRead = is.read(data, offset, data.length - offset);
+				offset += dataRead;
+			}
+			Erc20Cache.loadCache(data);
+		}
+		catch(IOException e) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e);
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.ledger.lib.apps.trx;
+
+import java.io.IOException;
+import java.io.BufferedInputStream;
+
+import android.content.Context;
+
+import com.ledger.lib.LedgerException;
+import com.ledger.lib.R;
+
+/**
+ * Provision the Tron signed information caches from the resources of the Android library
+ */
+public class TrxCacheResources {
+
+	private static byte[] readResource(Context context, int id) {
+		try {
+			BufferedInputStream is = new BufferedInputStream(context.getResources().openRawResource(id));
+			byte[] data = new byte[is.available()];
+			int offset = 0;
+			while (offset != data.length) {
+				int dataRead = is.read(data, offset, data.length - offset);
+				offset += dataRead;
+			}
+			return data;
+		}
+		catch(IOException e) {
+			throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, e);
+		}		
+	}
+
+	/**
+	 * Load the caches following the internal provisioning blob
+	 * @param context application context
+	 */
+	public static void loadCacheInternal(Context context) throws LedgerException {
+		TrxCache.loadTrc10Cache(readResource(context, R.raw.trc10));
+		TrxCache.loadExchangesCache(readResource(context, R.raw.tronexchanges));
+	}
+
+}
@@ -1,21 +1,21 @@
 package com.ledger.lib.transport;
 
+import java.nio.ByteBuffer;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.List;
-import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothProfile;
-import android.util.Log;
+import com.ledger.lib.utils.Log;
 import android.os.Build;
 
 import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.AndroidLogger;
 import com.ledger.lib.utils.Dump;
 
 /**
@@ -25,6 +25,27 @@ import com.ledger.lib.utils.Dump;
  *
  * All events notified on the GATT callback shall be passed to the current object instance
  *
+ * Fragments are sent unpadded. By default each fragment is acknowledged by the device before the next one is sent. When
+ * write without response is enabled, up to a configurable number of fragments are handed to the Bluetooth stack before waiting
+ * for its flow control acknowledgements, falling back to acknowledged writes if the stack reports an error
+ *
+ * The device is an explicit state machine driven directly from the GATT callback thread, without any event queue. Opening walks
+ * through service discovery, notification subscription, ATT MTU negotiation and device MTU query, each event triggering the next
+ * request and completing the open future once ready. Once opened, each write acknowledgement triggers the next fragment and each
+ * notification is fed to the response reassembler, completing the exchange future when the response is complete
+ *
+ * A session is cached per device address once opened. When reconnecting, the service discovery is skipped if the GATT client
+ * still knows the device services, the notification subscription is skipped for bonded devices which keep it across connections,
+ * and the device MTU query is skipped. The ATT MTU is always negotiated again as it only lasts for a connection. A session is
+ * dropped if an open or an exchange fails.
+ *
+ * An exchange abandoned after its command was sent, on timeout, when its deadline is cancelled or when the future returned by
+ * exchangeAsync is cancelled, leaves the device answering a response nobody waits for. This late response is drained before
+ * the next command is written, the next exchange being deferred meanwhile within its own deadline. An exchange abandoned while
+ * its command is being written leaves writes pending in the Bluetooth stack, whose acknowledgements are waited for the same
+ * way. If the abandoned exchange is still pending after a few seconds, the link is considered resynchronized : the next command
+ * is written and the cached session dropped.
+ *
  * Due to a temporary BLE stack bug, the connection shall be closed immediately following a successful bonding
  * to commit the keys
  *
@@ -35,7 +56,7 @@ import com.ledger.lib.utils.Dump;
  * Nano X : 13D63400-2C97-0004-0000-4C6564676572
  *
  */
-public class LedgerDeviceBLE implements LedgerDevice {
+public class LedgerDeviceBLE implements AsyncLedgerDevice, ExtendedLedgerDevice {
 
   /** GATT Service UUID */
   public static final UUID SERVICE_UUID = UUID.fromString("13D63400-2C97-0004-0000-4C6564676572");
@@ -47,11 +68,66 @@ public class LedgerDeviceBLE implements LedgerDevice {
 
   private static final byte[] QUERY_MTU = new byte[] { 0x08, 0x00, 0x00, 0x00, 0x00 };
 
+  private static final int TAG_MTU = 0x08;
+  private static final int ATT_HEADER_SIZE = 3;
+
   private static final int DEFAULT_MTU = 20;
-  private static final int DEFAULT_MAX_MTU = 100;
-  private static final int DEFAULT_QUEUE_CAPACITY = 100;
+  private static final int DEFAULT_MAX_MTU = 512;
+  private static final int DEFAULT_MAX_FRAGMENTS_IN_FLIGHT = 4;
   private static final int DEFAULT_TIMEOUT_MS = 15000;
-  private static final String LOG_STRING = "LedgerDeviceBLE";  
+  private static final int DRAIN_TIMEOUT_MS = 5000;
+  private static final String LOG_STRING = "LedgerDeviceBLE";
+
+  static {
+    // Send the library messages to logcat unless the application installed its own logger
+    Log.setDefaultLogger(new AndroidLogger());
+  }
+
+  private enum State {
+    /** Not opened yet, or last open attempt failed */
+    CLOSED,
+    /** Waiting for the GATT service discovery */
+    DISCOVERING_SERVICES,
+    /** Waiting for the notification descriptor write */
+    ENABLING_NOTIFICATIONS,
+    /** Waiting for the ATT MTU negotiation */
+    NEGOTIATING_MTU,
+    /** Waiting for the device MTU query acknowledgement and answer */
+    QUERYING_MTU,
+    /** Opened, at most one exchange pending */
+    READY,
+    /** Link lost, the device can't be used anymore */
+    DISCONNECTED
+  };
+
+  /**
+   * Session state kept across connections to the same device
+   */
+  private static class Session {
+    final int deviceMtu;
+
+    Session(int deviceMtu) {
+      this.deviceMtu = deviceMtu;
+    }
+  }
+
+  private static final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+  /**
+   * Caller buffer receiving the response of an exchangeInto call
+   */
+  private static class ResponseTarget {
+    final byte[] array;
+    final int offset;
+    final int capacity;
+    int length;
+
+    ResponseTarget(byte[] array, int offset, int capacity) {
+      this.array = array;
+      this.offset = offset;
+      this.capacity = capacity;
+    }
+  }
 
   private BluetoothGatt connection;
   private int timeout;
@@ -59,29 +135,78 @@ public class LedgerDeviceBLE implements LedgerDevice {
   private BluetoothGattCharacteristic characteristicWrite;
   private BluetoothGattCharacteristic characteristicNotify;
   private GattCallback gattCallback;
-  private LinkedBlockingQueue<GattCallback.GattEvent> blockingQueue;
-  private byte transferBuffer[];
-  private boolean opened;
-  private boolean disconnected;
+  private byte fragmentBuffers[][];
+  private CommandFramer framer;
+  private ResponseReassembler reassembler;
+  private ExchangeMetrics metrics;
+  private volatile ExchangeListener exchangeListener;
+  private final Object lock = new Object();
+  private volatile State state;
+  private LedgerFuture<Void> pendingOpen;
+  private boolean queryMtuAcknowledged;
+  private boolean queryMtuAnswered;
+  private Session session;
+  private volatile boolean sessionCacheEnabled;
+  private long openStartTime;
+  private volatile long lastOpenDuration;
+  private volatile boolean lastOpenResumed;
+  private LedgerFuture<byte[]> pendingExchange;
+  private final LedgerCallback<byte[]> cancellationCallback = new LedgerCallback<byte[]>() {
+    @Override
+    public void onSuccess(byte[] result) {
+    }
+
+    @Override
+    public void onFailure(LedgerException exception) {
+      // Release the device when the caller cancels the future of a pending exchange
+      synchronized(lock) {
+        if ((pendingExchange != null) && pendingExchange.isCancelled()) {
+          abandonExchange(pendingExchange);
+        }
+      }
+    }
+  };
+  private byte[] pendingCommand;
+  private int pendingCommandOffset;
+  private int pendingCommandLength;
+  private ResponseTarget pendingTarget;
+  private byte[] nextFragment;
+  private int fragmentsInFlight;
+  private boolean restartPending;
+  private boolean commandSent;
+  private boolean draining;
+  private int staleWrites;
+  private long drainStart;
+  private volatile boolean writeWithoutResponse;
+  private volatile int maxFragmentsInFlight;
+  private boolean writeWithoutResponseSupported;
 
   private boolean debug;
   private int mtu;
+  private int negotiatedMtu;
+  private int deviceMtu;
 
   /** Class constructor
    * @param connection Connection to the device GATT service established by the caller
    * @param timeoutMS timeout when interacting with the device (in milliseconds)
-   * @param maxMTU maximum MTU to use when negociating
-   */  
+   * @param maxMTU maximum ATT MTU to request when negociating
+   */
   public LedgerDeviceBLE(BluetoothGatt connection, int timeoutMS, int maxMTU) {
     this.connection = connection;
-    blockingQueue = new LinkedBlockingQueue<GattCallback.GattEvent>();
-    gattCallback = new GattCallback(blockingQueue);
+    gattCallback = new GattCallback(new StateListener());
     this.timeout = timeoutMS;
     this.maxMtu = maxMTU;
+    this.maxFragmentsInFlight = DEFAULT_MAX_FRAGMENTS_IN_FLIGHT;
+    framer = new CommandFramer();
+    reassembler = new ResponseReassembler();
+    metrics = new ExchangeMetrics(LOG_STRING);
+    state = State.CLOSED;
+    sessionCacheEnabled = true;
+    negotiatedMtu = DEFAULT_MTU + ATT_HEADER_SIZE;
     setMtu(DEFAULT_MTU);
   }
 
-  /** Class constructor using a default 30s timeout and a maximum MTU of 100 bytes
+  /** Class constructor using a default 30s timeout and a maximum MTU of 512 bytes
    * @param connection Connection to the device GATT service established by the caller
    */
   public LedgerDeviceBLE(BluetoothGatt connection) {
@@ -98,194 +223,1039 @@ public class LedgerDeviceBLE implements LedgerDevice {
 
   private void setMtu(int mtu) {
     this.mtu = mtu;
-    transferBuffer = new byte[mtu];
+    fragmentBuffers = new byte[mtu + 1][];
   }
 
-  private void clearQueue() {
-    GattCallback.GattEvent event;
-    if (debug) {
-      Log.d(LOG_STRING, "Begin clear queue");
+  /**
+   * Return the fragment size used when exchanging APDUs, reconciling the MTU negotiated by the Bluetooth stack and the MTU
+   * reported by the device application layer
+   * @return fragment size in bytes
+   */
+  public int getMtu() {
+    return mtu;
+  }
+
+  /**
+   * Return the MTU reported by the device application layer when the device was opened
+   * @return device MTU in bytes, or 0 if not reported
+   */
+  public int getDeviceMtu() {
+    return deviceMtu;
+  }
+
+  private int parseDeviceMtu(byte[] data) {
+    if ((data == null) || (data.length < 6) || (data[0] != TAG_MTU)) {
+      return 0;
     }
-    while ((event = blockingQueue.poll()) != null) {
-      if (debug) {
-        Log.d(LOG_STRING, "Dropping " + event.toString());
+    int length = ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+    if ((length == 1) || (data.length == 6)) {
+      return (data[5] & 0xff);
+    }
+    return ((data[5] & 0xff) << 8) | (data[6] & 0xff);
+  }
+
+  /**
+   * Enable or disable writes without response. When enabled, several fragments can be handed to the Bluetooth stack before its
+   * acknowledgement is received, removing a connection interval round trip per fragment.
+   * @param enabled true to use writes without response if supported by the device
+   * @param maxFragmentsInFlight maximum number of fragments written but not yet acknowledged by the Bluetooth stack
+   */
+  public void setWriteWithoutResponse(boolean enabled, int maxFragmentsInFlight) {
+    if (maxFragmentsInFlight < 1) {
+      throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid number of fragments in flight");
+    }
+    this.maxFragmentsInFlight = maxFragmentsInFlight;
+    this.writeWithoutResponse = enabled;
+  }
+
+  /**
+   * Enable or disable writes without response, using a default number of fragments in flight
+   * @param enabled true to use writes without response if supported by the device
+   */
+  public void setWriteWithoutResponse(boolean enabled) {
+    setWriteWithoutResponse(enabled, DEFAULT_MAX_FRAGMENTS_IN_FLIGHT);
+  }
+
+  /**
+   * Check if writes without response are currently used. This is reset if an error is reported by the Bluetooth stack.
+   * @return true if writes without response are used
+   */
+  public boolean isWriteWithoutResponse() {
+    return writeWithoutResponse;
+  }
+
+  /**
+   * Enable or disable the session cache used to reconnect faster to a device previously opened. Enabled by default.
+   * @param enabled true to use and update the session cache
+   */
+  public void setSessionCacheEnabled(boolean enabled) {
+    this.sessionCacheEnabled = enabled;
+  }
+
+  /**
+   * Drop the cached session of a device, forcing a full open sequence on the next connection
+   * @param address Bluetooth address of the device
+   */
+  public static void forgetSession(String address) {
+    sessions.remove(address);
+  }
+
+  /**
+   * Return how long the last successful open took
+   * @return duration in milliseconds
+   */
+  public long getLastOpenDuration() {
+    return lastOpenDuration;
+  }
+
+  /**
+   * Check if the last successful open used a cached session
+   * @return true if steps were skipped thanks to a cached session
+   */
+  public boolean isLastOpenResumed() {
+    return lastOpenResumed;
+  }
+
+  /**
+   * Start opening the device. The open sequence is driven by the GATT callback.
+   * If an open is already in progress, the pending open future is returned.
+   * When reconnecting to a device previously opened, the steps made unnecessary by the cached session are skipped.
+   * @return future completed when the device is ready to exchange APDUs
+   */
+  public LedgerFuture<Void> openAsync() {
+    LedgerFuture<Void> future;
+    LedgerFuture<Void> readyFuture;
+    LedgerException error = null;
+    synchronized(lock) {
+      switch(state) {
+        case READY:
+          Log.d(LOG_STRING, "Already opened");
+          future = new LedgerFuture<Void>();
+          future.complete(null);
+          return future;
+        case DISCONNECTED:
+          Log.d(LOG_STRING, "Disconnected");
+          future = new LedgerFuture<Void>();
+          future.complete(null);
+          return future;
+        case CLOSED:
+          break;
+        default:
+          if (!pendingOpen.isDone()) {
+            return pendingOpen;
+          }
+          // Previous attempt abandoned by its caller, start over
+          break;
+      }
+      future = new LedgerFuture<Void>();
+      pendingOpen = future;
+      draining = false;
+      staleWrites = 0;
+      openStartTime = System.nanoTime();
+      session = (sessionCacheEnabled ? sessions.get(getAddress()) : null);
+      characteristicWrite = null;
+      characteristicNotify = null;
+      try {
+        readyFuture = nextOpenStep(State.CLOSED);
+      }
+      catch(LedgerException e) {
+        error = e;
+        readyFuture = abortOpen();
       }
     }
+    completeOpen(readyFuture, error);
+    return future;
+  }
+
+  @Override
+  public void open() throws LedgerException {
+    LedgerFuture<Void> future = openAsync();
+    try {
+      future.await(timeout);
+    }
+    catch(LedgerException e) {
+      future.cancel(false);
+      throw e;
+    }
+  }
+
+  private void setState(State newState) {
     if (debug) {
-      Log.d(LOG_STRING, "End clear queue");
-    }    
+      Log.d(LOG_STRING, "State " + state + " -> " + newState);
+    }
+    state = newState;
+  }
+
+  private boolean isOpening(State expectedState) {
+    if (state != expectedState) {
+      return false;
+    }
+    if (pendingOpen.isDone()) {
+      // Cancelled or timed out, late events are ignored until the next attempt
+      abortOpen();
+      return false;
+    }
+    return true;
   }
 
-  private GattCallback.GattEvent waitEvent(GattCallback.GattEventType eventType) throws LedgerException {
-    return waitEvent(eventType, null, null, null);
+  private LedgerFuture<Void> abortOpen() {
+    LedgerFuture<Void> future = pendingOpen;
+    pendingOpen = null;
+    if (session != null) {
+      // The cached session may be the reason of the failure, run the full sequence on the next attempt
+      sessions.remove(getAddress());
+      session = null;
+    }
+    if (state != State.DISCONNECTED) {
+      setState(State.CLOSED);
+    }
+    return future;
   }
 
-  private GattCallback.GattEvent waitEvent(GattCallback.GattEventType eventType, UUID uuid) throws LedgerException {
-   return waitEvent(eventType, uuid, null, null); 
+  private void checkStatus(int status, String operation) throws LedgerException {
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Unsuccessful " + operation + " " + GattUtils.statusToString(status));
+    }
   }
 
-  private GattCallback.GattEvent waitEvent(GattCallback.GattEventType eventType, UUID uuid, GattCallback.GattEventType eventType2, UUID uuid2) throws LedgerException {
-    for (;;) {
-      GattCallback.GattEvent event = null;
-      try {
-        event = blockingQueue.poll(timeout, TimeUnit.MILLISECONDS);
+  private boolean findCharacteristics() {
+    BluetoothGattService service = connection.getService(SERVICE_UUID);
+    if (service == null) {
+      return false;
+    }
+    characteristicWrite = service.getCharacteristic(WRITE_CHARACTERISTIC_UUID);
+    characteristicNotify = service.getCharacteristic(NOTIFY_CHARACTERISTIC_UUID);
+    return ((characteristicWrite != null) && (characteristicNotify != null));
+  }
+
+  private boolean isBonded() {
+    BluetoothDevice device = connection.getDevice();
+    return ((device != null) && (device.getBondState() == BluetoothDevice.BOND_BONDED));
+  }
+
+  private String getAddress() {
+    BluetoothDevice device = connection.getDevice();
+    return (device != null ? device.getAddress() : "");
+  }
+
+  /**
+   * Start the open step following the one just completed, skipping the steps made unnecessary by the cached session.
+   * Called with the lock held.
+   * @param completedStep last completed step, CLOSED when starting
+   * @return open future to complete if the device is ready, or null
+   */
+  private LedgerFuture<Void> nextOpenStep(State completedStep) throws LedgerException {
+    switch(completedStep) {
+      case CLOSED:
+        if ((session == null) || !findCharacteristics()) {
+          setState(State.DISCOVERING_SERVICES);
+          if (!connection.discoverServices()) {
+            throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to initiate GATT service discovery");
+          }
+          return null;
+        }
+        // Services are still known by the GATT client, skip the discovery
+      case DISCOVERING_SERVICES:
+        if ((characteristicWrite == null) || (characteristicNotify == null)) {
+          throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to find all service characteristics");
+        }
+        writeWithoutResponseSupported = ((characteristicWrite.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0);
+        if (!connection.setCharacteristicNotification(characteristicNotify, true)) {
+          throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to enable local notifications");
+        }
+        if ((session == null) || !isBonded()) {
+          BluetoothGattDescriptor descriptor = characteristicNotify.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+          descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+          setState(State.ENABLING_NOTIFICATIONS);
+          if (!connection.writeDescriptor(descriptor)) {
+            throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to enable remote notifications");
+          }
+          return null;
+        }
+        // The device keeps the subscription of bonded clients across connections
+      case ENABLING_NOTIFICATIONS:
+        /* The ATT MTU is negotiated for each connection */
+        if (negotiateMtu()) {
+          return null;
+        }
+      case NEGOTIATING_MTU:
+        if ((session == null) || (session.deviceMtu == 0)) {
+          queryDeviceMtu();
+          return null;
+        }
+        deviceMtu = session.deviceMtu;
+      case QUERYING_MTU:
+        return finishOpen();
+      default:
+        throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, "Invalid open step " + completedStep);
+    }
+  }
+
+  private void queryDeviceMtu() throws LedgerException {
+    /* Request the MTU from the device side on the application layer, once the ATT MTU is negotiated */
+    queryMtuAcknowledged = false;
+    queryMtuAnswered = false;
+    deviceMtu = 0;
+    setState(State.QUERYING_MTU);
+    characteristicWrite.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    characteristicWrite.setValue(QUERY_MTU);
+    if (!connection.writeCharacteristic(characteristicWrite)) {
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to write query_mtu message");
+    }
+  }
+
+  /**
+   * Request the largest ATT MTU the host accepts, the device MTU queried afterwards bounding the fragment size
+   * @return true if the negotiation was started, false if the current MTU shall be kept
+   */
+  private boolean negotiateMtu() throws LedgerException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return false;
+    }
+    int requestedMtu = Math.min(maxMtu, DEFAULT_MAX_MTU);
+    if (requestedMtu <= negotiatedMtu) {
+      return false;
+    }
+    setState(State.NEGOTIATING_MTU);
+    if (!connection.requestMtu(requestedMtu)) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to request MTU");
+    }
+    return true;
+  }
+
+  private LedgerFuture<Void> finishOpen() {
+    int fragmentSize = negotiatedMtu - ATT_HEADER_SIZE;
+    if (deviceMtu != 0) {
+      fragmentSize = Math.min(fragmentSize, deviceMtu);
+    }
+    setMtu(fragmentSize);
+    if (debug) {
+      Log.d(LOG_STRING, "Using MTU " + mtu + " (negotiated " + negotiatedMtu + ", device " + deviceMtu + ")");
+    }
+    lastOpenDuration = (System.nanoTime() - openStartTime) / 1000000L;
+    lastOpenResumed = (session != null);
+    Log.d(LOG_STRING, "Opened in " + lastOpenDuration + " ms" + (lastOpenResumed ? " (cached session)" : ""));
+    if (sessionCacheEnabled) {
+      sessions.put(getAddress(), new Session(deviceMtu));
+    }
+    session = null;
+    LedgerFuture<Void> future = pendingOpen;
+    pendingOpen = null;
+    setState(State.READY);
+    return future;
+  }
+
+  private class StateListener implements GattCallback.GattEventListener {
+
+    @Override
+    public void onServicesDiscovered(int status) {
+      LedgerFuture<Void> future = null;
+      LedgerException error = null;
+      synchronized(lock) {
+        if (!isOpening(State.DISCOVERING_SERVICES)) {
+          return;
+        }
+        try {
+          checkStatus(status, "GATT service discovery");
+          findCharacteristics();
+          future = nextOpenStep(State.DISCOVERING_SERVICES);
+        }
+        catch(LedgerException e) {
+          error = e;
+          future = abortOpen();
+        }
       }
-      catch(InterruptedException ex) {
-        throw new LedgerException(LedgerException.ExceptionReason.INTERNAL_ERROR, ex);
+      completeOpen(future, error);
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID uuid, int status) {
+      LedgerFuture<Void> future = null;
+      LedgerException error = null;
+      if (!uuid.equals(CLIENT_CHARACTERISTIC_CONFIG)) {
+        return;
       }
-      if (event == null) {
-        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Timeout");
+      synchronized(lock) {
+        if (!isOpening(State.ENABLING_NOTIFICATIONS)) {
+          return;
+        }
+        try {
+          checkStatus(status, "notification descriptor write");
+          future = nextOpenStep(State.ENABLING_NOTIFICATIONS);
+        }
+        catch(LedgerException e) {
+          error = e;
+          future = abortOpen();
+        }
       }
-      if (debug) {
-        Log.d(LOG_STRING, "Received " + event.toString());
+      completeOpen(future, error);
+    }
+
+    @Override
+    public void onMtuChanged(int newMtu, int status) {
+      LedgerFuture<Void> future = null;
+      LedgerException error = null;
+      synchronized(lock) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          negotiatedMtu = newMtu;
+        }
+        if (!isOpening(State.NEGOTIATING_MTU)) {
+          return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+          error = new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Unsuccessful MTU negotiation " + GattUtils.statusToString(status));
+          future = abortOpen();
+        }
+        else {
+          try {
+            future = nextOpenStep(State.NEGOTIATING_MTU);
+          }
+          catch(LedgerException e) {
+            error = e;
+            future = abortOpen();
+          }
+        }
       }
-      // Handle generic events
-      if (event.getStatus() != BluetoothGatt.GATT_SUCCESS) {
-        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Unsuccessful event " + event.toString());
+      completeOpen(future, error);
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID uuid, int status) {
+      LedgerFuture<Void> future = null;
+      LedgerException error = null;
+      if (!uuid.equals(WRITE_CHARACTERISTIC_UUID)) {
+        return;
       }
-      switch(event.getEventType()) {
-        case GATT_MTU_CHANGED:
-          setMtu(event.getMtu() - 3);
-          break;
-        case GATT_CONNECTION_STATE_CHANGE:
-          switch(event.getNewState()) {
-            case BluetoothProfile.STATE_DISCONNECTED:
-            case BluetoothProfile.STATE_DISCONNECTING:
-              disconnected = true;
-              opened = false;
-              throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Disconnected");
+      boolean handled = false;
+      synchronized(lock) {
+        if (state == State.QUERYING_MTU) {
+          handled = true;
+          if (!isOpening(State.QUERYING_MTU)) {
+            return;
           }
-          break;
+          try {
+            checkStatus(status, "query_mtu write");
+            queryMtuAcknowledged = true;
+            future = onQueryMtuProgress();
+          }
+          catch(LedgerException e) {
+            error = e;
+            future = abortOpen();
+          }
+        }
       }
-      if (event.getEventType().equals(eventType) && (
-        (uuid == null) || (event.getUuid().equals(uuid)))) {
-          return event;
+      if (!handled) {
+        onFragmentWritten(status);
+        return;
       }
-      if (eventType2 != null) {
-        if (event.getEventType().equals(eventType2) && (
-          (uuid2 == null) || (event.getUuid().equals(uuid2)))) {
-            return event;
-        }      
+      completeOpen(future, error);
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID uuid, byte[] value) {
+      LedgerFuture<Void> future = null;
+      LedgerException error = null;
+      if (!uuid.equals(NOTIFY_CHARACTERISTIC_UUID)) {
+        return;
+      }
+      boolean handled = false;
+      synchronized(lock) {
+        if (state == State.QUERYING_MTU) {
+          handled = true;
+          if (!isOpening(State.QUERYING_MTU)) {
+            return;
+          }
+          Log.d(LOG_STRING, "Device MTU answer " + Dump.dump(value));
+          deviceMtu = parseDeviceMtu(value);
+          queryMtuAnswered = true;
+          try {
+            future = onQueryMtuProgress();
+          }
+          catch(LedgerException e) {
+            error = e;
+            future = abortOpen();
+          }
+        }
+      }
+      if (!handled) {
+        onFragmentReceived(value);
+        return;
+      }
+      completeOpen(future, error);
+    }
+
+    @Override
+    public void onConnectionStateChange(int status, int newState) {
+      LedgerFuture<Void> openFuture;
+      LedgerFuture<byte[]> exchangeFuture;
+      if ((newState != BluetoothProfile.STATE_DISCONNECTED) && (newState != BluetoothProfile.STATE_DISCONNECTING)) {
+        return;
+      }
+      synchronized(lock) {
+        setState(State.DISCONNECTED);
+        // A new connection starts over with the default ATT MTU
+        negotiatedMtu = DEFAULT_MTU + ATT_HEADER_SIZE;
+        openFuture = pendingOpen;
+        pendingOpen = null;
+        exchangeFuture = pendingExchange;
+        if (exchangeFuture != null) {
+          endExchange(null);
+        }
+        pendingExchange = null;
+        pendingCommand = null;
+        pendingTarget = null;
+        draining = false;
+        staleWrites = 0;
+      }
+      if (openFuture != null) {
+        openFuture.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Disconnected"));
+      }
+      if (exchangeFuture != null) {
+        exchangeFuture.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Disconnected"));
       }
     }
   }
 
-  @Override
-  public void open() throws LedgerException {    
-    GattCallback.GattEvent event;
-    if (opened) {
-      Log.d(LOG_STRING, "Already opened");
-      return;
+  /**
+   * Move on once the device MTU query is both acknowledged and answered. Called with the lock held.
+   * @return open future to complete if the device is ready, or null
+   */
+  private LedgerFuture<Void> onQueryMtuProgress() throws LedgerException {
+    if (!queryMtuAcknowledged || !queryMtuAnswered) {
+      return null;
     }
-    if (disconnected) {
-      Log.d(LOG_STRING, "Disconnected");
+    return nextOpenStep(State.QUERYING_MTU);
+  }
+
+  private void completeOpen(LedgerFuture<Void> future, LedgerException error) {
+    if (future == null) {
       return;
     }
-    clearQueue();
-    if (!connection.discoverServices()) {
-      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to initiate GATT service discovery");
+    if (error != null) {
+      future.fail(error);
     }
-    event = waitEvent(GattCallback.GattEventType.GATT_SERVICES_DISCOVERED);
-    characteristicWrite = null;
-    characteristicNotify = null;
-    List<BluetoothGattService> services = connection.getServices();
-    for (BluetoothGattService service : services) {
-      if (!service.getUuid().equals(SERVICE_UUID)) {
-        continue;
-      }
-      List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-      for (BluetoothGattCharacteristic characteristic : characteristics) {
-        if (characteristic.getUuid().equals(WRITE_CHARACTERISTIC_UUID)) {
-          characteristicWrite = characteristic;
+    else {
+      future.complete(null);
+    }
+  }
+
+  private void onFragmentWritten(int status) {
+    LedgerFuture<byte[]> future;
+    LedgerException error = null;
+    synchronized(lock) {
+      if (staleWrites != 0) {
+        // Late acknowledgement of an abandoned exchange, start the deferred command once all are received
+        staleWrites--;
+        try {
+          startDeferredCommand();
+          return;
         }
-        else
-        if (characteristic.getUuid().equals(NOTIFY_CHARACTERISTIC_UUID)) {
-          characteristicNotify = characteristic;
+        catch(LedgerException e) {
+          error = e;
+        }
+      }
+      else {
+        error = onCommandFragmentWritten(status);
+        if (error == null) {
+          return;
         }
       }
+      endExchange(null);
+      future = pendingExchange;
+      pendingExchange = null;
+      pendingCommand = null;
+      pendingTarget = null;
     }
-    if ((characteristicWrite == null) || (characteristicNotify == null)) {
-      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to find all service characteristics");
+    future.fail(error);
+  }
+
+  /**
+   * Acknowledge a fragment of the pending command and write the next ones. Called with the lock held.
+   * @return error failing the pending exchange, or null
+   */
+  private LedgerException onCommandFragmentWritten(int status) {
+    LedgerException error = null;
+    if ((pendingExchange == null) || draining) {
+      // Late acknowledgement of an abandoned exchange
+      return null;
     }
-    if (!connection.setCharacteristicNotification(characteristicNotify, true)) {
-      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to enable local notifications");
+    if (fragmentsInFlight != 0) {
+      fragmentsInFlight--;
     }
-    BluetoothGattDescriptor descriptor = characteristicNotify.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);    
-    if (!connection.writeDescriptor(descriptor)) {
-      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to enable remote notifications"); 
+    if ((fragmentsInFlight == 0) && (nextFragment == null) && !framer.hasNextPacket()) {
+      metrics.sent();
+      commandSent = true;
     }
-    waitEvent(GattCallback.GattEventType.GATT_DESCRIPTOR_WRITE, CLIENT_CHARACTERISTIC_CONFIG);
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-      if (!connection.requestMtu(maxMtu)) {
-        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to request MTU");          
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      if (writeWithoutResponse) {
+        // Fragments may have been lost, send the whole command again once all writes are acknowledged
+        fallbackToAcknowledgedWrites(status);
+        restartPending = true;
+      }
+      else {
+        error = new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to write fragment " + GattUtils.statusToString(status));
       }
-      waitEvent(GattCallback.GattEventType.GATT_MTU_CHANGED);
     }
-    /* Extra test, request the MTU from the device side on the application layer */
-    characteristicWrite.setValue(QUERY_MTU);
-    if (!connection.writeCharacteristic(characteristicWrite)) {
-        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to write query_mtu message");    
-    } 
-    waitEvent(GattCallback.GattEventType.GATT_CHARACTERISTIC_WRITE, WRITE_CHARACTERISTIC_UUID);   
-    event = waitEvent(GattCallback.GattEventType.GATT_CHARACTERISTIC_CHANGED, NOTIFY_CHARACTERISTIC_UUID);
-    byte[] data = event.getData();
-    Log.d(LOG_STRING, "Device MTU answer " + Dump.dump(data));
-    opened = true;
+    if (error == null) {
+      try {
+        if (restartPending && (fragmentsInFlight == 0)) {
+          restartPending = false;
+          startCommand();
+        }
+        else
+        if (!restartPending) {
+          writeFragments();
+        }
+      }
+      catch(LedgerException e) {
+        error = e;
+      }
+    }
+    return error;
   }
 
-  @Override
-  public byte[] exchange(byte[] apdu) throws LedgerException {
-    GattCallback.GattEvent event = null;
-    ByteArrayOutputStream response = new ByteArrayOutputStream();
+  private void onFragmentReceived(byte[] value) {
+    LedgerFuture<byte[]> future;
     byte[] responseData = null;
-    int offset = 0;
-    int responseSize;
-    int result;
-    if (!opened) {
-      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened"); 
-    }
-    if (disconnected) {
-      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is disconnected"); 
-    }    
-    clearQueue();
+    ResponseTarget target = null;
+    LedgerException error = null;
+    synchronized(lock) {
+      if (draining) {
+        try {
+          drainFragment(value);
+          return;
+        }
+        catch(LedgerException e) {
+          // The deferred command could not be started
+          error = e;
+        }
+      }
+      else {
+        if ((pendingExchange == null) || (staleWrites != 0)) {
+          // No command pending, or the deferred command is not written yet
+          if ((state == State.READY) && debug) {
+            Log.d(LOG_STRING, "Dropping unexpected fragment " + Dump.dump(value));
+          }
+          return;
+        }
+        if (debug) {
+          Log.d(LOG_STRING, "<= Fragment " + Dump.dump(value));
+        }
+        commandSent = true;
+        metrics.sent();
+        metrics.addResponseFragment();
+        try {
+          if (!reassembler.push(value)) {
+            return;
+          }
+          responseData = getCompletedResponse();
+        }
+        catch(LedgerException e) {
+          error = e;
+        }
+      }
+      target = pendingTarget;
+      endExchange(responseData);
+      future = pendingExchange;
+      pendingExchange = null;
+      pendingCommand = null;
+      pendingTarget = null;
+    }
+    if (error != null) {
+      future.fail(error);
+    }
+    else {
+      if (debug) {
+        Log.d(LOG_STRING, "<= " + (target != null ? Dump.dump(target.array, target.offset, target.length) : Dump.dump(responseData)));
+      }
+      future.complete(responseData);
+    }
+  }
+
+  /**
+   * Return the response reassembled for the pending exchange, the target array for an exchangeInto call. Called with the
+   * lock held.
+   * @return response, or buffer holding the response
+   */
+  private byte[] getCompletedResponse() throws LedgerException {
+    if (pendingTarget == null) {
+      return reassembler.getResponse();
+    }
+    if (reassembler.isOverflow()) {
+      throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Response buffer too small for " + reassembler.getResponseLength() + " bytes");
+    }
+    pendingTarget.length = reassembler.getResponseLength();
+    return pendingTarget.array;
+  }
+
+  /**
+   * Feed a fragment of the response of an abandoned exchange, then start the deferred command once drained. Called with the
+   * lock held.
+   */
+  private void drainFragment(byte[] value) throws LedgerException {
     if (debug) {
-      Log.d(LOG_STRING, "=> " + Dump.dump(apdu));
+      Log.d(LOG_STRING, "Draining fragment " + Dump.dump(value));
+    }
+    boolean drained;
+    try {
+      drained = reassembler.push(value);
+    }
+    catch(LedgerException e) {
+      // The stale response can't be parsed, consider the link resynchronized on the next command
+      Log.d(LOG_STRING, "Invalid fragment while draining " + e);
+      drained = true;
+    }
+    if (!drained) {
+      return;
+    }
+    draining = false;
+    startDeferredCommand();
+  }
+
+  /**
+   * Start the deferred command, if any, once the abandoned exchange is no longer pending. Called with the lock held.
+   */
+  private void startDeferredCommand() throws LedgerException {
+    if ((pendingExchange != null) && !isDeferring()) {
+      startCommand();
+    }
+  }
+
+  /**
+   * Check if the next command shall be deferred until the abandoned exchange is drained. Called with the lock held.
+   */
+  private boolean isDeferring() {
+    return draining || (staleWrites != 0);
+  }
+
+  /**
+   * Return the time left before giving up on the abandoned exchange. Called with the lock held.
+   * @return remaining time (in milliseconds)
+   */
+  private long getDrainRemainingMillis() {
+    return DRAIN_TIMEOUT_MS - (System.nanoTime() - drainStart) / 1000000L;
+  }
+
+  /**
+   * Stop waiting for the abandoned exchange, the device not answering it. Called with the lock held.
+   */
+  private void resync() {
+    Log.d(LOG_STRING, "Abandoned exchange still pending after " + DRAIN_TIMEOUT_MS + " ms, resynchronizing");
+    draining = false;
+    staleWrites = 0;
+    // The cached subscription may be stale if the device does not answer
+    sessions.remove(getAddress());
+  }
+
+  /**
+   * Abandon the pending exchange if it is still the given one, draining its late response if its command was sent and
+   * waiting for the acknowledgements of its pending writes. Called with the lock held.
+   */
+  private void abandonExchange(LedgerFuture<byte[]> future) {
+    if (pendingExchange != future) {
+      return;
+    }
+    boolean deferring = isDeferring();
+    endExchange(null);
+    pendingExchange = null;
+    pendingCommand = null;
+    pendingTarget = null;
+    if (commandSent && !reassembler.isComplete()) {
+      // The caller buffer can't be written once the call returned
+      reassembler.discard();
+      draining = true;
+    }
+    staleWrites += fragmentsInFlight;
+    fragmentsInFlight = 0;
+    nextFragment = null;
+    if (!deferring && isDeferring()) {
+      drainStart = System.nanoTime();
+    }
+  }
+
+  /**
+   * Report the metrics of the pending exchange. Called with the lock held, before the exchange is cleared.
+   * @param response response received, or null if the exchange failed
+   */
+  private void endExchange(byte[] response) {
+    if ((response != null) && (pendingTarget != null)) {
+      metrics.complete(response, pendingTarget.offset, pendingTarget.length);
+    }
+    else
+    if (response != null) {
+      metrics.complete(response);
     }
-    apdu = LedgerWrapper.wrapCommandAPDU(apdu, mtu);
-    while (offset != apdu.length) {
-      int blockSize = (apdu.length - offset > mtu ? mtu : apdu.length - offset);
-      System.arraycopy(apdu, offset, transferBuffer, 0, blockSize);
+    else {
+      metrics.fail();
+    }
+    ExchangeListener listener = exchangeListener;
+    if (listener != null) {
+      listener.onExchange(metrics);
+    }
+  }
+
+  private void fallbackToAcknowledgedWrites(int status) {
+    Log.d(LOG_STRING, "Write without response failed " + GattUtils.statusToString(status) + ", falling back to acknowledged writes");
+    writeWithoutResponse = false;
+  }
+
+  private byte[] frameNextFragment() throws LedgerException {
+    long framingStart = System.nanoTime();
+    int packetSize = framer.getNextPacketLength();
+    byte[] fragment = fragmentBuffers[packetSize];
+    if (fragment == null) {
+      fragment = new byte[packetSize];
+      fragmentBuffers[packetSize] = fragment;
+    }
+    framer.nextPacket(fragment, 0);
+    metrics.addFraming(System.nanoTime() - framingStart);
+    return fragment;
+  }
+
+  private void startCommand() throws LedgerException {
+    framer.start(pendingCommand, pendingCommandOffset, pendingCommandLength, mtu);
+    if (pendingTarget != null) {
+      reassembler.reset(pendingTarget.array, pendingTarget.offset, pendingTarget.capacity);
+    }
+    else {
+      reassembler.reset();
+    }
+    nextFragment = null;
+    fragmentsInFlight = 0;
+    restartPending = false;
+    commandSent = false;
+    writeFragments();
+  }
+
+  private void writeFragments() throws LedgerException {
+    for (;;) {
+      boolean withoutResponse = (writeWithoutResponse && writeWithoutResponseSupported);
+      if (fragmentsInFlight >= (withoutResponse ? maxFragmentsInFlight : 1)) {
+        return;
+      }
+      if (nextFragment == null) {
+        if (!framer.hasNextPacket()) {
+          return;
+        }
+        nextFragment = frameNextFragment();
+      }
       if (debug) {
-        Log.d(LOG_STRING, "=> Fragment " + Dump.dump(transferBuffer));
+        Log.d(LOG_STRING, "=> Fragment " + Dump.dump(nextFragment));
       }      
-      characteristicWrite.setValue(transferBuffer);
+      characteristicWrite.setWriteType(withoutResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+      characteristicWrite.setValue(nextFragment);
       if (!connection.writeCharacteristic(characteristicWrite)) {
+        if (fragmentsInFlight != 0) {
+          // Bluetooth stack busy, retry on the next acknowledgement
+          return;
+        }
+        if (withoutResponse) {
+          fallbackToAcknowledgedWrites(BluetoothGatt.GATT_FAILURE);
+          continue;
+        }
         throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to write fragment");    
       }
-      event = waitEvent(GattCallback.GattEventType.GATT_CHARACTERISTIC_WRITE, WRITE_CHARACTERISTIC_UUID, 
-        GattCallback.GattEventType.GATT_CHARACTERISTIC_CHANGED, NOTIFY_CHARACTERISTIC_UUID);      
-      offset += blockSize;
-    }      
-    if (!event.getEventType().equals(GattCallback.GattEventType.GATT_CHARACTERISTIC_CHANGED)) {
-      event = null;
+      nextFragment = null;
+      fragmentsInFlight++;
+      metrics.addCommandFragments(1);
+    }
+  }
+
+  @Override
+  public LedgerFuture<byte[]> exchangeAsync(byte[] apdu) {
+    return startExchange(apdu, 0, apdu.length, null);
+  }
+
+  /**
+   * Start an exchange
+   * @param apdu buffer holding the command, not copied
+   * @param offset offset to the command in the buffer
+   * @param length length of the command
+   * @param target caller buffer receiving the response, or null to allocate the response
+   * @return future completed with the response, or with the target array
+   */
+  private LedgerFuture<byte[]> startExchange(byte[] apdu, int offset, int length, ResponseTarget target) {
+    LedgerFuture<byte[]> future = new LedgerFuture<byte[]>();
+    State currentState = state;
+    if (currentState == State.DISCONNECTED) {
+      future.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is disconnected"));
+      return future;
+    }
+    if (currentState != State.READY) {
+      future.fail(new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened"));
+      return future;
     }
-    while (responseData == null) {          
-      if (event == null) {
-        event = waitEvent(GattCallback.GattEventType.GATT_CHARACTERISTIC_CHANGED, NOTIFY_CHARACTERISTIC_UUID);
+    if (debug) {
+      Log.d(LOG_STRING, "=> " + Dump.dump(apdu, offset, length));
+    }
+    synchronized(lock) {
+      if (pendingExchange != null) {
+        future.fail(new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Exchange already in progress"));
+        return future;
       }
-      byte[] data = event.getData();
-      if (debug) {
-        Log.d(LOG_STRING, "<= Fragment " + Dump.dump(data));
+      try {
+        pendingExchange = future;
+        pendingCommand = apdu;
+        pendingCommandOffset = offset;
+        pendingCommandLength = length;
+        pendingTarget = target;
+        metrics.start(apdu, offset, length);
+        if (isDeferring() && (getDrainRemainingMillis() <= 0)) {
+          resync();
+        }
+        if (isDeferring()) {
+          // Started once the abandoned exchange is drained
+          commandSent = false;
+          if (debug) {
+            Log.d(LOG_STRING, "Deferring command until the previous exchange is drained");
+          }
+        }
+        else {
+          startCommand();
+        }
+      }
+      catch(LedgerException e) {
+        endExchange(null);
+        pendingExchange = null;
+        pendingCommand = null;
+        pendingTarget = null;
+        future.fail(e);
+        return future;
       }
-      response.write(data, 0, data.length);
-      responseData = LedgerWrapper.unwrapResponseAPDU(response.toByteArray(), mtu);
-      event = null;
     }
-    if (debug) {
-      Log.d(LOG_STRING, "<= " + Dump.dump(responseData));
-    }      
-    return responseData;
+    future.addCallback(cancellationCallback);
+    return future;
+  }
+
+  @Override
+  public byte[] exchange(byte[] apdu) throws LedgerException {
+    LedgerFuture<byte[]> future = exchangeAsync(apdu);
+    try {
+      return awaitExchange(future, timeout);
+    }
+    catch(LedgerException e) {
+      abandon(future, true);
+      throw e;
+    }
+  }
+
+  /**
+   * Exchange an APDU, waiting until the deadline instead of the timeout
+   * @param apdu APDU to send to the device
+   * @param deadline deadline of the exchange
+   * @return response
+   */
+  @Override
+  public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+    deadline.check();
+    final LedgerFuture<byte[]> future = exchangeAsync(apdu);
+    Runnable listener = new Runnable() {
+      @Override
+      public void run() {
+        future.cancel(false);
+      }
+    };
+    deadline.addCancellationListener(listener);
+    try {
+      return awaitExchange(future, Math.max(1, deadline.getRemainingMillis()));
+    }
+    catch(LedgerException e) {
+      // A cancelled exchange does not mean the device stopped answering
+      abandon(future, !deadline.isCancelled());
+      throw e;
+    }
+    finally {
+      deadline.removeCancellationListener(listener);
+    }
+  }
+
+  /**
+   * Exchange an APDU held in a buffer, framing the command from the buffer and reassembling the response in place when both
+   * buffers are backed by an array
+   */
+  @Override
+  public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+    if (!command.hasArray() || !response.hasArray()) {
+      // Direct buffers can't be framed or reassembled in place, the adapter copies them
+      return ExchangeBuffers.exchangeInto(this, command, response);
+    }
+    ResponseTarget target = new ResponseTarget(response.array(), response.arrayOffset() + response.position(), response.remaining());
+    LedgerFuture<byte[]> future = startExchange(command.array(), command.arrayOffset() + command.position(), command.remaining(), target);
+    try {
+      awaitExchange(future, timeout);
+    }
+    catch(LedgerException e) {
+      abandon(future, true);
+      throw e;
+    }
+    command.position(command.limit());
+    response.position(response.position() + target.length);
+    return target.length;
+  }
+
+  /**
+   * Wait for an exchange, writing its command anyway if it is still deferred when the drain time limit elapses
+   * @param future exchange to wait for
+   * @param timeoutMS maximum time to wait (in milliseconds)
+   * @return response
+   */
+  private byte[] awaitExchange(LedgerFuture<byte[]> future, long timeoutMS) throws LedgerException {
+    long drainTimeoutMS;
+    synchronized(lock) {
+      if ((pendingExchange != future) || !isDeferring()) {
+        drainTimeoutMS = timeoutMS;
+      }
+      else {
+        drainTimeoutMS = Math.max(0, getDrainRemainingMillis());
+      }
+    }
+    if (drainTimeoutMS >= timeoutMS) {
+      return future.await(timeoutMS);
+    }
+    try {
+      return future.await(drainTimeoutMS);
+    }
+    catch(LedgerException e) {
+      // Still deferred, or failed in which case the failure is reported below
+    }
+    expireDrain(future);
+    return future.await(Math.max(1, timeoutMS - drainTimeoutMS));
+  }
+
+  /**
+   * Write the command of an exchange still deferred once the drain time limit elapsed
+   */
+  private void expireDrain(LedgerFuture<byte[]> future) {
+    LedgerException error;
+    synchronized(lock) {
+      if ((pendingExchange != future) || !isDeferring()) {
+        return;
+      }
+      resync();
+      try {
+        startCommand();
+        return;
+      }
+      catch(LedgerException e) {
+        error = e;
+      }
+      endExchange(null);
+      pendingExchange = null;
+      pendingCommand = null;
+      pendingTarget = null;
+    }
+    future.fail(error);
+  }
+
+  private void abandon(LedgerFuture<byte[]> future, boolean unresponsive) {
+    synchronized(lock) {
+      abandonExchange(future);
+    }
+    future.cancel(false);
+    if (unresponsive) {
+      // The cached subscription may be stale if the device does not answer
+      sessions.remove(getAddress());
+    }
   }
 
   @Override
@@ -298,9 +1268,14 @@ public class LedgerDeviceBLE implements LedgerDevice {
     this.debug = debugFlag;
   }
 
+  @Override
+  public void setExchangeListener(ExchangeListener listener) {
+    this.exchangeListener = listener;
+  }
+
   @Override
   public boolean isOpened() {
-    return opened;
+    return (state == State.READY);
   }
 
 }
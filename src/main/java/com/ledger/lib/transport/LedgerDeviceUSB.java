@@ -1,9 +1,10 @@
 package com.ledger.lib.transport;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
 
-import android.util.Log;
+import com.ledger.lib.utils.Log;
+import android.os.Build;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.hardware.usb.UsbConstants;
@@ -13,6 +14,7 @@ import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
 import com.ledger.lib.LedgerException;
+import com.ledger.lib.utils.AndroidLogger;
 import com.ledger.lib.utils.Dump;
 
 /**
@@ -27,8 +29,23 @@ import com.ledger.lib.utils.Dump;
  * Nano S : Vendor Id 2c97, Product Ids 0001, 1011, 1015
  *
  * Blue : Vendor Id 2c97, Product Ids 0000, 0011, 0015
+ *
+ * USB requests and their direct buffers are allocated once when the device is opened and reused for all exchanges. Several IN
+ * requests are kept queued so that multi-report responses are received back to back. Waits are bounded by the timeout or by
+ * the deadline of the exchange on Android 8.0 and above, the only versions providing a timed wait. Cancelling a deadline
+ * aborts the pending wait on all versions.
+ *
+ * When an exchange is abandoned, the pending requests are cancelled and reaped before being queued again, and the next
+ * exchanges use a new HID channel, so that late reports of the abandoned exchange are recognized and dropped. Each OUT request
+ * is tagged with the exchange which queued it, so that only the completions of its own reports are counted by an exchange.
+ * Cancelled IN requests complete without data and are dropped. A cancellation landing after the response was received still
+ * abandons the exchange before returning, so that the next exchange finds its requests queued again. The device is closed if
+ * the cancelled requests can't be reaped.
+ *
+ * All reports of a command are queued together on a pool of OUT requests before waiting for their completion, falling back to
+ * one report per wait if the host stack refuses several pending OUT requests.
  */
-public class LedgerDeviceUSB implements LedgerDevice {
+public class LedgerDeviceUSB implements ExtendedLedgerDevice {
 
   public static final int LEDGER_VENDOR = 0x2c97;
 
@@ -36,7 +53,17 @@ public class LedgerDeviceUSB implements LedgerDevice {
   private static final int LEDGER_DEFAULT_CHANNEL = 1;
   private static final int SW1_DATA_AVAILABLE = 0x61;
   private static final int MAX_FRAGMENT_SIZE = 255;
+  private static final int DEFAULT_READ_AHEAD = 4;
+  private static final int MAX_COALESCED_REPORTS = 8;
+  private static final int DEFAULT_TIMEOUT_MS = 120000;
+  private static final int REAP_TIMEOUT_MS = 1000;
   private static final String LOG_STRING = "LedgerDeviceUSB";  
+  private static final byte[] PADDING = new byte[HID_BUFFER_SIZE];
+
+  static {
+    // Send the library messages to logcat unless the application installed its own logger
+    Log.setDefaultLogger(new AndroidLogger());
+  }
 
   private UsbManager manager;
   private UsbDevice device;
@@ -45,16 +72,67 @@ public class LedgerDeviceUSB implements LedgerDevice {
   private UsbEndpoint in;
   private UsbEndpoint out;
   private byte transferBuffer[];
+  private UsbRequest outRequests[];
+  private UsbRequest inRequests[];
+  private boolean coalescedWrites;
+  private long reportsSent;
+  private long writeWaits;
+  private CommandFramer framer;
+  private ResponseReassembler reassembler;
+  private int channel;
+  private int exchangeId;
+  private ExchangeMetrics metrics;
+  private volatile ExchangeListener exchangeListener;
+  private final Object cancelLock = new Object();
+  private boolean exchangeActive;
+  private boolean requestsCancelled;
+  private int timeout;
+  private int readAhead;
   private boolean debug;
 
+  /**
+   * \brief Buffer and state of a USB request, attached as its client data
+   */
+  private static class RequestState {
+
+    private final ByteBuffer buffer;
+    private boolean pending;
+    private int exchangeId;
+
+    RequestState() {
+      buffer = ByteBuffer.allocateDirect(HID_BUFFER_SIZE);
+    }
+
+  }
+
   /** Class constructor
    * @param manager USBManager obtained from the application
    * @param device USBDevice obtained from the application
-   */  
-  public LedgerDeviceUSB(UsbManager manager, UsbDevice device) {
+   * @param timeoutMS timeout when waiting for a report (in milliseconds), 0 to wait forever. Only enforced on Android 8.0 and above
+   * @param readAhead number of IN requests kept queued
+   */
+  public LedgerDeviceUSB(UsbManager manager, UsbDevice device, int timeoutMS, int readAhead) {
+    if (readAhead < 1) {
+      throw new LedgerException(LedgerException.ExceptionReason.INVALID_PARAMETER, "Invalid number of queued IN requests");
+    }
     this.manager = manager;
     this.device = device;
+    this.timeout = timeoutMS;
+    this.readAhead = readAhead;
+    this.coalescedWrites = true;
     transferBuffer = new byte[HID_BUFFER_SIZE];
+    channel = LEDGER_DEFAULT_CHANNEL;
+    framer = new CommandFramer(channel);
+    reassembler = new ResponseReassembler(channel);
+    metrics = new ExchangeMetrics(LOG_STRING);
+  }
+
+  /** Class constructor using a default 2 minutes timeout, leaving time for user confirmations
+   * @param manager USBManager obtained from the application
+   * @param device USBDevice obtained from the application
+   */
+  public LedgerDeviceUSB(UsbManager manager, UsbDevice device) {
+    this(manager, device, DEFAULT_TIMEOUT_MS, DEFAULT_READ_AHEAD);
   }
 
   @Override
@@ -86,49 +164,486 @@ public class LedgerDeviceUSB implements LedgerDevice {
       close();
       throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to claim interface"); 
     }
+    try {
+      initRequests();
+    }
+    catch(LedgerException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void initRequests() throws LedgerException {
+    outRequests = new UsbRequest[MAX_COALESCED_REPORTS];
+    for (int i=0; i<MAX_COALESCED_REPORTS; i++) {
+      UsbRequest request = new UsbRequest();
+      if (!request.initialize(connection, out)) {
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to initialize OUT request");
+      }
+      request.setClientData(new RequestState());
+      outRequests[i] = request;
+    }
+    inRequests = new UsbRequest[readAhead];
+    for (int i=0; i<readAhead; i++) {
+      UsbRequest request = new UsbRequest();
+      if (!request.initialize(connection, in)) {
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to initialize IN request");
+      }
+      request.setClientData(new RequestState());
+      inRequests[i] = request;
+    }
+    queueInRequests();
+  }
+
+  private void queueInRequests() throws LedgerException {
+    for (UsbRequest request : inRequests) {
+      queueIn(request);
+    }
+  }
+
+  private static RequestState getState(UsbRequest request) {
+    return (RequestState)request.getClientData();
+  }
+
+  private boolean queue(UsbRequest request) {
+    RequestState state = getState(request);
+    boolean queued;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      // The position of the buffer is moved past the bytes transferred when the request completes
+      queued = request.queue(state.buffer);
+    }
+    else {
+      queued = request.queue(state.buffer, HID_BUFFER_SIZE);
+    }
+    if (!queued) {
+      return false;
+    }
+    state.pending = true;
+    state.exchangeId = exchangeId;
+    return true;
+  }
+
+  private void queueIn(UsbRequest request) throws LedgerException {
+    ByteBuffer buffer = getState(request).buffer;
+    buffer.clear();
+    // Clear the channel, a request completing without data is then never taken for a report of the current channel
+    buffer.putShort(0, (short)0);
+    if (!queue(request)) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to queue IN request");
+    }
+  }
+
+  private boolean hasPendingRequests() {
+    for (UsbRequest request : inRequests) {
+      if (getState(request).pending) {
+        return true;
+      }
+    }
+    for (UsbRequest request : outRequests) {
+      if (getState(request).pending) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wait for the completion of all cancelled requests, so that none of them is still owned by the host stack when queued
+   * again
+   */
+  private void reapRequests() throws LedgerException {
+    while (hasPendingRequests()) {
+      UsbRequest request;
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        try {
+          request = connection.requestWait(REAP_TIMEOUT_MS);
+        }
+        catch(TimeoutException e) {
+          throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Timeout reaping cancelled USB requests");
+        }
+      }
+      else {
+        request = connection.requestWait();
+      }
+      if (request == null) {
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to reap cancelled USB requests");
+      }
+      getState(request).pending = false;
+    }
+  }
+
+  private void cancelRequests() {
+    if (inRequests != null) {
+      for (UsbRequest request : inRequests) {
+        request.cancel();
+      }
+    }
+    if (outRequests != null) {
+      for (UsbRequest request : outRequests) {
+        request.cancel();
+      }
+    }
+  }
+
+  private void closeRequests() {
+    cancelRequests();
+    if (inRequests != null) {
+      for (UsbRequest request : inRequests) {
+        request.close();
+      }
+      inRequests = null;
+    }
+    if (outRequests != null) {
+      for (UsbRequest request : outRequests) {
+        request.close();
+      }
+      outRequests = null;
+    }
+  }
+
+  /**
+   * Cancel the pending requests of an exchange and switch to a new channel, so that late reports of this exchange
+   * are not taken for the next response
+   */
+  private void abandonExchange() {
+    if (connection == null) {
+      return;
+    }
+    synchronized(cancelLock) {
+      requestsCancelled = false;
+    }
+    cancelRequests();
+    try {
+      reapRequests();
+      queueInRequests();
+    }
+    catch(LedgerException e) {
+      // The requests can't be reused safely, the device has to be opened again
+      Log.d(LOG_STRING, "Closing the device after an abandoned exchange : " + e.getMessage());
+      try {
+        close();
+      }
+      catch(LedgerException ignored) {
+      }
+      return;
+    }
+    channel = (channel == 0xffff ? LEDGER_DEFAULT_CHANNEL : channel + 1);
+    framer.setChannel(channel);
+    reassembler.setChannel(channel);
+  }
+
+  private void checkDeadline(Deadline deadline) throws LedgerException {
+    try {
+      deadline.check();
+    }
+    catch(LedgerException e) {
+      abandonExchange();
+      throw e;
+    }
+  }
 
+  /**
+   * Wait for the completion of a request
+   * @param deadline deadline of the exchange, or null to use the timeout
+   */
+  private UsbRequest waitRequest(Deadline deadline) throws LedgerException {
+    long waitMS = timeout;
+    if (deadline != null) {
+      checkDeadline(deadline);
+      waitMS = (deadline.hasTimeLimit() ? Math.max(1, deadline.getRemainingMillis()) : 0);
+    }
+    UsbRequest request;
+    if ((waitMS > 0) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)) {
+      try {
+        request = connection.requestWait(waitMS);
+      }
+      catch(TimeoutException e) {
+        abandonExchange();
+        if (deadline != null) {
+          throw new DeadlineException("Timeout");
+        }
+        throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Timeout");
+      }
+    }
+    else {
+      request = connection.requestWait();
+    }
+    if (request != null) {
+      getState(request).pending = false;
+    }
+    if (deadline != null) {
+      // The wait may have been interrupted by a cancellation
+      checkDeadline(deadline);
+    }
+    if (request == null) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to wait for USB request");
+    }
+    return request;
+  }
+
+  /**
+   * Wait for the completion of the queued OUT requests, handling reports received meanwhile
+   * @param count number of OUT requests queued
+   */
+  private void waitWrites(int count, Deadline deadline) throws LedgerException {
+    writeWaits++;
+    reportsSent += count;
+    metrics.addCommandFragments(count);
+    while (count != 0) {
+      UsbRequest request = waitRequest(deadline);
+      if (request.getEndpoint() == out) {
+        if (getState(request).exchangeId == exchangeId) {
+          count--;
+        }
+      }
+      else {
+        receiveReport(request);
+      }
+    }
+  }
+
+  /**
+   * Copy a received report, queue its request again, then feed the report to the reassembler
+   */
+  private void receiveReport(UsbRequest request) throws LedgerException {
+    ByteBuffer buffer = getState(request).buffer;
+    boolean received = ((Build.VERSION.SDK_INT < Build.VERSION_CODES.O) || (buffer.position() == HID_BUFFER_SIZE));
+    buffer.clear();
+    buffer.get(transferBuffer, 0, HID_BUFFER_SIZE);
+    queueIn(request);
+    if (!received) {
+      if (debug) {
+        Log.d(LOG_STRING, "Dropping the completion of a cancelled IN request");
+      }
+      return;
+    }
+    if (!reassembler.isExpectedChannel(transferBuffer, 0)) {
+      if (debug) {
+        Log.d(LOG_STRING, "Dropping report of an abandoned exchange " + Dump.dump(transferBuffer));
+      }
+      return;
+    }
+    if (reassembler.isComplete()) {
+      if (debug) {
+        Log.d(LOG_STRING, "Dropping unexpected report " + Dump.dump(transferBuffer));
+      }
+      return;
+    }
+    metrics.addResponseFragment();
+    reassembler.push(transferBuffer, 0, HID_BUFFER_SIZE);
+  }
+
+  /**
+   * Enable or disable queuing all reports of a command before waiting. Enabled by default, and disabled automatically
+   * if the host stack refuses several pending OUT requests.
+   * @param enabled true to queue all reports together, false to wait for each report
+   */
+  public void setCoalescedWrites(boolean enabled) {
+    this.coalescedWrites = enabled;
+  }
+
+  /**
+   * Check if all reports of a command are queued before waiting
+   * @return true if reports are queued together
+   */
+  public boolean isCoalescedWrites() {
+    return coalescedWrites;
+  }
+
+  /**
+   * Return the number of reports sent since the device was created
+   * @return number of reports sent
+   */
+  public long getReportsSent() {
+    return reportsSent;
+  }
+
+  /**
+   * Return the number of times the device waited for queued reports to be sent. The ratio of reports sent to write waits
+   * shows how many reports are sent per wait.
+   * @return number of write waits
+   */
+  public long getWriteWaits() {
+    return writeWaits;
   }
 
   @Override
   public byte[] exchange(byte[] apdu) throws LedgerException {
-    ByteArrayOutputStream response = new ByteArrayOutputStream();
-    byte[] responseData = null;
-    int offset = 0;
-    int responseSize;
-    int result;
+    return exchange(apdu, null);
+  }
+
+  /**
+   * Exchange an APDU with a deadline. The time limit of the deadline is only enforced on Android 8.0 and above
+   * @param apdu APDU to send to the device
+   * @param deadline deadline of the exchange, or null to use the timeout
+   * @return response
+   */
+  @Override
+  public byte[] exchange(byte[] apdu, Deadline deadline) throws LedgerException {
+    if (deadline != null) {
+      deadline.check();
+    }
+    metrics.start(apdu);
+    Runnable listener = null;
+    if (deadline != null) {
+      listener = new Runnable() {
+        @Override
+        public void run() {
+          synchronized(cancelLock) {
+            // Wake up the pending wait, the exchange being abandoned by the exchanging thread. Once the exchange is over the
+            // requests are left alone, the listener possibly running after being removed
+            if (exchangeActive) {
+              requestsCancelled = true;
+              cancelRequests();
+            }
+          }
+        }
+      };
+      synchronized(cancelLock) {
+        exchangeActive = true;
+      }
+      deadline.addCancellationListener(listener);
+    }
+    byte[] responseData;
+    try {
+      responseData = exchangeReports(apdu, deadline);
+    }
+    catch(LedgerException e) {
+      metrics.fail();
+      notifyExchange();
+      throw e;
+    }
+    finally {
+      if (listener != null) {
+        deadline.removeCancellationListener(listener);
+        endCancellableExchange();
+      }
+    }
+    metrics.complete(responseData);
+    notifyExchange();
+    return responseData;
+  }
+
+  /**
+   * Exchange an APDU held in a buffer, framing the command from the buffer and reassembling the response in place when both
+   * buffers are backed by an array
+   */
+  @Override
+  public int exchangeInto(ByteBuffer command, ByteBuffer response) throws LedgerException {
+    if (!command.hasArray() || !response.hasArray()) {
+      // Direct buffers can't be framed or reassembled in place, the adapter copies them
+      return ExchangeBuffers.exchangeInto(this, command, response);
+    }
+    metrics.start(command);
+    int offset = response.position();
+    int length;
+    try {
+      reassembler.reset(response.array(), response.arrayOffset() + offset, response.remaining());
+      exchangeReports(command.array(), command.arrayOffset() + command.position(), command.remaining(), null);
+      command.position(command.limit());
+      length = reassembler.getResponseLength();
+      ExchangeBuffers.checkResponseSize(length, response);
+      response.position(offset + length);
+    }
+    catch(LedgerException e) {
+      metrics.fail();
+      notifyExchange();
+      throw e;
+    }
     if (debug) {
-      Log.d(LOG_STRING, "=> " + Dump.dump(apdu));
-    }
-    apdu = LedgerWrapper.wrapCommandAPDU(LEDGER_DEFAULT_CHANNEL, apdu, HID_BUFFER_SIZE);
-    UsbRequest request = new UsbRequest();
-    request.initialize(connection, out);
-    while(offset != apdu.length) {
-      int blockSize = (apdu.length - offset > HID_BUFFER_SIZE ? HID_BUFFER_SIZE : apdu.length - offset);
-      System.arraycopy(apdu, offset, transferBuffer, 0, blockSize);
-      request.queue(ByteBuffer.wrap(transferBuffer), HID_BUFFER_SIZE);
-      connection.requestWait();
-      offset += blockSize;
-    }
-    ByteBuffer responseBuffer = ByteBuffer.allocate(HID_BUFFER_SIZE);
-    request = new UsbRequest();
-    request.initialize(connection, in);   
-    while ((responseData = LedgerWrapper.unwrapResponseAPDU(LEDGER_DEFAULT_CHANNEL, response.toByteArray(), HID_BUFFER_SIZE)) == null) {
-      responseBuffer.clear();
-      request.queue(responseBuffer, HID_BUFFER_SIZE);
-      connection.requestWait();
-      responseBuffer.rewind();
-      responseBuffer.get(transferBuffer, 0, HID_BUFFER_SIZE);
-      response.write(transferBuffer, 0, HID_BUFFER_SIZE);       
-    }              
+      Log.d(LOG_STRING, "<= " + Dump.dump(response.array(), response.arrayOffset() + offset, length));
+    }
+    metrics.complete(response, offset, length);
+    notifyExchange();
+    return length;
+  }
+
+  /**
+   * Stop cancelling the requests on a deadline cancellation, abandoning the exchange if a cancellation landed after the
+   * response was received
+   */
+  private void endCancellableExchange() {
+    boolean cancelled;
+    synchronized(cancelLock) {
+      exchangeActive = false;
+      cancelled = requestsCancelled;
+    }
+    if (cancelled) {
+      abandonExchange();
+    }
+  }
+
+  private void notifyExchange() {
+    ExchangeListener listener = exchangeListener;
+    if (listener != null) {
+      listener.onExchange(metrics);
+    }
+  }
+
+  private byte[] exchangeReports(byte[] apdu, Deadline deadline) throws LedgerException {
+    reassembler.reset();
+    exchangeReports(apdu, 0, apdu.length, deadline);
+    byte[] responseData = reassembler.getResponse();
     if (debug) {
       Log.d(LOG_STRING, "<= " + Dump.dump(responseData));
     }
-    return responseData;  
+    return responseData;
+  }
+
+  /**
+   * Send a command and wait until the reassembler, reset by the caller, holds the complete response
+   */
+  private void exchangeReports(byte[] apdu, int offset, int length, Deadline deadline) throws LedgerException {
+    if (debug) {
+      Log.d(LOG_STRING, "=> " + Dump.dump(apdu, offset, length));
+    }
+    if (connection == null) {
+      throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Device is not opened");
+    }
+    exchangeId++;
+    framer.start(apdu, offset, length, HID_BUFFER_SIZE);
+    while (framer.hasNextPacket()) {
+      int pending = 0;
+      int maxPending = (coalescedWrites ? outRequests.length : 1);
+      while (framer.hasNextPacket() && (pending < maxPending)) {
+        UsbRequest request = outRequests[pending];
+        ByteBuffer buffer = getState(request).buffer;
+        long framingStart = System.nanoTime();
+        buffer.clear();
+        framer.nextPacket(buffer);
+        buffer.put(PADDING, 0, buffer.remaining());
+        buffer.clear();
+        metrics.addFraming(System.nanoTime() - framingStart);
+        if (!queue(request)) {
+          if (pending == 0) {
+            throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to queue OUT request");
+          }
+          Log.d(LOG_STRING, "Failed to queue several OUT requests, falling back to one report per wait");
+          coalescedWrites = false;
+          maxPending = 1;
+          waitWrites(pending, deadline);
+          pending = 0;
+          if (!queue(request)) {
+            throw new LedgerException(LedgerException.ExceptionReason.IO_ERROR, "Failed to queue OUT request");
+          }
+        }
+        pending++;
+      }
+      waitWrites(pending, deadline);
+    }
+    metrics.sent();
+    while (!reassembler.isComplete()) {
+      UsbRequest request = waitRequest(deadline);
+      if (request.getEndpoint() != out) {
+        receiveReport(request);
+      }
+    }
   }
 
   @Override
   public void close() throws LedgerException {    
     if (connection != null) {
+      closeRequests();
       if (dongleInterface != null) {
         connection.releaseInterface(dongleInterface);
         dongleInterface = null;
@@ -143,6 +658,11 @@ public class LedgerDeviceUSB implements LedgerDevice {
     this.debug = debugFlag;
   }
 
+  @Override
+  public void setExchangeListener(ExchangeListener listener) {
+    this.exchangeListener = listener;
+  }
+
   @Override
   public boolean isOpened() {
     return (connection != null);
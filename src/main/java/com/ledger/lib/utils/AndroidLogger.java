@@ -0,0 +1,13 @@
+package com.ledger.lib.utils;
+
+/**
+ * Logger sending the library messages to logcat, installed as the default logger by the Android transports
+ */
+public class AndroidLogger implements Logger {
+
+	@Override
+	public void d(String tag, String message) {
+		android.util.Log.d(tag, message);
+	}
+
+}